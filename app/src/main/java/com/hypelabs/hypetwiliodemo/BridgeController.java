@@ -26,27 +26,54 @@
 package com.hypelabs.hypetwiliodemo;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.provider.Settings;
+import android.util.Log;
 
 import com.hypelabs.hype.Instance;
 import com.twilio.chat.Message;
 
-import java.util.ArrayList;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
 import java.lang.ref.WeakReference;
 
 public class BridgeController implements HypeController.HypeControllerDelegate, TwilioController.TwilioControllerDelegate{
 
+    private static final String TAG = BridgeController.class.getName();
+    static final String OUTBOX_DIRECTORY_NAME = "outbox";
+    static final String METRICS_FILE_NAME = "bridge-metrics.txt";
+    static final String EVENT_LOOP_THREAD_NAME = "BridgeEventLoop";
+
     private Context context;
     private WeakReference<BridgeControllerDelegate> delegateWeakReference;
     private HypeController hypeController;
     private TwilioController twilioController;
     private InstanceChannelModel instanceChannel;
     private String identifierForvendor;
-    private ArrayList sidContainer;
-
-    public BridgeController(HypeController hypeController, TwilioController twilioController, InstanceChannelModel instanceChannel, String identifierForvendor, ArrayList sidContainer) {
+    private SidDedupStore sidContainer;
+    private MessageReception<Instance> messageReception;
+    private OutboxStore outbox;
+    private boolean proxyModeEnabled;
+    private StartupPipeline startupPipeline;
+    private BridgeMetrics metrics;
+    private BridgeEventLoop eventLoop;
+    private boolean outboxDrainRequested;
+
+    // Values of the gauges owned by the bridge thread, published at the end
+    // of each batch so the metrics can be read from any thread.
+    private volatile long dedupHits;
+    private volatile long dedupMisses;
+    private volatile int outboxSize;
+
+    public BridgeController(HypeController hypeController, TwilioController twilioController, InstanceChannelModel instanceChannel, String identifierForvendor, SidDedupStore sidContainer) {
 
         this.hypeController = hypeController;
         this.twilioController = twilioController;
@@ -113,6 +140,110 @@ public class BridgeController implements HypeController.HypeControllerDelegate,
 
     }
 
+    /**
+     * This method starts the bridge. The token fetch, which chains into the
+     * client creation and the channel join, starts right away, concurrently
+     * with Hype, which only waits on the location permission. Each stage is
+     * timestamped, and the full breakdown is logged when the first message
+     * crosses the bridge.
+     */
+    public void startBridge(){
+
+        this.getEventLoop().execute(new Runnable() {
+
+            @Override
+            public void run() {
+                handleStartBridge();
+            }
+        });
+    }
+
+    private void handleStartBridge(){
+
+        StartupPipeline pipeline = this.getStartupPipeline();
+
+        pipeline.addStage(StartupPipeline.Stage.HYPE_PERMISSION, null)
+                .addStage(StartupPipeline.Stage.HYPE_START, new StartupPipeline.StageAction() {
+
+                    @Override
+                    public void run(StartupPipeline pipeline) {
+                        getHypeController().requestHypeToStart();
+                    }
+                }, StartupPipeline.Stage.HYPE_PERMISSION)
+                .addStage(StartupPipeline.Stage.TOKEN_FETCH, new StartupPipeline.StageAction() {
+
+                    @Override
+                    public void run(StartupPipeline pipeline) {
+                        generateTwilioClient();
+                    }
+                })
+                .addStage(StartupPipeline.Stage.CLIENT_CREATION, null, StartupPipeline.Stage.TOKEN_FETCH)
+                .addStage(StartupPipeline.Stage.CHANNEL_JOIN, null, StartupPipeline.Stage.CLIENT_CREATION)
+                .addStage(StartupPipeline.Stage.FIRST_BRIDGED_MESSAGE, null, StartupPipeline.Stage.HYPE_START);
+
+        pipeline.setListener(new StartupPipeline.Listener() {
+
+            @Override
+            public void onStageCompleted(StartupPipeline.Stage stage, StartupPipeline pipeline) {
+
+                Log.i(TAG, String.format("Startup stage %s completed after %d ms", stage, pipeline.getCompletedAt(stage)));
+
+                if(stage == StartupPipeline.Stage.FIRST_BRIDGED_MESSAGE){
+                    Log.i(TAG, "Startup timeline:\n" + pipeline.describe());
+                }
+            }
+
+            @Override
+            public void onStageFailed(StartupPipeline.Stage stage, String reason, StartupPipeline pipeline) {
+
+                Log.e(TAG, String.format("Startup stage %s failed after %d ms: %s", stage, pipeline.getFailedAt(stage), reason));
+                Log.i(TAG, "Startup timeline:\n" + pipeline.describe());
+            }
+        });
+
+        pipeline.start();
+    }
+
+    /**
+     * @return The pipeline timing the bridge startup.
+     */
+    public StartupPipeline getStartupPipeline(){
+
+        if(this.startupPipeline == null){
+
+            this.startupPipeline = new StartupPipeline();
+        }
+
+        return this.startupPipeline;
+    }
+
+    /**
+     * @return Registry of the bridge metrics, shared with the Hype and
+     * twilio controllers.
+     */
+    public synchronized BridgeMetrics getMetrics(){
+
+        if(this.metrics == null){
+
+            this.metrics = new BridgeMetrics();
+            registerGauges(this.metrics);
+        }
+
+        return this.metrics;
+    }
+
+    /**
+     * This method writes a snapshot of the bridge metrics to the app files.
+     */
+    public void exportMetrics(){
+
+        try {
+            this.getMetrics().exportTo(new File(getContext().getFilesDir(), METRICS_FILE_NAME));
+        } catch (IOException e) {
+            Log.e(TAG, "Error exporting metrics: " + e.getMessage());
+        }
+    }
+
     /**
      * This method generates a twilio client.
      */
@@ -127,84 +258,514 @@ public class BridgeController implements HypeController.HypeControllerDelegate,
     }
 
     /**
-     * This method sends a message to the given twilio channnel.
+     * This method sends a message to the given twilio channnel. When there is
+     * neither a channel nor an instance to forward it to, the message is kept
+     * in the outbox and sent as soon as one shows up.
      * @param text Message to send.
      */
-    public void sendMessageToTwilioWithTextWithText(String text){
+    public void sendMessageToTwilioWithTextWithText(final String text){
 
-        ChannelModel channel = this.getInstanceChannel().getchannelWithIdentifierVendor(this.identifierForvendor);
+        this.getEventLoop().execute(new Runnable() {
 
-        if(channel != null){
+            @Override
+            public void run() {
+                handleSendMessageToTwilioWithText(text);
+            }
+        });
+    }
 
-            this.sendMessageToTwilioChannelWithText(channel, text);
+    private void handleSendMessageToTwilioWithText(String text){
 
-        }else{
+        OutboxStore outbox = this.getOutbox();
+
+        // Messages already waiting in the outbox go first, so this one queues behind them.
+        if(outbox != null && !outbox.isEmpty()){
 
-            Map<String, Instance> instancesDict = this.getInstanceChannel().getInstanceIdentifierVendor();
-            String identifierForVendor = (String) instancesDict.keySet().toArray()[0];
-            Instance instance = instancesDict.get(identifierForVendor);
-            this.getHypeController().sendMessageToCloserInstanceWithTextAndIdentifierForVendor(instance, text, identifierForVendor);
+            appendToOutbox(text);
+            this.outboxDrainRequested = true;
+            return;
+        }
+
+        if(!sendMessageIfPossible(text)){
 
+            appendToOutbox(text);
         }
     }
 
     /**
-     * This method requests Hype framework to start.
+     * Records the sids of messages that were shown and bridged before the
+     * app restarted, so copies delivered again by twilio are neither shown
+     * nor fanned out to the mesh a second time. They are kept apart from
+     * the sid container, where a known sid means the copy of a peer's
+     * client that must be fanned out.
+     * @param sids Sids restored from the message snapshot.
+     */
+    public void restoreSeenSids(final Collection<String> sids){
+
+        this.getEventLoop().execute(new Runnable() {
+
+            @Override
+            public void run() {
+
+                SidDedupStore restoredSids = new SidDedupStore(Math.max(1, sids.size()), SidDedupStore.NO_TIME_WINDOW, false);
+
+                for(String sid : sids){
+                    restoredSids.add(sid);
+                }
+                getMessageReception().setRestoredSids(restoredSids);
+            }
+        });
+    }
+
+    /**
+     * Enables or disables proxy mode. In proxy mode, offline peers announced
+     * once this device joined its own channel do not get a chat client of
+     * their own; their messages are posted through this device's client with
+     * the peer recorded as the author, so the number of clients, sockets and
+     * syncs on the gateway stays fixed however many peers it serves.
+     * @param proxyModeEnabled Whether proxy mode is enabled.
+     */
+    public void setProxyModeEnabled(final boolean proxyModeEnabled){
+
+        this.getEventLoop().execute(new Runnable() {
+
+            @Override
+            public void run() {
+                BridgeController.this.proxyModeEnabled = proxyModeEnabled;
+            }
+        });
+    }
+
+    /**
+     * Sets how much the chat clients created from now on synchronize before
+     * they join the default channel. The time each of them takes to join is
+     * recorded in the metrics under its mode.
+     * @param channelSyncMode Synchronization mode.
+     */
+    public void setChannelSyncMode(final TwilioController.ChannelSyncMode channelSyncMode){
+
+        this.getEventLoop().execute(new Runnable() {
+
+            @Override
+            public void run() {
+                getTwilioController().setChannelSyncMode(channelSyncMode);
+            }
+        });
+    }
+
+    /**
+     * This method requests Hype framework to start. Once the bridge was
+     * started, this completes the permission stage and lets the pipeline
+     * start Hype.
      */
     public void requestHypeToStart(){
 
+        this.getEventLoop().execute(new Runnable() {
+
+            @Override
+            public void run() {
+                handleRequestHypeToStart();
+            }
+        });
+    }
+
+    private void handleRequestHypeToStart(){
+
+        StartupPipeline pipeline = this.getStartupPipeline();
+
+        if(pipeline.isStarted()){
+
+            pipeline.complete(StartupPipeline.Stage.HYPE_PERMISSION);
+            return;
+        }
+
         this.getHypeController().requestHypeToStart();
     }
 
     // HypeControllerDelegate Notifications
     @Override
-    public void requestTwilioClientWithidentifierForVendor(String identifierForVendor) {
+    public void requestTwilioClientWithidentifierForVendor(final String identifierForVendor) {
 
-        generateTwilioClientWithIdentifierForVendor(identifierForVendor);
+        this.getEventLoop().execute(new Runnable() {
+
+            @Override
+            public void run() {
+                handleRequestTwilioClientWithidentifierForVendor(identifierForVendor);
+            }
+        });
     }
 
     @Override
-    public void didJoinTwilio(Map<String, String> response) {
+    public void didJoinTwilio(final Map<String, String> response) {
 
+        this.getEventLoop().execute(new Runnable() {
 
-        BridgeControllerDelegate delegate = getDelegate();
+            @Override
+            public void run() {
+                handleDidJoinTwilio(response);
+            }
+        });
+    }
 
-        if (delegate != null) {
-            delegate.didJoinTwilio(response);
-        }
+    @Override
+    public void didSendMessageFromIdentifierVendor(final String message, final String identifierForVendor) {
 
+        final long ingressTime = SystemClock.elapsedRealtime();
+
+        this.getEventLoop().execute(new Runnable() {
+
+            @Override
+            public void run() {
+                handleDidSendMessageFromIdentifierVendor(message, identifierForVendor, ingressTime);
+            }
+        });
     }
 
     @Override
-    public void didSendMessageFromIdentifierVendor(String message, String identifierForVendor) {
+    public void didFoundInstanceWithIdentifierForVendor(final Instance instance, final String identifierForVendor) {
 
-        ChannelModel channel = this.getInstanceChannel().getchannelWithIdentifierVendor(identifierForVendor);
-        sendMessageToTwilioChannelWithText(channel, message);
+        this.getEventLoop().execute(new Runnable() {
 
+            @Override
+            public void run() {
+                handleDidFoundInstanceWithIdentifierForVendor(instance, identifierForVendor);
+            }
+        });
     }
 
     @Override
-    public void didFoundInstanceWithIdentifierForVendor(Instance instance, String identifierForVendor) {
+    public void didLoseInstance(final Instance instance) {
 
-        this.getInstanceChannel().setInstanceIdentifierVendor(instance, identifierForVendor);
+        this.getEventLoop().execute(new Runnable() {
+
+            @Override
+            public void run() {
+                handleDidLoseInstance(instance);
+            }
+        });
+    }
+
+    @Override
+    public void didReceiveMessage(final Map<String, String> response) {
+
+        this.getEventLoop().execute(new Runnable() {
+
+            @Override
+            public void run() {
+                handleDidReceiveMessage(response);
+            }
+        });
+    }
+
+    @Override
+    public void releaseTwilioClientWithIdentifierForVendor(final String identifierForVendor) {
+
+        this.getEventLoop().execute(new Runnable() {
+
+            @Override
+            public void run() {
+                handleReleaseTwilioClientWithIdentifierForVendor(identifierForVendor);
+            }
+        });
+    }
+
+    @Override
+    public void didStartHype() {
+
+        this.getEventLoop().execute(new Runnable() {
+
+            @Override
+            public void run() {
+                handleDidStartHype();
+            }
+        });
+    }
+
+    // TwilioControllerDelegate Notifications
+    @Override
+    public void didJoinChannelWithIdentifierForVendor(final ChannelModel channel, final String identifierForVendor, final String identity) {
+
+        this.getEventLoop().execute(new Runnable() {
+
+            @Override
+            public void run() {
+                handleDidJoinChannelWithIdentifierForVendor(channel, identifierForVendor, identity);
+            }
+        });
+    }
+
+    @Override
+    public void didSendMessage(final String response) {
+
+        this.getEventLoop().execute(new Runnable() {
+
+            @Override
+            public void run() {
+                handleDidSendMessage(response);
+            }
+        });
+    }
+
+    @Override
+    public void didReceiveMessage(final Message message, final String channelSid) {
+
+        this.getEventLoop().execute(new Runnable() {
+
+            @Override
+            public void run() {
+                handleDidReceiveMessage(message, channelSid);
+            }
+        });
+    }
+
+    @Override
+    public void failConnecting(final String response) {
+
+        this.getEventLoop().execute(new Runnable() {
+
+            @Override
+            public void run() {
+                handleFailConnecting(response);
+            }
+        });
+    }
+
+    @Override
+    public void didReceiveAccessTokenForIdentifierForVendor(final String identifierForVendor) {
+
+        this.getEventLoop().execute(new Runnable() {
+
+            @Override
+            public void run() {
+                handleDidReceiveAccessTokenForIdentifierForVendor(identifierForVendor);
+            }
+        });
+    }
+
+    @Override
+    public void didCreateClientForIdentifierForVendor(final String identifierForVendor) {
+
+        this.getEventLoop().execute(new Runnable() {
+
+            @Override
+            public void run() {
+                handleDidCreateClientForIdentifierForVendor(identifierForVendor);
+            }
+        });
     }
 
     @Override
-    public void didLoseInstance(Instance instance) {
+    public void didFailAccessTokenForIdentifierForVendor(final String identifierForVendor, final String reason) {
+
+        this.getEventLoop().execute(new Runnable() {
 
-        Map<String, Instance> dict = this.getInstanceChannel().instanceIdentifierVendor;
+            @Override
+            public void run() {
+                handleDidFailStartupStageForIdentifierForVendor(StartupPipeline.Stage.TOKEN_FETCH, identifierForVendor, reason);
+            }
+        });
+    }
 
-        for (Map.Entry<String, Instance> entry : dict.entrySet())
-        {
-            if(entry.getValue() == instance){
+    @Override
+    public void didFailCreatingClientForIdentifierForVendor(final String identifierForVendor, final String reason) {
 
-                dict.remove(entry.getKey());
+        this.getEventLoop().execute(new Runnable() {
 
+            @Override
+            public void run() {
+                handleDidFailStartupStageForIdentifierForVendor(StartupPipeline.Stage.CLIENT_CREATION, identifierForVendor, reason);
+            }
+        });
+    }
+
+    public BridgeControllerDelegate getDelegate() {
+
+        return delegateWeakReference != null ? delegateWeakReference.get() : null;
+    }
+
+    public void setBridgeControllerDelegate(BridgeControllerDelegate bridgeControllerDelegate) {
+
+        this.delegateWeakReference = new WeakReference<>(bridgeControllerDelegate);
+    }
+
+    private Context getContext() {
+        return context;
+    }
+
+    /**
+     * Registers the gauges of the bridge. Gauges are read from whichever
+     * thread takes a snapshot, so they only read volatile values published
+     * by the bridge thread, or components whose getters are thread safe and
+     * which are created under the lock of this controller.
+     */
+    private void registerGauges(BridgeMetrics metrics){
+
+        metrics.registerGauge(BridgeMetrics.DEDUP_HITS, new BridgeMetrics.Gauge() {
+
+            @Override
+            public long getValue() {
+                return dedupHits;
+            }
+        });
+        metrics.registerGauge(BridgeMetrics.DEDUP_MISSES, new BridgeMetrics.Gauge() {
+
+            @Override
+            public long getValue() {
+                return dedupMisses;
+            }
+        });
+        metrics.registerGauge(BridgeMetrics.DEDUP_HIT_RATE, new BridgeMetrics.Gauge() {
+
+            @Override
+            public long getValue() {
+                long hits = dedupHits;
+                long lookups = hits + dedupMisses;
+                return lookups > 0 ? hits * 100 / lookups : 0;
             }
+        });
+        metrics.registerGauge(BridgeMetrics.MESH_QUEUE_DEPTH, new BridgeMetrics.Gauge() {
+
+            @Override
+            public long getValue() {
+                return getHypeController().getOutboundScheduler().getTotalQueueDepth();
+            }
+        });
+        metrics.registerGauge(BridgeMetrics.MESH_MAX_QUEUE_DEPTH, new BridgeMetrics.Gauge() {
+
+            @Override
+            public long getValue() {
+                return getHypeController().getOutboundScheduler().getMaxQueueDepth();
+            }
+        });
+        metrics.registerGauge(BridgeMetrics.MESH_IN_FLIGHT, new BridgeMetrics.Gauge() {
+
+            @Override
+            public long getValue() {
+                return getHypeController().getOutboundScheduler().getTotalInFlightCount();
+            }
+        });
+        metrics.registerGauge(BridgeMetrics.MESH_DROPPED, new BridgeMetrics.Gauge() {
+
+            @Override
+            public long getValue() {
+                return getHypeController().getOutboundScheduler().getDroppedCount();
+            }
+        });
+        metrics.registerGauge(BridgeMetrics.OUTBOX_SIZE, new BridgeMetrics.Gauge() {
+
+            @Override
+            public long getValue() {
+                return outboxSize;
+            }
+        });
+        metrics.registerGauge(BridgeMetrics.BRIDGE_INBOX_DEPTH, new BridgeMetrics.Gauge() {
+
+            @Override
+            public long getValue() {
+                return getEventLoop().getPendingCount();
+            }
+        });
+        metrics.registerGauge(BridgeMetrics.CHAT_CLIENTS, new BridgeMetrics.Gauge() {
+
+            @Override
+            public long getValue() {
+                return getTwilioController().getClientCount();
+            }
+        });
+    }
+
+    private void publishGaugeValues(){
+
+        this.dedupHits = this.getSidContainer().getHits();
+        this.dedupMisses = this.getSidContainer().getMisses();
+        this.outboxSize = this.outbox != null ? this.outbox.size() : 0;
+    }
+
+    // Event handlers, run on the event loop
+    private void handleRequestTwilioClientWithidentifierForVendor(String identifierForVendor) {
+
+        ChannelModel ownChannel = this.getInstanceChannel().getchannelWithIdentifierVendor(this.identifierForvendor);
+
+        if(this.proxyModeEnabled && ownChannel != null){
+
+            this.getMessageReception().addProxiedVendor(identifierForVendor);
+            this.getInstanceChannel().setChannelIdentifierVendor(ownChannel, identifierForVendor);
+            this.getHypeController().identifierForVendorDidJoinChannelWithIdentity(identifierForVendor, ownChannel, identifierForVendor);
+            return;
+        }
+
+        generateTwilioClientWithIdentifierForVendor(identifierForVendor);
+    }
+
+    private void handleDidJoinTwilio(Map<String, String> response) {
+
+
+        BridgeControllerDelegate delegate = getDelegate();
+
+        if (delegate != null) {
+            delegate.didJoinTwilio(response);
+        }
+
+    }
+
+    private void handleDidSendMessageFromIdentifierVendor(String message, String identifierForVendor, long ingressTime) {
+
+        this.getStartupPipeline().complete(StartupPipeline.Stage.FIRST_BRIDGED_MESSAGE);
+
+        // Messages of peers keep their author while they wait in the outbox.
+        if(!sendPeerMessageIfPossible(message, identifierForVendor, ingressTime)){
+
+            appendPeerMessageToOutbox(message, identifierForVendor);
+        }
+    }
+
+    /**
+     * Sends a message written by a peer through the peer's own channel or,
+     * when the peer is proxied or its client did not join yet, through this
+     * device's channel on the peer's behalf. It is never posted as a message
+     * of this device.
+     * @param message Message text.
+     * @param identifierForVendor Identifier for vendor of the peer that wrote the message.
+     * @param ingressTime SystemClock.elapsedRealtime() when the message reached this device, or TwilioController.NO_INGRESS_TIME.
+     * @return false if there is no channel to send the message to.
+     */
+    private boolean sendPeerMessageIfPossible(String message, String identifierForVendor, long ingressTime){
+
+        ChannelModel channel = this.getInstanceChannel().getchannelWithIdentifierVendor(identifierForVendor);
+
+        if(channel != null && !this.getMessageReception().isProxiedVendor(identifierForVendor)){
+
+            this.getTwilioController().sendMessageToTwilioChannelWithText(channel, message, ingressTime);
+            return true;
+        }
+
+        // Peers routed from further away may send before their own client
+        // joined, their messages go through this device's channel meanwhile.
+        if(channel == null){
+            channel = this.getInstanceChannel().getchannelWithIdentifierVendor(this.identifierForvendor);
+        }
+
+        if(channel == null){
+            return false;
         }
+
+        this.getTwilioController().sendMessageToTwilioChannelWithTextAndAuthor(channel, message, identifierForVendor, ingressTime);
+        return true;
+    }
+
+    private void handleDidFoundInstanceWithIdentifierForVendor(Instance instance, String identifierForVendor) {
+
+        this.getInstanceChannel().setInstanceIdentifierVendor(instance, identifierForVendor);
+        this.outboxDrainRequested = true;
+    }
+
+    private void handleDidLoseInstance(Instance instance) {
+
+        this.getInstanceChannel().removeInstance(instance);
+
         ChannelModel channel = this.getInstanceChannel().getchannelWithIdentifierVendor(identifierForvendor);
 
-        if(dict.size() == 0 && channel == null){
+        if(this.getInstanceChannel().hasNoInstances() && channel == null){
 
             BridgeControllerDelegate delegate = getDelegate();
 
@@ -217,16 +778,30 @@ public class BridgeController implements HypeController.HypeControllerDelegate,
 
     }
 
-    @Override
-    public void didReceiveMessage(Map<String, String> response) {
+    private void handleDidReceiveMessage(Map<String, String> response) {
 
-        manageMenssageReceptionsWithReceivedMessage(response);
+        this.getStartupPipeline().complete(StartupPipeline.Stage.FIRST_BRIDGED_MESSAGE);
+        manageMenssageReceptionsWithReceivedMessage(response, null);
 
     }
 
-    // TwilioControllerDelegate Notifications
-    @Override
-    public void didJoinChannelWithIdentifierForVendor(ChannelModel channel, String identifierForVendor, String identity) {
+    private void handleReleaseTwilioClientWithIdentifierForVendor(String identifierForVendor) {
+
+        if(identifierForVendor.equals(this.identifierForvendor)){
+            return;
+        }
+
+        this.getMessageReception().removeProxiedVendor(identifierForVendor);
+        this.getInstanceChannel().removeChannelIdentifierVendor(identifierForVendor);
+        this.getTwilioController().shutdownClientWithIdentifierForVendor(identifierForVendor);
+    }
+
+    private void handleDidStartHype() {
+
+        this.getStartupPipeline().complete(StartupPipeline.Stage.HYPE_START);
+    }
+
+    private void handleDidJoinChannelWithIdentifierForVendor(ChannelModel channel, String identifierForVendor, String identity) {
 
         if(this.identifierForvendor == identifierForVendor){
 
@@ -237,6 +812,9 @@ public class BridgeController implements HypeController.HypeControllerDelegate,
             }
 
             this.getInstanceChannel().setChannelIdentifierVendor(channel, identifierForVendor);
+            this.getStartupPipeline().complete(StartupPipeline.Stage.CHANNEL_JOIN);
+            this.getHypeController().setGateway(true);
+            this.outboxDrainRequested = true;
 
         }else{
 
@@ -246,8 +824,7 @@ public class BridgeController implements HypeController.HypeControllerDelegate,
 
     }
 
-    @Override
-    public void didSendMessage(String response) {
+    private void handleDidSendMessage(String response) {
 
         BridgeControllerDelegate delegate = getDelegate();
 
@@ -256,20 +833,20 @@ public class BridgeController implements HypeController.HypeControllerDelegate,
         }
     }
 
-    @Override
-    public void didReceiveMessage(Message message) {
+    private void handleDidReceiveMessage(Message message, String channelSid) {
 
         Map<String, String> receivedMessage  = new HashMap<String, String>();
 
         receivedMessage.put("sid", message.getSid());
         receivedMessage.put("body", message.getMessageBody());
-        receivedMessage.put("author", message.getAuthor());
+        receivedMessage.put("author", TwilioController.getAuthorOfMessage(message));
+
+        this.getMetrics().increment(BridgeMetrics.TWILIO_MESSAGES_RECEIVED);
 
-        manageMenssageReceptionsWithReceivedMessage(receivedMessage);
+        manageMenssageReceptionsWithReceivedMessage(receivedMessage, channelSid);
     }
 
-    @Override
-    public void failConnecting(String response) {
+    private void handleFailConnecting(String response) {
 
 
         this.getHypeController().failConnecting(response);
@@ -282,51 +859,140 @@ public class BridgeController implements HypeController.HypeControllerDelegate,
 
     }
 
-    public BridgeControllerDelegate getDelegate() {
+    private void handleDidReceiveAccessTokenForIdentifierForVendor(String identifierForVendor) {
 
-        return delegateWeakReference != null ? delegateWeakReference.get() : null;
+        if(identifierForVendor.equals(this.identifierForvendor)){
+            this.getStartupPipeline().complete(StartupPipeline.Stage.TOKEN_FETCH);
+        }
     }
 
-    public void setBridgeControllerDelegate(BridgeControllerDelegate bridgeControllerDelegate) {
+    private void handleDidCreateClientForIdentifierForVendor(String identifierForVendor) {
 
-        this.delegateWeakReference = new WeakReference<>(bridgeControllerDelegate);
+        if(identifierForVendor.equals(this.identifierForvendor)){
+            this.getStartupPipeline().complete(StartupPipeline.Stage.CLIENT_CREATION);
+        }
     }
 
-    private Context getContext() {
-        return context;
+    private void handleDidFailStartupStageForIdentifierForVendor(StartupPipeline.Stage stage, String identifierForVendor, String reason) {
+
+        // Only the own client is part of the startup, proxied clients fail on their own.
+        if(identifierForVendor.equals(this.identifierForvendor)){
+            this.getStartupPipeline().fail(stage, reason);
+        }
     }
 
-    private ArrayList getSidContainer(){
+    /**
+     * Returns the loop that owns the bridge state. Hype, twilio and UI
+     * callbacks are posted to it and run one at a time on the bridge thread,
+     * and the hype controller runs its own callbacks and probes on it too,
+     * so the state of both is never touched concurrently. The outbound
+     * scheduler keeps sending and retrying from its own threads, and only
+     * touches thread safe state. Work requested by several
+     * events of a batch, like draining the outbox, runs once at its end.
+     */
+    private synchronized BridgeEventLoop getEventLoop(){
+
+        if(this.eventLoop == null){
+
+            HandlerThread thread = new HandlerThread(EVENT_LOOP_THREAD_NAME);
+            thread.start();
+            final Handler handler = new Handler(thread.getLooper());
+
+            this.eventLoop = new BridgeEventLoop(new Executor() {
+
+                @Override
+                public void execute(Runnable command) {
+                    handler.post(command);
+                }
+            });
+            this.eventLoop.setListener(new BridgeEventLoop.Listener() {
+
+                @Override
+                public void onBatchDrained(int eventCount) {
+
+                    getMetrics().increment(BridgeMetrics.BRIDGE_EVENT_BATCHES);
+                    getMetrics().add(BridgeMetrics.BRIDGE_EVENTS, eventCount);
+                    getMetrics().recordMax(BridgeMetrics.BRIDGE_MAX_EVENT_BATCH, eventCount);
+
+                    if(outboxDrainRequested){
+                        outboxDrainRequested = false;
+                        drainOutbox();
+                    }
+                    publishGaugeValues();
+                }
+
+                @Override
+                public void onEventFailed(Runnable event, RuntimeException exception) {
+
+                    Log.e(TAG, "Bridge event failed: " + exception.getMessage(), exception);
+                }
+            });
+        }
+
+        return this.eventLoop;
+    }
+
+    private SidDedupStore getSidContainer(){
 
 
         if(this.sidContainer == null){
 
-            this.sidContainer = new ArrayList();
+            this.sidContainer = new SidDedupStore();
 
         }
 
         return this.sidContainer;
     }
 
-    private HypeController getHypeController(){
+    private MessageReception<Instance> getMessageReception(){
+
+
+        if(this.messageReception == null){
+
+            this.messageReception = new MessageReception<Instance>(this.getInstanceChannel().getRegistry(), this.getSidContainer());
+
+        }
+
+        return this.messageReception;
+    }
+
+    private OutboxStore getOutbox(){
+
+
+        if(this.outbox == null){
+
+            try {
+                this.outbox = new OutboxStore(new File(getContext().getFilesDir(), OUTBOX_DIRECTORY_NAME));
+            } catch (IOException e) {
+                Log.e(TAG, "Error opening outbox: " + e.getMessage());
+            }
+        }
+
+        return this.outbox;
+    }
+
+    private synchronized HypeController getHypeController(){
 
 
         if(this.hypeController == null){
 
             this.hypeController = new HypeController(getContext());
             this.hypeController.setHypeControllerDelegate(this);
+            this.hypeController.setMetrics(getMetrics());
+            this.hypeController.setEventLoop(getEventLoop());
         }
         return this.hypeController;
 
     }
 
-    private TwilioController getTwilioController(){
+    private synchronized TwilioController getTwilioController(){
 
 
         if(this.twilioController == null){
 
             this.twilioController = new TwilioController(getContext());
             this.twilioController.setTwilioControllerDelegate(this);
+            this.twilioController.setMetrics(getMetrics());
 
         }
 
@@ -351,6 +1017,131 @@ public class BridgeController implements HypeController.HypeControllerDelegate,
         this.getTwilioController().generateTwilioClientWithIdentifierForVendor(identifierForVendor);
     }
 
+    private boolean sendMessageIfPossible(String text){
+
+        ChannelModel channel = this.getInstanceChannel().getchannelWithIdentifierVendor(this.identifierForvendor);
+
+        if(channel != null){
+
+            this.sendMessageToTwilioChannelWithText(channel, text);
+            return true;
+        }
+
+        if(this.getHypeController().sendMessageThroughMeshWithText(text)){
+
+            return true;
+        }
+
+        Map<String, Instance> instancesDict = this.getInstanceChannel().getInstanceIdentifierVendor();
+
+        if(instancesDict.isEmpty()){
+
+            return false;
+        }
+
+        String identifierForVendor = this.getHypeController().selectIdentifierForVendorOfBestInstance(instancesDict);
+        Instance instance = instancesDict.get(identifierForVendor);
+        this.getHypeController().sendMessageToCloserInstanceWithTextAndIdentifierForVendor(instance, text, identifierForVendor);
+        return true;
+    }
+
+    private void appendToOutbox(String text){
+
+        try {
+            appendRecordToOutbox(text.getBytes("utf-8"));
+        } catch (UnsupportedEncodingException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Keeps a message written by a peer in the outbox as a binary send
+     * frame, with the identifier for vendor of the peer, so it is sent on
+     * the peer's behalf once there is a channel. Messages of this device
+     * are kept as plain text.
+     * @param text Message text.
+     * @param identifierForVendor Identifier for vendor of the peer that wrote the message.
+     */
+    private void appendPeerMessageToOutbox(String text, String identifierForVendor){
+
+        Map<String, String> frame = new HashMap<String, String>();
+        frame.put("type", "send");
+        frame.put("message", text);
+        frame.put("identifierForVendor", identifierForVendor);
+
+        appendRecordToOutbox(FrameCodec.encode(frame));
+    }
+
+    private void appendRecordToOutbox(byte[] record){
+
+        OutboxStore outbox = this.getOutbox();
+
+        if(outbox == null){
+
+            Log.e(TAG, "No outbox available, dropping message");
+            return;
+        }
+
+        try {
+            outbox.append(record);
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing to outbox: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sends a message read from the outbox, on behalf of its author when a
+     * peer wrote it.
+     * @param record Record of the outbox.
+     * @return false if there is nowhere to send the message yet.
+     */
+    private boolean sendOutboxRecordIfPossible(byte[] record) throws UnsupportedEncodingException {
+
+        if(!FrameCodec.isBinaryFrame(record)){
+            return sendMessageIfPossible(new String(record, "utf-8"));
+        }
+
+        String text = FrameCodec.readField(record, FrameCodec.KEY_MESSAGE);
+        String identifierForVendor = FrameCodec.readField(record, FrameCodec.KEY_IDENTIFIER_FOR_VENDOR);
+
+        // A record that lost its author cannot be attributed, so it is dropped.
+        if(text == null || identifierForVendor == null){
+
+            Log.e(TAG, "Dropping outbox record without an author");
+            return true;
+        }
+        return sendPeerMessageIfPossible(text, identifierForVendor, TwilioController.NO_INGRESS_TIME);
+    }
+
+    /**
+     * Sends the messages waiting in the outbox, oldest first, for as long as
+     * there is a channel or an instance to forward them to.
+     */
+    private void drainOutbox(){
+
+        OutboxStore outbox = this.getOutbox();
+
+        if(outbox == null){
+            return;
+        }
+
+        try {
+            byte [] record;
+
+            while((record = outbox.peek()) != null){
+
+                if(!sendOutboxRecordIfPossible(record)){
+                    return;
+                }
+                outbox.remove();
+            }
+        } catch (UnsupportedEncodingException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading outbox: " + e.getMessage());
+        }
+    }
+
     private void sendMessageToTwilioChannelWithText(ChannelModel channel, String text){
 
 
@@ -358,18 +1149,24 @@ public class BridgeController implements HypeController.HypeControllerDelegate,
 
     }
 
-    private void manageMenssageReceptionsWithReceivedMessage(Map<String, String>receivedMessage){
-
-        String twilioSid = receivedMessage.get("sid");
-        boolean flag = this.getSidContainer().contains(twilioSid);
+    /**
+     * Shows a message received for the first time, and forwards the copies
+     * received by the clients of the peers to the instances subscribed to
+     * the channel they came from, or routed to those out of range. Proxied
+     * peers get the first copy, as they have no client of their own to
+     * receive another one. Messages from the mesh are only shown.
+     * @param receivedMessage Message received.
+     * @param channelSid Sid of the channel the message came from, or null if it came from the mesh.
+     */
+    private void manageMenssageReceptionsWithReceivedMessage(Map<String, String>receivedMessage, String channelSid){
 
-        if(flag){
-            Map<String, Instance> instances = this.getInstanceChannel().instanceIdentifierVendor;
-            this.getHypeController().resendTwilioMessageToInstances(receivedMessage, instances);
+        MessageReception.Delivery<Instance> delivery = this.getMessageReception().receive(receivedMessage.get("sid"), channelSid);
 
-        }else{
+        if(delivery == null){
+            return;
+        }
 
-            this.sidContainer.add(twilioSid);
+        if(delivery.isFirstSighting()){
 
             BridgeControllerDelegate delegate = getDelegate();
 
@@ -377,6 +1174,24 @@ public class BridgeController implements HypeController.HypeControllerDelegate,
                 delegate.didReceiveMessage(receivedMessage);
             }
         }
+
+        Map<String, Instance> instances = delivery.getPeers();
+        Set<String> routedVendors = delivery.getRoutedVendors();
+
+        if(instances.isEmpty() && routedVendors.isEmpty()){
+            return;
+        }
+
+        this.getStartupPipeline().complete(StartupPipeline.Stage.FIRST_BRIDGED_MESSAGE);
+
+        long fanOutStart = System.nanoTime();
+        this.getHypeController().resendTwilioMessageToInstances(receivedMessage, instances);
+
+        // Subscribers out of range get a copy addressed to them, through the relays their join came from.
+        if(!routedVendors.isEmpty()){
+            this.getHypeController().routeTwilioMessageToIdentifiersForVendor(receivedMessage, routedVendors);
+        }
+        this.getMetrics().recordLatency(BridgeMetrics.TWILIO_TO_MESH_FANOUT, (System.nanoTime() - fanOutStart) / 1000);
     }
 
 }
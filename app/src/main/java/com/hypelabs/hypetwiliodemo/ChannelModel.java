@@ -52,4 +52,13 @@ public class ChannelModel {
         return channel;
     }
 
+    /**
+     *
+     * @return sid of the current Channel, or null if there is none
+     */
+    public String getSid() {
+
+        return channel != null ? channel.getSid() : null;
+    }
+
 }
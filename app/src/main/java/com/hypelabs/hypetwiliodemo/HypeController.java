@@ -25,6 +25,7 @@
 package com.hypelabs.hypetwiliodemo;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.util.Log;
 import com.hypelabs.hype.Error;
@@ -40,13 +41,23 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import java.io.UnsupportedEncodingException;
 import java.lang.ref.WeakReference;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.twilio.chat.internal.Utils.toList;
 
-public class HypeController implements StateObserver, NetworkObserver, MessageObserver {
+public class HypeController implements StateObserver, NetworkObserver, MessageObserver, FrameDispatcher.FrameHandler<Instance> {
 
     private Context context;
     private Context getContext() {
@@ -57,6 +68,58 @@ public class HypeController implements StateObserver, NetworkObserver, MessageOb
     private InstanceChannelModel instanceChannel;
     private String announcement;
     private boolean netAccess;
+    private final Set<Instance> binaryFrameInstances = Collections.newSetFromMap(new ConcurrentHashMap<Instance, Boolean>());
+    private FrameDispatcher<Instance> frameDispatcher;
+    private OutboundScheduler<Instance> outboundScheduler;
+    private int compressionThreshold = FrameCodec.DEFAULT_COMPRESSION_THRESHOLD;
+    private RoutingTable<Instance> routingTable;
+    private FrameFanOut<Instance> frameFanOut;
+    private MeshRouter<Instance> meshRouter;
+    private GatewaySelector<Instance> gatewaySelector;
+    private ConsistentHashRing gatewayRing = new ConsistentHashRing();
+    private String assignedGateway;
+    private ScheduledExecutorService probeTimer;
+    private BridgeMetrics metrics;
+    private volatile Executor eventLoop;
+    private Set<String> forwardedJoins = Collections.synchronizedSet(new HashSet<String>());
+    private final AtomicLong frameSequence = new AtomicLong();
+    private String identifierForVendor;
+    private static final byte[] TWILIO_NO = {'N', 'O'};
+
+    /**
+     * Key announced by peers that are able to decode binary frames.
+     */
+    static final String CODEC_KEY = "codec";
+
+    /**
+     * Key holding the hop count of a peer to its nearest gateway.
+     */
+    static final String HOPS_KEY = "hops";
+
+    /**
+     * Key holding the number of times a routed frame may still be forwarded.
+     */
+    static final String TTL_KEY = "ttl";
+
+    /**
+     * Key holding the identifier used to drop routed frames seen before.
+     */
+    static final String FRAME_ID_KEY = "frameId";
+
+    /**
+     * Key holding the load of a peer, in frames queued plus peers served.
+     */
+    static final String LOAD_KEY = "load";
+
+    /**
+     * Key holding the time a probe was sent, echoed back in the answer.
+     */
+    static final String NONCE_KEY = "nonce";
+
+    /**
+     * Interval between two round trip probes to each instance.
+     */
+    static final long PROBE_INTERVAL_MILLIS = 5000;
 
     /**
      * This controller delegate has the purpose of dealing
@@ -90,7 +153,8 @@ public class HypeController implements StateObserver, NetworkObserver, MessageOb
         void didSendMessageFromIdentifierVendor(String instance, String identifierForVendor);
 
         /**
-         * This notification occurs when the hype framework found an instance.
+         * This notification occurs when an instance found by the hype
+         * framework announced its identifier for vendor.
          * @param instance Indicates the instance of the offline client.
          * @param identifierForVendor Indicates the identifier vendor of the offline client.
          */
@@ -108,6 +172,18 @@ public class HypeController implements StateObserver, NetworkObserver, MessageOb
          */
         void didReceiveMessage(Map<String, String> response);
 
+        /**
+         * This notification indicates that Hype framework started.
+         */
+        void didStartHype();
+
+        /**
+         * This notification indicates that the given identifier for vendor
+         * is now served by another gateway, so its twilio client here can go.
+         * @param identifierForVendor Identifier for vendor of the device that left.
+         */
+        void releaseTwilioClientWithIdentifierForVendor(String identifierForVendor);
+
     }
 
     public HypeController(Context context) {
@@ -165,15 +241,21 @@ public class HypeController implements StateObserver, NetworkObserver, MessageOb
         channelDict.put("type", "client");
         channelDict.put("identity", identity);
 
-        JSONObject jsonObject = new JSONObject(channelDict);
-        byte [] data = new byte[0];
-        try {
-            data = jsonObject.toString().getBytes("utf-8");
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
+        // Devices that are not neighbours joined through a relay, the frame
+        // is addressed to them and goes back along the path the join came from.
+        if(instance == null){
+
+            instance = this.getRoutingTable().getReverseRoute(identifierForVendor);
+
+            if(instance == null){
+                return;
+            }
+
+            channelDict.put("identifierForVendor", identifierForVendor);
+            channelDict.put(TTL_KEY, String.valueOf(RoutingTable.DEFAULT_TTL));
         }
 
-        Hype.send(data, instance);
+        sendFrameToInstance(channelDict, instance);
 
     }
 
@@ -191,32 +273,94 @@ public class HypeController implements StateObserver, NetworkObserver, MessageOb
         dict.put("type", "send");
         dict.put("identifierForVendor", identifierForVendor);
 
-        JSONObject jsonObject = new JSONObject(dict);
-        byte [] data = null;
+        sendFrameToInstance(dict, instance);
 
-        try {
-            data = jsonObject.toString().getBytes("utf-8");
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
-            return;
+    }
+
+    /**
+     * This method sends a message towards the nearest gateway, possibly
+     * several hops away, to be posted to twilio on behalf of this device.
+     * @param text Message to send.
+     * @return false if there is no route to a gateway.
+     */
+    public boolean sendMessageThroughMeshWithText(String text) {
+
+        Instance nextHop = selectNextHop();
+
+        if(nextHop == null){
+            return false;
         }
-        Hype.send(data, instance);
 
+        Map<String, String> dict = new HashMap<String, String>();
+
+        dict.put("message", text);
+        dict.put("type", "send");
+        dict.put("identifierForVendor", getIdentifierForVendor());
+        dict.put(TTL_KEY, String.valueOf(RoutingTable.DEFAULT_TTL));
+        dict.put(FRAME_ID_KEY, nextFrameId());
+
+        this.getRoutingTable().markFrameSeen(dict.get(FRAME_ID_KEY));
+        sendFrameToInstance(dict, nextHop);
+        return true;
     }
 
     /**
-     * This method fowards a messages to saved instances.
+     * Picks the instance with the best latency and load score among the
+     * given ones, to send messages through when there is no route.
+     * @param instances Instances keyed by identifier for vendor.
+     * @return Identifier for vendor of the best instance, or null if there are none.
+     */
+    public String selectIdentifierForVendorOfBestInstance(Map<String, Instance> instances) {
+
+        Instance best = this.getGatewaySelector().select(instances.values());
+
+        for (Map.Entry<String, Instance> entry : instances.entrySet()) {
+
+            if(entry.getValue().equals(best)){
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sets whether this device joined its own twilio channel, which makes
+     * it a gateway other devices can route through.
+     * @param gateway Whether this device is a gateway.
+     */
+    public void setGateway(boolean gateway) {
+
+        if(this.getRoutingTable().setGateway(gateway)){
+            onHopCountChanged();
+        }
+    }
+
+    /**
+     * This method fowards a messages to saved instances. Frames are only queued
+     * here, the outbound scheduler sends them from its own thread so the twilio
+     * callback that delivered the message returns right away.
      * @param message Message that will be foward.
      * @param instances Saved instances.
      */
     public void resendTwilioMessageToInstances(Map<String, String> message, Map<String, Instance> instances) {
 
-        for (Map.Entry<String, Instance> entry : instances.entrySet())
-        {
-            Instance instance = entry.getValue();
-            sendMessageToInstance(message, instance);
+        // Neighbours take the message without a ttl, so they do not pass it on.
+        int sent = this.getFrameFanOut().fanOut(message, instances);
 
-        }
+        this.getMetrics().add(BridgeMetrics.MESH_FRAMES_FANNED_OUT, sent);
+    }
+
+    /**
+     * This method routes a message to devices that are not neighbours, one
+     * copy addressed to each, back along the path their join came through.
+     * @param message Message that will be routed.
+     * @param identifiersForVendor Identifiers for vendor of the devices.
+     */
+    public void routeTwilioMessageToIdentifiersForVendor(Map<String, String> message, Collection<String> identifiersForVendor) {
+
+        int sent = this.getFrameFanOut().route(message, identifiersForVendor);
+
+        this.getMetrics().add(BridgeMetrics.MESH_FRAMES_FANNED_OUT, sent);
     }
 
     /**
@@ -255,30 +399,72 @@ public class HypeController implements StateObserver, NetworkObserver, MessageOb
     }
 
     @Override
-    public void onHypeMessageReceived(Message message, Instance instance) {
+    public void onHypeMessageReceived(final Message message, final Instance instance) {
 
         Log.i(TAG, String.format("Hype got a message from: %s", instance.getStringIdentifier()));
 
-        String jsonString = new String(message.getData());
+        runOnEventLoop(new Runnable() {
+
+            @Override
+            public void run() {
+                handleHypeMessageReceived(message.getData(), instance);
+            }
+        });
+    }
+
+    private void handleHypeMessageReceived(byte[] data, Instance instance) {
+
+        this.getMetrics().increment(BridgeMetrics.MESH_FRAMES_RECEIVED);
 
-        JSONObject jsonObj = null;
+        // Binary frames are routed straight from the type tag in their header,
+        // only the legacy JSON frames go through the dictionary below.
         try {
-            jsonObj = new JSONObject(jsonString);
-        } catch (JSONException e) {
-            return ;
-        }
+            if(this.getFrameDispatcher().dispatch(data, instance)){
 
-        String identifier = instance.getStringIdentifier();
+                this.binaryFrameInstances.add(instance);
+                return;
+            }
+        } catch (IllegalArgumentException e) {
+            Log.i(TAG, String.format("Hype got a malformed frame: %s", e.getMessage()));
+            return;
+        }
 
         Map<String,String> response = null;
         try {
-            response = toMap(jsonObj);
-            if(response.get("type").equals("announcement") && response.get("twilio").equals("NO")){
+            response = decodeJsonFrameFromInstance(data, instance);
+            if(response == null || response.get("type") == null){
+
+                return;
+
+            }else if(response.get("type").equals("announcement")){
+
+                this.getMeshRouter().onRoute(response.get(HOPS_KEY), instance);
+                processLoadWithInstance(response.get(LOAD_KEY), instance);
+
+                if("NO".equals(response.get("twilio"))){
+
+                    processAnnouncementWithIdentifierForVendorAndInstance(response.get("vendorIdentifier"), instance);
+                }
+
+            }else if(response.get("type").equals("route")){
 
-                processAnnouncementResponsesWithDictionaryAndInstance(response, instance);
+                this.getMeshRouter().onRoute(response.get(HOPS_KEY), instance);
 
-            }else if(response.get("type").equals("announcement") && response.get("twilio").equals("YES")){
+            }else if(response.get("type").equals("leave")){
 
+                processLeaveWithIdentifierForVendorAndInstance(response.get("identifierForVendor"), instance);
+
+            }else if(response.get("type").equals("ping")){
+
+                processPingWithNonceAndInstance(response.get(NONCE_KEY), instance);
+
+            }else if(response.get("type").equals("pong")){
+
+                processPongWithNonceAndLoadAndInstance(response.get(NONCE_KEY), response.get(LOAD_KEY), instance);
+
+            }else if(response.get("type").equals("join")){
+
+                this.getMeshRouter().onJoin(response, instance);
 
             }else if(response.get("type").equals("client")){
 
@@ -286,21 +472,105 @@ public class HypeController implements StateObserver, NetworkObserver, MessageOb
 
             }else if(response.get("type").equals("send")){
 
-                processSendsWithResponse(response);
+                this.getMeshRouter().onSend(response, instance);
 
             }else if(response.get("type").equals("receive")){
 
-                processReceivesWithResponse(response);
+                this.getMeshRouter().onReceive(response, instance);
             }
         } catch (JSONException e) {
             e.printStackTrace();
         }
     }
 
+    // FrameHandler Notifications
+    @Override
+    public void onAnnouncementFrame(byte[] frame, Instance instance) {
+
+        this.getMeshRouter().onRoute(FrameCodec.readField(frame, FrameCodec.KEY_HOPS), instance);
+        processLoadWithInstance(FrameCodec.readField(frame, FrameCodec.KEY_LOAD), instance);
+
+        if(FrameCodec.fieldEquals(frame, FrameCodec.KEY_TWILIO, TWILIO_NO)){
+
+            processAnnouncementWithIdentifierForVendorAndInstance(FrameCodec.readField(frame, FrameCodec.KEY_VENDOR_IDENTIFIER), instance);
+        }
+    }
+
+    @Override
+    public void onClientFrame(byte[] frame, Instance instance) {
+
+        String identifierForVendor = FrameCodec.readField(frame, FrameCodec.KEY_IDENTIFIER_FOR_VENDOR);
+
+        // Only frames passed on to another device are decoded, as they are
+        // sent again with every field they came with.
+        if(identifierForVendor != null && !identifierForVendor.equals(getIdentifierForVendor())){
+
+            processClientWithResponse(decodeBinaryFrame(frame));
+            return;
+        }
+
+        Map<String, String> response = new HashMap<String, String>();
+        response.put("type", "client");
+        response.put("identity", FrameCodec.readField(frame, FrameCodec.KEY_IDENTITY));
+
+        processJoinTwilioWithResponse(response);
+    }
+
+    @Override
+    public void onSendFrame(byte[] frame, Instance instance) {
+
+        this.getMeshRouter().onSendFrame(frame, instance);
+    }
+
+    @Override
+    public void onReceiveFrame(byte[] frame, Instance instance) {
+
+        this.getMeshRouter().onReceiveFrame(frame, instance);
+    }
+
+    @Override
+    public void onRouteFrame(byte[] frame, Instance instance) {
+
+        this.getMeshRouter().onRouteFrame(frame, instance);
+    }
+
+    @Override
+    public void onJoinFrame(byte[] frame, Instance instance) {
+
+        this.getMeshRouter().onJoinFrame(frame, instance);
+    }
+
+    @Override
+    public void onLeaveFrame(byte[] frame, Instance instance) {
+
+        processLeaveWithIdentifierForVendorAndInstance(FrameCodec.readField(frame, FrameCodec.KEY_IDENTIFIER_FOR_VENDOR), instance);
+    }
+
+    @Override
+    public void onPingFrame(byte[] frame, Instance instance) {
+
+        processPingWithNonceAndInstance(FrameCodec.readField(frame, FrameCodec.KEY_NONCE), instance);
+    }
+
+    @Override
+    public void onPongFrame(byte[] frame, Instance instance) {
+
+        processPongWithNonceAndLoadAndInstance(FrameCodec.readField(frame, FrameCodec.KEY_NONCE),
+                FrameCodec.readField(frame, FrameCodec.KEY_LOAD), instance);
+    }
+
+    @Override
+    public void onUnknownFrame(byte[] frame, Instance instance) {
+
+        Log.i(TAG, String.format("Hype got a frame of unknown type: %d", FrameCodec.readType(frame)));
+    }
+
     @Override
     public void onHypeMessageFailedSending(MessageInfo messageInfo, Instance instance, Error error) {
         Log.i(TAG, String.format("Hype failed to send message: %d [%s]", messageInfo.getIdentifier(), error.getDescription()));
 
+        this.getOutboundScheduler().onFrameFailed(messageInfo.getIdentifier());
+
     }
 
     @Override
@@ -313,16 +583,32 @@ public class HypeController implements StateObserver, NetworkObserver, MessageOb
     public void onHypeMessageDelivered(MessageInfo messageInfo, Instance instance, float v, boolean b) {
         Log.i(TAG, String.format("Hype delivered a message"));
 
+        // Deliveries are reported progressively, the credit only comes
+        // back once the whole frame made it to the other side.
+        if(b){
+            this.getOutboundScheduler().onFrameDelivered(messageInfo.getIdentifier());
+        }
+
     }
 
     @Override
-    public void onHypeInstanceFound(Instance instance) {
+    public void onHypeInstanceFound(final Instance instance) {
         Log.i(TAG, String.format("Hype found instance: %s", instance.getStringIdentifier()));
 
+        runOnEventLoop(new Runnable() {
+
+            @Override
+            public void run() {
+                handleHypeInstanceFound(instance);
+            }
+        });
+    }
+
+    private void handleHypeInstanceFound(Instance instance) {
+
         if(instance.isResolved()){
 
             sendResponseToResolvedInstance(instance);
-            notifyHypeControlllerOnInstanceResolved(instance);
 
         }else{
 
@@ -332,18 +618,50 @@ public class HypeController implements StateObserver, NetworkObserver, MessageOb
     }
 
     @Override
-    public void onHypeInstanceLost(Instance instance, Error error) {
+    public void onHypeInstanceLost(final Instance instance, Error error) {
         Log.i(TAG, String.format("Hype lost instance: %s [%s]", instance.getStringIdentifier(), error.getDescription()));
 
+        runOnEventLoop(new Runnable() {
+
+            @Override
+            public void run() {
+                handleHypeInstanceLost(instance);
+            }
+        });
+    }
+
+    private void handleHypeInstanceLost(Instance instance) {
+
+        this.getOutboundScheduler().removePeer(instance);
+        this.binaryFrameInstances.remove(instance);
+
+        String identifierForVendor = this.getInstanceChannel().removeInstance(instance);
+
+        if(identifierForVendor != null){
+            this.forwardedJoins.remove(identifierForVendor);
+        }
+
+        if(this.getRoutingTable().removeNeighbour(instance)){
+            onHopCountChanged();
+        }
+
+        this.getGatewaySelector().remove(instance);
+        updateGatewayAssignment();
+
         notifyHypeControllerOnInstanceLost(instance);
     }
 
     @Override
-    public void onHypeInstanceResolved(Instance instance) {
+    public void onHypeInstanceResolved(final Instance instance) {
         Log.i(TAG, String.format("Hype resolved instance: %s", instance.getStringIdentifier()));
 
-        sendResponseToResolvedInstance(instance);
-        notifyHypeControlllerOnInstanceResolved(instance);
+        runOnEventLoop(new Runnable() {
+
+            @Override
+            public void run() {
+                sendResponseToResolvedInstance(instance);
+            }
+        });
 
     }
 
@@ -357,12 +675,39 @@ public class HypeController implements StateObserver, NetworkObserver, MessageOb
     public void onHypeStart() {
         Log.i(TAG, "Hype started!");
 
+        runOnEventLoop(new Runnable() {
+
+            @Override
+            public void run() {
+                handleHypeStart();
+            }
+        });
+    }
+
+    private void handleHypeStart() {
+
+        startProbing();
+
+        HypeControllerDelegate delegate = getDelegate();
+
+        if (delegate != null) {
+            delegate.didStartHype();
+        }
+
     }
 
     @Override
     public void onHypeStop(Error error) {
         Log.i(TAG, String.format("Hype stopped "));
 
+        runOnEventLoop(new Runnable() {
+
+            @Override
+            public void run() {
+                stopProbing();
+            }
+        });
+
     }
 
     @Override
@@ -388,61 +733,679 @@ public class HypeController implements StateObserver, NetworkObserver, MessageOb
         return "{{access_token}}";
     }
 
-    private void sendMessageToInstance(Map<String, String> message, Instance instance){
+    /**
+     * Encodes a frame for the given instance and sends it. Peers that announced
+     * support for binary frames get the compact encoding, everyone else keeps
+     * getting JSON so older builds still understand us.
+     * @param frame Frame dictionary to send.
+     * @param instance Instance that will receive the frame.
+     */
+    private void sendFrameToInstance(Map<String, String> frame, Instance instance){
+
+        byte [] data = encodeFrameForInstance(frame, instance);
+
+        if(data == null){
+            return;
+        }
+        this.getOutboundScheduler().enqueue(data, instance);
+    }
 
-        Map<String, String> dict = message;
+    private byte[] encodeFrameForInstance(Map<String, String> frame, Instance instance){
 
-        if(dict.get("type") == null){
+        if(supportsBinaryFrames(instance)){
 
-            dict.put("type", "receive");
+            return FrameCodec.encode(frame, this.compressionThreshold);
         }
-        JSONObject jsonObject = new JSONObject(dict);
-        byte [] data = new byte[0];
+
+        return encodeJsonFrame(frame);
+    }
+
+    private byte[] encodeJsonFrame(Map<String, String> frame){
+
+        JSONObject jsonObject = new JSONObject(frame);
         try {
-            data = jsonObject.toString().getBytes("utf-8");
+            return jsonObject.toString().getBytes("utf-8");
         } catch (UnsupportedEncodingException e) {
             e.printStackTrace();
+            return null;
+        }
+    }
+
+    private Map<String, String> decodeBinaryFrame(byte[] frame){
+
+        try {
+            return FrameCodec.decode(frame);
+        } catch (IllegalArgumentException e) {
+            Log.i(TAG, String.format("Hype got a malformed frame: %s", e.getMessage()));
+            return null;
+        }
+    }
+
+    private Map<String, String> decodeJsonFrameFromInstance(byte[] data, Instance instance) throws JSONException {
+
+        String jsonString;
+        try {
+            jsonString = new String(data, "utf-8");
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        }
+
+        Map<String, String> response = toMap(new JSONObject(jsonString));
+
+        // Binary frames are only sent to peers decoding the same codec version.
+        String codecVersion = response.get(CODEC_KEY);
+
+        if(String.valueOf(FrameCodec.VERSION).equals(codecVersion)){
+
+            this.binaryFrameInstances.add(instance);
+
+        }else if(codecVersion != null){
+
+            this.binaryFrameInstances.remove(instance);
+        }
+        return response;
+    }
+
+    private boolean supportsBinaryFrames(Instance instance){
+
+        return this.binaryFrameInstances.contains(instance);
+    }
+
+    /**
+     * Sets the size of the frame fields from which binary frames are compressed.
+     * @param compressionThreshold Threshold in bytes, or FrameCodec.NO_COMPRESSION.
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+
+        this.compressionThreshold = compressionThreshold;
+        this.getFrameFanOut().setCompressionThreshold(compressionThreshold);
+    }
+
+    /**
+     * Replaces the scheduler used to send frames, so the queue capacity and the
+     * backpressure policy can be configured.
+     * @param outboundScheduler Scheduler to use.
+     */
+    public synchronized void setOutboundScheduler(OutboundScheduler<Instance> outboundScheduler) {
+
+        this.outboundScheduler = outboundScheduler;
+    }
+
+    /**
+     * @return Scheduler that queues and sends frames to each instance.
+     */
+    public synchronized OutboundScheduler<Instance> getOutboundScheduler(){
+
+        if(this.outboundScheduler == null){
+
+            this.outboundScheduler = new OutboundScheduler<Instance>(new OutboundScheduler.Transport<Instance>() {
+
+                @Override
+                public long send(byte[] data, Instance instance) {
+
+                    // Progress tracking is what makes Hype report deliveries,
+                    // which the scheduler needs to give credits back.
+                    Message message = Hype.send(data, instance, true);
+
+                    if(message == null){
+                        return OutboundScheduler.NO_IDENTIFIER;
+                    }
+                    return message.getInfo().getIdentifier();
+                }
+            });
+            this.outboundScheduler.setRetryPolicy(new RetryPolicy(), Executors.newSingleThreadScheduledExecutor());
+            this.outboundScheduler.setDeliveryListener(new OutboundScheduler.DeliveryListener<Instance>() {
+
+                @Override
+                public void onFrameDelivered(Instance instance, long latencyMillis) {
+
+                    getGatewaySelector().recordDeliveryLatency(instance, latencyMillis);
+                    getMetrics().recordLatency(BridgeMetrics.MESH_DELIVERY, latencyMillis);
+                }
+            });
+            this.outboundScheduler.setDeadLetterListener(new OutboundScheduler.DeadLetterListener<Instance>() {
+
+                @Override
+                public void onFrameGivenUp(byte[] data, Instance instance, int attempts) {
+
+                    Log.i(TAG, String.format("Hype gave up sending a frame to %s after %d attempts", instance.getStringIdentifier(), attempts));
+                }
+            });
+        }
+
+        return this.outboundScheduler;
+    }
+
+    private FrameDispatcher<Instance> getFrameDispatcher(){
+
+        if(this.frameDispatcher == null){
+
+            this.frameDispatcher = new FrameDispatcher<Instance>(this);
+        }
+
+        return this.frameDispatcher;
+    }
+
+    /**
+     * @return Routing table towards the nearest gateway.
+     */
+    public RoutingTable<Instance> getRoutingTable(){
+
+        if(this.routingTable == null){
+
+            this.routingTable = new RoutingTable<Instance>();
+        }
+
+        return this.routingTable;
+    }
+
+    private FrameFanOut<Instance> getFrameFanOut(){
+
+        if(this.frameFanOut == null){
+
+            this.frameFanOut = new FrameFanOut<Instance>(new MeshTransport<Instance>() {
+
+                @Override
+                public boolean supportsBinaryFrames(Instance instance) {
+                    return HypeController.this.supportsBinaryFrames(instance);
+                }
+
+                @Override
+                public byte[] encodeLegacyFrame(Map<String, String> frame) {
+                    return encodeJsonFrame(frame);
+                }
+
+                @Override
+                public void send(byte[] data, Instance instance) {
+                    getOutboundScheduler().enqueue(data, instance);
+                }
+            }, this.getRoutingTable());
+            this.frameFanOut.setCompressionThreshold(this.compressionThreshold);
+        }
+
+        return this.frameFanOut;
+    }
+
+    private MeshRouter<Instance> getMeshRouter(){
+
+        if(this.meshRouter == null){
+
+            this.meshRouter = new MeshRouter<Instance>(getIdentifierForVendor(), this.getRoutingTable(), this.getFrameFanOut(), new MeshRouter.Host<Instance>() {
+
+                @Override
+                public void send(Map<String, String> frame, Instance instance) {
+                    sendFrameToInstance(frame, instance);
+                }
+
+                @Override
+                public Instance selectNextHop() {
+                    return HypeController.this.selectNextHop();
+                }
+
+                @Override
+                public Instance getNeighbour(String identifierForVendor) {
+                    return getInstanceChannel().getinstanceWithIdentifierVendor(identifierForVendor);
+                }
+
+                @Override
+                public void onRouteChanged() {
+                    onHopCountChanged();
+                }
+
+                @Override
+                public void onJoin(String identifierForVendor) {
+
+                    HypeControllerDelegate delegate = getDelegate();
+
+                    if (delegate != null) {
+                        delegate.requestTwilioClientWithidentifierForVendor(identifierForVendor);
+                    }
+                }
+
+                @Override
+                public void onSend(String message, String identifierForVendor, String frameId) {
+                    processSendWithMessageAndIdentifierForVendor(message, identifierForVendor);
+                }
+
+                @Override
+                public void onReceive(Map<String, String> message) {
+
+                    HypeControllerDelegate delegate = getDelegate();
+
+                    if (delegate != null) {
+                        delegate.didReceiveMessage(message);
+                    }
+                }
+
+                @Override
+                public void onDrop(Map<String, String> frame) {
+                    Log.i(TAG, String.format("Hype dropped a routed %s frame for %s", frame.get("type"), frame.get("identifierForVendor")));
+                }
+            });
+        }
+
+        return this.meshRouter;
+    }
+
+    /**
+     * Sets the registry the controller reports its metrics to.
+     * @param metrics Registry to use.
+     */
+    public void setMetrics(BridgeMetrics metrics){
+
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets the executor the Hype callbacks and the probes run on. The bridge
+     * calls this controller from its event loop, so running the callbacks
+     * there as well leaves the instances, routes and gateway assignment to
+     * a single thread. Without one, callbacks run on the thread Hype calls
+     * them from.
+     * @param eventLoop Executor running one event at a time, or null.
+     */
+    public void setEventLoop(Executor eventLoop){
+
+        this.eventLoop = eventLoop;
+    }
+
+    private void runOnEventLoop(Runnable event){
+
+        Executor eventLoop = this.eventLoop;
+
+        if(eventLoop == null){
+
+            event.run();
+            return;
+        }
+        eventLoop.execute(event);
+    }
+
+    private BridgeMetrics getMetrics(){
+
+        if(this.metrics == null){
+
+            this.metrics = new BridgeMetrics();
+        }
+
+        return this.metrics;
+    }
+
+    /**
+     * @return Selector scoring instances by latency and load.
+     */
+    public GatewaySelector<Instance> getGatewaySelector(){
+
+        if(this.gatewaySelector == null){
+
+            this.gatewaySelector = new GatewaySelector<Instance>();
+        }
+
+        return this.gatewaySelector;
+    }
+
+    /**
+     * Picks the best scoring neighbour among those on a shortest path to a
+     * gateway, so sends avoid slow or busy relays.
+     * @return Neighbour to send through, or null if there is no route.
+     */
+    private Instance selectNextHop(){
+
+        Instance best = this.getGatewaySelector().select(this.getRoutingTable().getNextHopCandidates());
+
+        return best != null ? best : this.getRoutingTable().getNextHop();
+    }
+
+    private int currentLoad(){
+
+        return this.getOutboundScheduler().getTotalQueueDepth() + this.getInstanceChannel().getInstanceIdentifierVendor().size();
+    }
+
+    private synchronized void startProbing(){
+
+        if(this.probeTimer != null){
+            return;
+        }
+
+        this.probeTimer = Executors.newSingleThreadScheduledExecutor();
+        this.probeTimer.scheduleAtFixedRate(new Runnable() {
+
+            @Override
+            public void run() {
+
+                runOnEventLoop(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        probeInstances();
+                    }
+                });
+            }
+        }, PROBE_INTERVAL_MILLIS, PROBE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void stopProbing(){
+
+        if(this.probeTimer != null){
+
+            this.probeTimer.shutdownNow();
+            this.probeTimer = null;
+        }
+    }
+
+    /**
+     * Sends a probe to every instance able to answer it. Probes go through
+     * the outbound scheduler like any other frame, so the round trip time
+     * includes the time spent queued behind other traffic.
+     */
+    private void probeInstances(){
+
+        String nonce = String.valueOf(SystemClock.elapsedRealtime());
+
+        for (Instance instance : this.getInstanceChannel().getInstanceIdentifierVendor().values()) {
+
+            if(!supportsBinaryFrames(instance)){
+                continue;
+            }
+
+            Map<String, String> dict = new HashMap<String, String>();
+
+            dict.put("type", "ping");
+            dict.put(NONCE_KEY, nonce);
+
+            sendFrameToInstance(dict, instance);
+        }
+    }
+
+    private void processPingWithNonceAndInstance(String nonce, Instance instance){
+
+        if(nonce == null){
+            return;
+        }
+
+        Map<String, String> dict = new HashMap<String, String>();
+
+        dict.put("type", "pong");
+        dict.put(NONCE_KEY, nonce);
+        dict.put(LOAD_KEY, String.valueOf(currentLoad()));
+
+        sendFrameToInstance(dict, instance);
+    }
+
+    private void processPongWithNonceAndLoadAndInstance(String nonce, String load, Instance instance){
+
+        try {
+            long roundTrip = SystemClock.elapsedRealtime() - Long.parseLong(nonce);
+
+            if(roundTrip >= 0){
+                this.getGatewaySelector().recordRoundTrip(instance, roundTrip);
+            }
+        } catch (NumberFormatException e) {
+            Log.i(TAG, String.format("Hype got a malformed probe answer: %s", nonce));
+        }
+
+        processLoadWithInstance(load, instance);
+    }
+
+    private void processLoadWithInstance(String load, Instance instance){
+
+        if(load == null){
+            return;
         }
-        Hype.send(data, instance);
 
+        try {
+            this.getGatewaySelector().recordLoad(instance, Integer.parseInt(load));
+        } catch (NumberFormatException e) {
+            Log.i(TAG, String.format("Hype got a malformed load: %s", load));
+        }
     }
 
-    private void processAnnouncementResponsesWithDictionaryAndInstance(Map<String, String>response, Instance instance){
+    private String getIdentifierForVendor(){
+
+        if(this.identifierForVendor == null){
+
+            this.identifierForVendor = Settings.Secure.getString(getContext().getContentResolver(), Settings.Secure.ANDROID_ID);
+        }
+
+        return this.identifierForVendor;
+    }
 
-        this.getInstanceChannel().setInstanceIdentifierVendor(instance, response.get("vendorIdentifier"));
+    private String nextFrameId(){
+
+        return getIdentifierForVendor() + ":" + this.frameSequence.incrementAndGet();
+    }
+
+    private void forwardJoinWithIdentifierForVendor(String identifierForVendor){
+
+        Instance nextHop = this.getRoutingTable().getNextHop();
+
+        if(nextHop == null || !this.forwardedJoins.add(identifierForVendor)){
+            return;
+        }
+
+        Map<String, String> dict = new HashMap<String, String>();
+
+        dict.put("type", "join");
+        dict.put("identifierForVendor", identifierForVendor);
+        dict.put(TTL_KEY, String.valueOf(RoutingTable.DEFAULT_TTL));
+        dict.put(FRAME_ID_KEY, nextFrameId());
+
+        this.getRoutingTable().markFrameSeen(dict.get(FRAME_ID_KEY));
+        sendFrameToInstance(dict, nextHop);
+    }
+
+    /**
+     * Tells every neighbour the new hop count of this device and, once there
+     * is a route to a gateway, relays the joins of the neighbours that
+     * announced themselves before it existed.
+     */
+    private void onHopCountChanged(){
+
+        RoutingTable<Instance> routingTable = this.getRoutingTable();
+
+        Log.i(TAG, String.format("Hype is now %d hops away from a gateway", routingTable.getHopCount()));
+
+        for (Instance neighbour : routingTable.getNeighbours()) {
+
+            Map<String, String> dict = new HashMap<String, String>();
+
+            dict.put("type", "route");
+            dict.put(HOPS_KEY, String.valueOf(routingTable.getAdvertisedHopCount(neighbour)));
+
+            sendFrameToInstance(dict, neighbour);
+        }
+
+        updateGatewayAssignment();
+
+        Instance nextHop = routingTable.getNextHop();
+
+        if(nextHop == null){
+            return;
+        }
+
+        // Peers advertising routes join by themselves, only legacy peers
+        // need the join relayed on their behalf.
+        for (Map.Entry<String, Instance> entry : this.getInstanceChannel().getInstanceIdentifierVendor().entrySet()) {
+
+            if(!entry.getValue().equals(nextHop) && !routingTable.hasNeighbour(entry.getValue())){
+                forwardJoinWithIdentifierForVendor(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Picks the gateway that should hold the twilio client of this device,
+     * and joins it. Among the gateways in range, the one owning our identifier
+     * for vendor on a consistent hash ring is chosen, so every device in
+     * range of the same gateways agrees and each of them costs exactly one
+     * client across the mesh; a gateway leaving only moves the devices it
+     * served. Without a gateway in range, the join goes through the next
+     * hop to a gateway further away. The previous gateway, if still in
+     * range, is told to release its client.
+     */
+    private synchronized void updateGatewayAssignment(){
+
+        RoutingTable<Instance> routingTable = this.getRoutingTable();
+        Set<String> visibleGateways = new HashSet<String>();
+
+        for (Instance gateway : routingTable.getGatewayNeighbours()) {
+
+            String identifierForVendor = this.getInstanceChannel().getIdentifierVendorWithInstance(gateway);
+
+            if(identifierForVendor != null){
+                visibleGateways.add(identifierForVendor);
+            }
+        }
+
+        for (String node : this.gatewayRing.getNodes()) {
+            if(!visibleGateways.contains(node)){
+                this.gatewayRing.removeNode(node);
+            }
+        }
+
+        for (String identifierForVendor : visibleGateways) {
+            this.gatewayRing.addNode(identifierForVendor);
+        }
+
+        String target = null;
+
+        if(!routingTable.isGateway()){
+
+            target = this.gatewayRing.getNode(getIdentifierForVendor());
+
+            if(target == null){
+                target = this.getInstanceChannel().getIdentifierVendorWithInstance(routingTable.getNextHop());
+            }
+        }
+
+        String previous = this.assignedGateway;
+
+        if(target == null ? previous == null : target.equals(previous)){
+            return;
+        }
+
+        this.assignedGateway = target;
+
+        Instance previousInstance = this.getInstanceChannel().getinstanceWithIdentifierVendor(previous);
+
+        if(previousInstance != null){
+
+            Map<String, String> dict = new HashMap<String, String>();
+
+            dict.put("type", "leave");
+            dict.put("identifierForVendor", getIdentifierForVendor());
+
+            sendFrameToInstance(dict, previousInstance);
+        }
+
+        Instance targetInstance = this.getInstanceChannel().getinstanceWithIdentifierVendor(target);
+
+        if(targetInstance == null){
+            return;
+        }
+
+        Log.i(TAG, String.format("Hype joins twilio through %s", target));
+
+        Map<String, String> dict = new HashMap<String, String>();
+
+        dict.put("type", "join");
+        dict.put("identifierForVendor", getIdentifierForVendor());
+        dict.put(TTL_KEY, String.valueOf(RoutingTable.DEFAULT_TTL));
+        dict.put(FRAME_ID_KEY, nextFrameId());
+
+        this.getRoutingTable().markFrameSeen(dict.get(FRAME_ID_KEY));
+        sendFrameToInstance(dict, targetInstance);
+    }
+
+    private void processAnnouncementWithIdentifierForVendorAndInstance(String identifierForVendor, Instance instance){
+
+        this.getInstanceChannel().setInstanceIdentifierVendor(instance, identifierForVendor);
+        notifyHypeControlllerOnInstanceResolved(instance, identifierForVendor);
+
+        // Peers advertising routes join their assigned gateway by themselves,
+        // answering their announcement would give them a client on every
+        // gateway in range.
+        if(this.getRoutingTable().hasNeighbour(instance)){
+
+            updateGatewayAssignment();
+            return;
+        }
+
+        // Devices with a route to a gateway further away relay the request
+        // to it instead of asking twilio for a client they cannot reach.
+        Instance nextHop = this.getRoutingTable().getNextHop();
+
+        if(nextHop != null && !nextHop.equals(instance)){
+
+            forwardJoinWithIdentifierForVendor(identifierForVendor);
+            return;
+        }
+
+        HypeControllerDelegate delegate = getDelegate();
+
+        if (delegate != null) {
+            delegate.requestTwilioClientWithidentifierForVendor(identifierForVendor);
+        }
+    }
+
+    private void processLeaveWithIdentifierForVendorAndInstance(String identifierForVendor, Instance instance){
+
+        // Only the device itself may release its client.
+        if(identifierForVendor == null || !identifierForVendor.equals(this.getInstanceChannel().getIdentifierVendorWithInstance(instance))){
+            return;
+        }
 
         HypeControllerDelegate delegate = getDelegate();
 
         if (delegate != null) {
-            delegate.requestTwilioClientWithidentifierForVendor(response.get("vendorIdentifier"));
+            delegate.releaseTwilioClientWithIdentifierForVendor(identifierForVendor);
         }
     }
 
-    private void processSendsWithResponse(Map<String, String> response){
+    private void processSendWithMessageAndIdentifierForVendor(String message, String identifierForVendor){
 
         HypeControllerDelegate delegate = getDelegate();
 
         if (delegate != null) {
-            delegate.didSendMessageFromIdentifierVendor( response.get("message"), response.get("identifierForVendor"));
+            delegate.didSendMessageFromIdentifierVendor(message, identifierForVendor);
         }
     }
 
     private void processClientWithResponse(Map<String, String> response){
 
-            this.announcement = "MIM";
-            HypeControllerDelegate delegate = getDelegate();
+            if(response == null){
+                return;
+            }
+
+            String identifierForVendor = response.get("identifierForVendor");
+
+            if(identifierForVendor != null && !identifierForVendor.equals(getIdentifierForVendor())){
 
-            if (delegate != null) {
-                delegate.didJoinTwilio(response);
+                Instance instance = this.getInstanceChannel().getinstanceWithIdentifierVendor(identifierForVendor);
+
+                if(instance != null){
+
+                    // The addressee is a neighbour, which takes the frame as it would from a gateway.
+                    response.remove("identifierForVendor");
+                    response.remove(TTL_KEY);
+                    sendFrameToInstance(response, instance);
+                    return;
+                }
+
+                this.getMeshRouter().forward(response, this.getRoutingTable().getReverseRoute(identifierForVendor));
+                return;
             }
+
+            processJoinTwilioWithResponse(response);
     }
 
-    private void processReceivesWithResponse(Map<String, String> response){
+    private void processJoinTwilioWithResponse(Map<String, String> response){
 
+        this.announcement = "MIM";
         HypeControllerDelegate delegate = getDelegate();
 
         if (delegate != null) {
-            delegate.didReceiveMessage(response);
+            delegate.didJoinTwilio(response);
         }
     }
 
@@ -463,6 +1426,12 @@ public class HypeController implements StateObserver, NetworkObserver, MessageOb
         }
 
         response.put("vendorIdentifier", identifierForVendor);
+        response.put(HOPS_KEY, String.valueOf(this.getRoutingTable().getAdvertisedHopCount(instance)));
+        response.put(LOAD_KEY, String.valueOf(currentLoad()));
+
+        // Announcements are the first frame a peer sees from us, so they always go
+        // out as JSON and advertise the binary codec version we are able to decode.
+        response.put(CODEC_KEY, String.valueOf(FrameCodec.VERSION));
         JSONObject jsonObject = new JSONObject(response);
         byte [] data = new byte[0];
         try {
@@ -470,13 +1439,11 @@ public class HypeController implements StateObserver, NetworkObserver, MessageOb
         } catch (UnsupportedEncodingException e) {
             e.printStackTrace();
         }
-        Hype.send(data, instance);
+        this.getOutboundScheduler().enqueue(data, instance);
 
     }
 
-    private void notifyHypeControlllerOnInstanceResolved(Instance instance){
-
-        String identifierForVendor = Settings.Secure.getString(getContext().getContentResolver(), Settings.Secure.ANDROID_ID);
+    private void notifyHypeControlllerOnInstanceResolved(Instance instance, String identifierForVendor){
 
         HypeControllerDelegate delegate = getDelegate();
 
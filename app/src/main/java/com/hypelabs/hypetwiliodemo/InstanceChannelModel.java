@@ -26,31 +26,34 @@
 package com.hypelabs.hypetwiliodemo;
 
 import com.hypelabs.hype.Instance;
-import java.util.HashMap;
 import java.util.Map;
 
 /**
  * This class maps Hype instances with idenfiers for vendor
  * and ChannelModels with identifiers for vendor, so we can
- * associate hype instances with channels.
+ * associate hype instances with channels. The maps are kept in a
+ * PeerRegistry, so they can be changed from any callback thread and an
+ * instance is mapped back to its identifier for vendor in constant time.
  */
 public class InstanceChannelModel {
 
+    private final PeerRegistry<Instance, ChannelModel> registry = new PeerRegistry<Instance, ChannelModel>();
+
     /**
-     * This Map maps Hype instances with identifier for vendors.
+     * @return Registry the maps are kept in.
      */
-    public Map<String, Instance> instanceIdentifierVendor;
+    PeerRegistry<Instance, ChannelModel> getRegistry() {
+
+        return this.registry;
+    }
 
     /**
-     * @return
+     * @return Snapshot of the Hype instances keyed by identifier for vendor,
+     * safe to iterate while instances are found and lost.
      */
     public Map<String, Instance> getInstanceIdentifierVendor() {
 
-        if (instanceIdentifierVendor == null) {
-            this.instanceIdentifierVendor = new HashMap<String, Instance>();
-        }
-
-        return this.instanceIdentifierVendor;
+        return this.registry.snapshotPeers();
     }
 
     /**
@@ -60,8 +63,26 @@ public class InstanceChannelModel {
      */
     public void setInstanceIdentifierVendor(Instance instance, String identifierVendor){
 
-        getInstanceIdentifierVendor().put(identifierVendor, instance);
+        this.registry.putPeer(identifierVendor, instance);
+
+    }
+
+    /**
+     * Removes an Instance object.
+     * @param instance Instance object lost.
+     * @return Identifier for vendor of the instance, or null if it was not known.
+     */
+    public String removeInstance(Instance instance){
 
+        return this.registry.removePeer(instance);
+    }
+
+    /**
+     * @return true if no instance is known.
+     */
+    public boolean hasNoInstances(){
+
+        return this.registry.hasNoPeers();
     }
 
     /**
@@ -71,8 +92,27 @@ public class InstanceChannelModel {
      */
     public void setChannelIdentifierVendor(ChannelModel channel, String identifierVendor){
 
-        getChannelIdentifierVendor().put(identifierVendor, channel);
+        this.registry.putChannel(identifierVendor, channel, channel != null ? channel.getSid() : null);
+
+    }
+
+    /**
+     * Gets the Hype instances whose identifier for vendor joined a channel.
+     * @param channelSid Sid of the channel.
+     * @return Snapshot of the subscribed instances keyed by identifier for vendor.
+     */
+    public Map<String, Instance> getInstancesSubscribedToChannel(String channelSid){
 
+        return this.registry.getSubscribedPeers(channelSid);
+    }
+
+    /**
+     * Removes the ChannelModel object of a given identifier vendor.
+     * @param identifierVendor Identifier for vendor received.
+     */
+    public void removeChannelIdentifierVendor(String identifierVendor){
+
+        this.registry.removeChannel(identifierVendor);
     }
 
     /**
@@ -82,9 +122,17 @@ public class InstanceChannelModel {
      */
     public Instance getinstanceWithIdentifierVendor(String identifierVendor){
 
+        return this.registry.getPeer(identifierVendor);
+    }
 
-        Instance instance = getInstanceIdentifierVendor().get(identifierVendor);
-        return instance;
+    /**
+     * Gets the identifier for vendor of an Instance object.
+     * @param instance Instance object received.
+     * @return Identifier for vendor, or null if the instance is not known.
+     */
+    public String getIdentifierVendorWithInstance(Instance instance){
+
+        return this.registry.getIdentifierForVendor(instance);
     }
 
     /**
@@ -94,19 +142,8 @@ public class InstanceChannelModel {
      */
     public ChannelModel getchannelWithIdentifierVendor(String identifierVendor){
 
-        ChannelModel channel = getChannelIdentifierVendor().get(identifierVendor);
-        return channel;
-
-    }
-
-    private Map<String, ChannelModel> channelIdentifierVendor;
-
-    private Map<String, ChannelModel> getChannelIdentifierVendor() {
+        return this.registry.getChannel(identifierVendor);
 
-        if (channelIdentifierVendor == null) {
-            this.channelIdentifierVendor = new HashMap<String, ChannelModel>();
-        }
-        return this.channelIdentifierVendor;
     }
 
 }
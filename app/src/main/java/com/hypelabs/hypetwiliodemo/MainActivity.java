@@ -32,6 +32,8 @@ import android.os.Bundle;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
+import android.util.Log;
+import android.view.Choreographer;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -40,16 +42,48 @@ import android.widget.EditText;
 import android.widget.TextView;
 import com.twilio.chat.Channel;
 import com.twilio.chat.ChatClient;
-import java.util.ArrayList;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class MainActivity extends AppCompatActivity implements BridgeController.BridgeControllerDelegate {
 
     final static String TAG = "TwilioChat";
+    final static String HISTORY_FILE_NAME = "history.log";
+    final static String SNAPSHOT_FILE_NAME = "messages.snapshot";
     private String mIdentity = "USER_IDENTITY";
     private RecyclerView mMessagesRecyclerView;
     private MessagesAdapter mMessagesAdapter;
-    private ArrayList<Map<String, String>> mMessages = new ArrayList<Map<String, String>>();
+    private MessageHistory mHistory;
+    private LinearLayoutManager mLayoutManager;
+
+    // The history is appended to and its pages read from disk here, in
+    // order, never on the UI thread.
+    private final ExecutorService mHistoryLoader = Executors.newSingleThreadExecutor();
+
+    // Rows bound before their page was in memory, touched on the UI thread only.
+    private final Set<Integer> mMissedPositions = new HashSet<Integer>();
+
+    // Number of messages the adapter shows, touched on the UI thread only.
+    private int mShownCount = 0;
+
+    // Whether a frame callback is pending for messages appended since the
+    // last frame, guarded by mFlushCallback.
+    private boolean mFlushScheduled = false;
+    private final Choreographer.FrameCallback mFlushCallback = new Choreographer.FrameCallback() {
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+
+            showAppendedMessages();
+        }
+    };
     private EditText mWriteMessageEditText;
     private Button mSendChatMessageButton;
     private ChatClient mChatClient;
@@ -66,10 +100,17 @@ public class MainActivity extends AppCompatActivity implements BridgeController.
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
+        try {
+            mHistory = new MessageHistory(new File(getCacheDir(), HISTORY_FILE_NAME));
+        } catch (IOException e) {
+            Log.e(TAG, "Error opening message history: " + e.getMessage());
+        }
+        restoreMessageSnapshot();
+
         mMessagesRecyclerView = (RecyclerView) findViewById(R.id.messagesRecyclerView);
-        LinearLayoutManager layoutManager = new LinearLayoutManager(this);
-        layoutManager.setStackFromEnd(true);
-        mMessagesRecyclerView.setLayoutManager(layoutManager);
+        mLayoutManager = new LinearLayoutManager(this);
+        mLayoutManager.setStackFromEnd(true);
+        mMessagesRecyclerView.setLayoutManager(mLayoutManager);
         mMessagesAdapter = new MessagesAdapter();
         mMessagesRecyclerView.setAdapter(mMessagesAdapter);
         mWriteMessageEditText = (EditText) findViewById(R.id.writeMessageEditText);
@@ -87,27 +128,134 @@ public class MainActivity extends AppCompatActivity implements BridgeController.
             }
         });
         setTitle("Logging in ...");
-        requestOwnTwilioClient();
+        getBridgeController().startBridge();
         requestHypeToStart();
 
     }
 
+    @Override
+    protected void onStop() {
+        super.onStop();
+
+        getBridgeController().exportMetrics();
+        saveMessageSnapshot();
+    }
+
+    /**
+     * Shows the messages saved when the app last stopped, before twilio and
+     * the mesh deliver anything, and tells the bridge they were already seen.
+     */
+    private void restoreMessageSnapshot() {
+
+        MessageSnapshot snapshot;
+
+        try {
+            snapshot = MessageSnapshot.read(new File(getFilesDir(), SNAPSHOT_FILE_NAME));
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading message snapshot: " + e.getMessage());
+            return;
+        }
+
+        appendToHistory(snapshot.getEntries());
+        getBridgeController().restoreSeenSids(snapshot.getSids());
+    }
+
+    private void saveMessageSnapshot() {
+
+        final MessageHistory history = mHistory;
+        final File file = new File(getFilesDir(), SNAPSHOT_FILE_NAME);
+
+        if (history == null) {
+            return;
+        }
+
+        // Written after the appends already queued, so the snapshot has them.
+        mHistoryLoader.execute(new Runnable() {
+
+            @Override
+            public void run() {
+
+                try {
+                    MessageSnapshot.write(file, history);
+                } catch (IOException e) {
+                    Log.e(TAG, "Error writing message snapshot: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Appends messages to the history on the history thread, then shows
+     * them on the next display frame.
+     * @param entries Messages to append, in order.
+     */
+    private void appendToHistory(final List<MessageHistory.Entry> entries) {
+
+        final MessageHistory history = mHistory;
+
+        if (history == null || entries.isEmpty()) {
+            return;
+        }
+
+        mHistoryLoader.execute(new Runnable() {
+
+            @Override
+            public void run() {
+
+                try {
+                    for (MessageHistory.Entry entry : entries) {
+                        history.append(entry);
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Error writing message history: " + e.getMessage());
+                }
+
+                scheduleShowAppendedMessages();
+            }
+        });
+    }
+
+    @Override
+    protected void onDestroy() {
+
+        Choreographer.getInstance().removeFrameCallback(mFlushCallback);
+
+        final MessageHistory history = mHistory;
+
+        // Closed after the appends and the snapshot still queued.
+        if (history != null) {
+            mHistoryLoader.execute(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    try {
+                        history.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Error closing message history: " + e.getMessage());
+                    }
+                }
+            });
+        }
+        mHistoryLoader.shutdown();
+        super.onDestroy();
+    }
+
     private BridgeController getBridgeController(){
 
         if(this.bridgeController == null){
 
             this.bridgeController = new BridgeController(getApplicationContext());
             this.bridgeController.setBridgeControllerDelegate(this);
+            this.bridgeController.setProxyModeEnabled(getResources().getBoolean(R.bool.proxy_mode_enabled));
+            this.bridgeController.setChannelSyncMode(getResources().getBoolean(R.bool.lazy_channel_sync)
+                    ? TwilioController.ChannelSyncMode.LAZY
+                    : TwilioController.ChannelSyncMode.FULL);
         }
         return this.bridgeController;
 
     }
 
-    private void requestOwnTwilioClient(){
-
-        this.getBridgeController().generateTwilioClient();
-    }
-
     private void requestHypeToStart(){
 
 
@@ -147,17 +295,63 @@ public class MainActivity extends AppCompatActivity implements BridgeController.
     @Override
     public void didReceiveMessage(final Map<String, String> message) {
 
+        // The display text is built here, on the bridge thread, so binding
+        // the row on the UI thread does no formatting.
+        MessageHistory.Entry entry = new MessageHistory.Entry(message.get("sid"), message.get("author"), message.get("body"));
+
+        appendToHistory(Collections.singletonList(entry));
+    }
+
+    // Messages are shown at most once per display frame, so a burst of
+    // messages costs one layout instead of one per message.
+    private void scheduleShowAppendedMessages() {
+
+        synchronized (mFlushCallback) {
+
+            if (mFlushScheduled) {
+                return;
+            }
+            mFlushScheduled = true;
+        }
+
         MainActivity.this.runOnUiThread(new Runnable() {
             @Override
             public void run() {
 
-                mMessages.add(message);
-                mMessagesAdapter.notifyDataSetChanged();
-
+                Choreographer.getInstance().postFrameCallback(mFlushCallback);
             }
         });
     }
 
+    private void showAppendedMessages() {
+
+        synchronized (mFlushCallback) {
+            mFlushScheduled = false;
+        }
+
+        if (mHistory == null) {
+            return;
+        }
+
+        // Only the size of the history is read here, the appends happened
+        // on the history thread.
+        int start = mShownCount;
+        int inserted = mHistory.size() - start;
+
+        if (inserted <= 0) {
+            return;
+        }
+
+        boolean atBottom = mLayoutManager.findLastVisibleItemPosition() >= start - 1;
+
+        mShownCount = start + inserted;
+        mMessagesAdapter.notifyItemRangeInserted(start, inserted);
+
+        if (atBottom) {
+            mMessagesRecyclerView.scrollToPosition(mShownCount - 1);
+        }
+    }
+
     @Override
     public void didJoinTwilio(final Map<String, String> response) {
 
@@ -225,17 +419,65 @@ public class MainActivity extends AppCompatActivity implements BridgeController.
         @Override
         public void onBindViewHolder(ViewHolder holder, int position) {
 
-            Map<String, String> message = mMessages.get(position);
+            MessageHistory.Entry message = mHistory.peek(position);
+
+            // Older messages are paged in from the history file off the UI
+            // thread as the user scrolls up; the row is bound again once
+            // its page is in memory.
+            if (message == null) {
+
+                holder.mMessageTextView.setText("");
+
+                if (mMissedPositions.add(position)) {
+                    prefetchHistory(position);
+                }
+                return;
+            }
+
+            holder.mMessageTextView.setText(message.getDisplayText());
+
+        }
+
+        private void prefetchHistory(final int position) {
+
+            final MessageHistory history = mHistory;
 
-            String messageText = String.format("%s: %s", message.get("author"), message.get("body"));
+            mHistoryLoader.execute(new Runnable() {
 
-            holder.mMessageTextView.setText(messageText);
+                @Override
+                public void run() {
 
+                    try {
+                        history.prefetch(position);
+                    } catch (IOException e) {
+                        Log.e(TAG, "Error reading message history: " + e.getMessage());
+                    }
+
+                    MainActivity.this.runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+
+                            rebindLoadedPosition(position);
+                        }
+                    });
+                }
+            });
+        }
+
+        private void rebindLoadedPosition(int position) {
+
+            mMissedPositions.remove(position);
+
+            // A row whose page could not be read, or was evicted again, is
+            // left blank until it is bound next.
+            if (position < mShownCount && mHistory.peek(position) != null) {
+                notifyItemChanged(position);
+            }
         }
 
         @Override
         public int getItemCount() {
-            return mMessages.size();
+            return mShownCount;
         }
     }
 
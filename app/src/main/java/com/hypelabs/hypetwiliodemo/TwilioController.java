@@ -25,6 +25,7 @@
 package com.hypelabs.hypetwiliodemo;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.util.Log;
 import com.google.gson.JsonObject;
 import com.koushikdutta.async.future.FutureCallback;
@@ -33,12 +34,19 @@ import com.twilio.chat.CallbackListener;
 import com.twilio.chat.Channel;
 import com.twilio.chat.ChannelListener;
 import com.twilio.chat.ChatClient;
+import com.twilio.chat.ChatClientListener;
 import com.twilio.chat.ErrorInfo;
 import com.twilio.chat.Member;
 import com.twilio.chat.Message;
 import com.twilio.chat.StatusListener;
-import java.util.HashMap;
+import com.twilio.chat.User;
+import org.json.JSONException;
+import org.json.JSONObject;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
 import java.lang.ref.WeakReference;
 
 public class TwilioController {
@@ -47,9 +55,45 @@ public class TwilioController {
     private String mIdentity = "USER_IDENTITY";
     private ChatClient mChatClient;
     final static String DEFAULT_CHANNEL_NAME = "general";
+    final static String PROXY_AUTHOR_ATTRIBUTE = "proxyAuthor";
+
+    /**
+     * Number of recent messages a lazily synchronized client fetches once it
+     * joined the default channel.
+     */
+    final static int LAZY_SYNC_MESSAGE_COUNT = 20;
+
+    /**
+     * Ingress time of messages that were not received from the mesh.
+     */
+    public final static long NO_INGRESS_TIME = -1;
     private Channel mGeneralChannel;
     private Context context;
-    private Map<ClientWrapper, String> clientDictionary;
+    // Read by the metrics gauges from other threads.
+    private final Map<ClientWrapper, String> clientDictionary = new ConcurrentHashMap<ClientWrapper, String>();
+    private AccessTokenCache accessTokenCache;
+    private ChannelSyncMode channelSyncMode = ChannelSyncMode.FULL;
+    private Map<String, Long> tokenReceivedTimes = new ConcurrentHashMap<String, Long>();
+    private BridgeMetrics metrics;
+
+    /**
+     * How much a new chat client synchronizes before it joins the default channel.
+     */
+    public enum ChannelSyncMode {
+
+        /**
+         * Synchronize every channel, and their messages, before joining.
+         */
+        FULL,
+
+        /**
+         * Synchronize only the channels list and fetch the default channel.
+         * Once it is joined, only its last LAZY_SYNC_MESSAGE_COUNT messages
+         * are fetched, and older ones are never synchronized. Messages posted
+         * after the join still arrive through its listener.
+         */
+        LAZY
+    }
 
     /**
      * This controller delegate has the purpose of dealing
@@ -78,8 +122,9 @@ public class TwilioController {
         /**
          * This notification indicates that the channel has a new message.
          * @param message Message received.
+         * @param channelSid Sid of the channel the message was received on.
          */
-        void didReceiveMessage(Message message);
+        void didReceiveMessage(Message message, String channelSid);
 
         /**
          * This notification indicates that client could not join twilio channel.
@@ -87,6 +132,36 @@ public class TwilioController {
          */
         void failConnecting(String response);
 
+        /**
+         * This notification indicates that an access token is available for
+         * the given identifier for vendor.
+         * @param identifierForVendor Identifier for Vendor the token belongs to.
+         */
+        void didReceiveAccessTokenForIdentifierForVendor(String identifierForVendor);
+
+        /**
+         * This notification indicates that a chat client was created for
+         * the given identifier for vendor.
+         * @param identifierForVendor Identifier for Vendor the client belongs to.
+         */
+        void didCreateClientForIdentifierForVendor(String identifierForVendor);
+
+        /**
+         * This notification indicates that no access token could be fetched
+         * for the given identifier for vendor.
+         * @param identifierForVendor Identifier for Vendor the token was requested for.
+         * @param reason Description of the failure.
+         */
+        void didFailAccessTokenForIdentifierForVendor(String identifierForVendor, String reason);
+
+        /**
+         * This notification indicates that no chat client could be created
+         * for the given identifier for vendor.
+         * @param identifierForVendor Identifier for Vendor the client was created for.
+         * @param reason Description of the failure.
+         */
+        void didFailCreatingClientForIdentifierForVendor(String identifierForVendor, String reason);
+
     }
 
     public TwilioController(Context context) {
@@ -96,57 +171,103 @@ public class TwilioController {
     }
 
     /**
-     * This method generates a twilio client with the given identifier.
+     * This method generates a twilio client with the given identifier. Access
+     * tokens come from the token cache, so vendors served recently do not
+     * cost another request to the token server.
      * @param identifierForVendor The identifier to assign.
      */
     public void generateTwilioClientWithIdentifierForVendor(final String identifierForVendor){
 
-        String tokenURL = SERVER_TOKEN_URL + "?device=" + identifierForVendor + "&identity=" + mIdentity;
+        getAccessTokenCache().getToken(identifierForVendor, new AccessTokenCache.Callback() {
 
-        Ion.with(getContext())
-                .load(tokenURL)
-                .asJsonObject()
-                .setCallback(new FutureCallback<JsonObject>() {
-                    @Override
-                    public void onCompleted(Exception e, JsonObject result) {
-                        if (e == null) {
-                            String accessToken = result.get("token").getAsString();
-                            ChatClient.Properties.Builder builder = new ChatClient.Properties.Builder();
-                            builder.setSynchronizationStrategy(ChatClient.SynchronizationStrategy.ALL);
-                            ChatClient.Properties props = builder.createProperties();
-                            ChatClient.create(getContext(),accessToken,props,new CallbackListener<ChatClient>() {
+            @Override
+            public void onToken(String accessToken) {
 
-                                @Override
-                                public void onSuccess(ChatClient chatClient) {
-                                    mChatClient = chatClient;
+                tokenReceivedTimes.put(identifierForVendor, SystemClock.elapsedRealtime());
 
-                                    ClientWrapper wrapper = new ClientWrapper(chatClient);
-                                    getClientDictionary().put(wrapper, identifierForVendor);
-                                    loadChannels(chatClient);
-                                    Log.d("twilio", "Success creating Twilio Chat Client");
-                                }
+                TwilioControllerDelegate delegate = getDelegate();
 
-                                @Override
-                                public void onError(ErrorInfo errorInfo) {
+                if (delegate != null) {
+                    delegate.didReceiveAccessTokenForIdentifierForVendor(identifierForVendor);
+                }
+                createChatClientWithAccessToken(identifierForVendor, accessToken);
+            }
 
-                                    TwilioControllerDelegate delegate = getDelegate();
+            @Override
+            public void onError(Exception e) {
 
-                                    if (delegate != null) {
-                                        delegate.failConnecting("error");
-                                    }
+                TwilioControllerDelegate delegate = getDelegate();
 
-                                    Log.e("twilio","Error creating Twilio Chat Client: " + errorInfo.getMessage());
-                                }
-                            });
+                if (delegate != null) {
+                    delegate.didFailAccessTokenForIdentifierForVendor(identifierForVendor, String.valueOf(e.getMessage()));
+                    delegate.failConnecting("error");
+                }
+                Log.e("twilio",e.getMessage(),e);
+            }
+        });
+    }
 
-                        } else {
-                            TwilioControllerDelegate delegate = getDelegate();
+    private void createChatClientWithAccessToken(final String identifierForVendor, final String accessToken){
+
+        // The mode may change while the client is created, its join is
+        // timed against the mode it was created with.
+        final ChannelSyncMode syncMode = this.channelSyncMode;
+        ChatClient.Properties.Builder builder = new ChatClient.Properties.Builder();
+
+        if(syncMode == ChannelSyncMode.LAZY){
+            builder.setSynchronizationStrategy(ChatClient.SynchronizationStrategy.CHANNELS_LIST);
+        }else{
+            builder.setSynchronizationStrategy(ChatClient.SynchronizationStrategy.ALL);
+        }
+        ChatClient.Properties props = builder.createProperties();
+        ChatClient.create(getContext(),accessToken,props,new CallbackListener<ChatClient>() {
+
+            @Override
+            public void onSuccess(ChatClient chatClient) {
+                mChatClient = chatClient;
 
-                            if (delegate != null) {
-                                delegate.failConnecting("error");
-                            }
-                            Log.e("twilio",e.getMessage(),e);
+                ClientWrapper wrapper = new ClientWrapper(chatClient);
+                getClientDictionary().put(wrapper, identifierForVendor);
+                chatClient.setListener(new ClientTokenListener(identifierForVendor, chatClient, accessToken));
+
+                TwilioControllerDelegate delegate = getDelegate();
 
+                if (delegate != null) {
+                    delegate.didCreateClientForIdentifierForVendor(identifierForVendor);
+                }
+                loadChannels(chatClient, syncMode);
+                Log.d("twilio", "Success creating Twilio Chat Client");
+            }
+
+            @Override
+            public void onError(ErrorInfo errorInfo) {
+
+                TwilioControllerDelegate delegate = getDelegate();
+
+                if (delegate != null) {
+                    delegate.didFailCreatingClientForIdentifierForVendor(identifierForVendor, errorInfo.getMessage());
+                    delegate.failConnecting("error");
+                }
+
+                Log.e("twilio","Error creating Twilio Chat Client: " + errorInfo.getMessage());
+            }
+        });
+    }
+
+    private void fetchAccessToken(String identifierForVendor, final AccessTokenCache.Callback callback){
+
+        String tokenURL = SERVER_TOKEN_URL + "?device=" + identifierForVendor + "&identity=" + mIdentity;
+
+        Ion.with(getContext())
+                .load(tokenURL)
+                .asJsonObject()
+                .setCallback(new FutureCallback<JsonObject>() {
+                    @Override
+                    public void onCompleted(Exception e, JsonObject result) {
+                        if (e == null) {
+                            callback.onToken(result.get("token").getAsString());
+                        } else {
+                            callback.onError(e);
                         }
                     }
                 });
@@ -159,14 +280,114 @@ public class TwilioController {
      */
     public void sendMessageToTwilioChannelWithText(ChannelModel channel, String text){
 
+        sendMessageToTwilioChannelWithText(channel, text, NO_INGRESS_TIME);
+    }
+
+    /**
+     * This method sends a message that came from the mesh to the given twilio channnel.
+     * @param channel channel to send.
+     * @param text message to send.
+     * @param ingressTime SystemClock.elapsedRealtime() when the message reached this device, or NO_INGRESS_TIME.
+     */
+    public void sendMessageToTwilioChannelWithText(ChannelModel channel, String text, long ingressTime){
+
         Message message = mGeneralChannel.getMessages().createMessage(text);
         Log.d("twilio","Message created");
 
+        sendMessageToTwilioChannel(channel, message, ingressTime);
+    }
+
+    /**
+     * This method sends a message to the given twilio channel on behalf of
+     * another peer. The peer is recorded in the message attributes, so the
+     * message can be posted through this device's own client.
+     * @param channel channel to send.
+     * @param text message to send.
+     * @param author identifier for vendor of the peer that wrote the message.
+     */
+    public void sendMessageToTwilioChannelWithTextAndAuthor(ChannelModel channel, String text, String author){
+
+        sendMessageToTwilioChannelWithTextAndAuthor(channel, text, author, NO_INGRESS_TIME);
+    }
+
+    /**
+     * This method sends a message that came from the mesh to the given twilio
+     * channel on behalf of the peer that wrote it.
+     * @param channel channel to send.
+     * @param text message to send.
+     * @param author identifier for vendor of the peer that wrote the message.
+     * @param ingressTime SystemClock.elapsedRealtime() when the message reached this device, or NO_INGRESS_TIME.
+     */
+    public void sendMessageToTwilioChannelWithTextAndAuthor(final ChannelModel channel, String text, String author, final long ingressTime){
+
+        final Message message = channel.getChannel().getMessages().createMessage(text);
+        JSONObject attributes = new JSONObject();
+
+        try {
+            attributes.put(PROXY_AUTHOR_ATTRIBUTE, author);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+
+        // Setting the attributes is asynchronous, the message is only sent
+        // once it carries its author, so it is never posted as this device's.
+        message.setAttributes(attributes, new StatusListener() {
+
+            @Override
+            public void onSuccess() {
+
+                Log.d("twilio","Proxied message created");
+                sendMessageToTwilioChannel(channel, message, ingressTime);
+            }
+
+            @Override
+            public void onError(ErrorInfo errorInfo) {
+                Log.e("twilio","Error setting message attributes: " + errorInfo.getMessage());
+                getMetrics().increment(BridgeMetrics.TWILIO_SEND_ERRORS);
+
+                TwilioControllerDelegate delegate = getDelegate();
+
+                if (delegate != null) {
+                    delegate.didSendMessage("Error");
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads the author of a message, preferring the peer recorded in the
+     * message attributes when it was posted on that peer's behalf.
+     * @param message Message received.
+     * @return Author of the message.
+     */
+    public static String getAuthorOfMessage(Message message){
+
+        JSONObject attributes = message.getAttributes();
+
+        if(attributes != null && attributes.has(PROXY_AUTHOR_ATTRIBUTE)){
+
+            return attributes.optString(PROXY_AUTHOR_ATTRIBUTE, message.getAuthor());
+        }
+        return message.getAuthor();
+    }
+
+    private void sendMessageToTwilioChannel(ChannelModel channel, Message message, final long ingressTime){
+
+        final long sendTime = SystemClock.elapsedRealtime();
+
         channel.getChannel().getMessages().sendMessage(message, new StatusListener() {
 
             @Override
             public void onSuccess() {
 
+                long now = SystemClock.elapsedRealtime();
+
+                getMetrics().recordLatency(BridgeMetrics.TWILIO_SEND_ACK, now - sendTime);
+
+                if(ingressTime != NO_INGRESS_TIME){
+                    getMetrics().recordLatency(BridgeMetrics.MESH_INGRESS_TO_TWILIO_ACK, now - ingressTime);
+                }
+
                 TwilioControllerDelegate delegate = getDelegate();
 
                 if (delegate != null) {
@@ -177,6 +398,7 @@ public class TwilioController {
             @Override
             public void onError(ErrorInfo errorInfo) {
                 Log.e("twilio","Error sending message: " + errorInfo.getMessage());
+                getMetrics().increment(BridgeMetrics.TWILIO_SEND_ERRORS);
 
                 TwilioControllerDelegate delegate = getDelegate();
 
@@ -188,6 +410,66 @@ public class TwilioController {
 
     }
 
+    /**
+     * @return Number of chat clients held by this device.
+     */
+    public int getClientCount(){
+
+        return getClientDictionary().size();
+    }
+
+    /**
+     * Sets the registry the controller reports its metrics to.
+     * @param metrics Registry to use.
+     */
+    public void setMetrics(BridgeMetrics metrics){
+
+        this.metrics = metrics;
+    }
+
+    private BridgeMetrics getMetrics(){
+
+        if(this.metrics == null){
+
+            this.metrics = new BridgeMetrics();
+        }
+
+        return this.metrics;
+    }
+
+    /**
+     * This method shuts down the chat client of the given identifier for
+     * vendor, once the device is served by another gateway.
+     * @param identifierForVendor Identifier for vendor of the client.
+     */
+    public void shutdownClientWithIdentifierForVendor(String identifierForVendor){
+
+        getClientDictionary();
+
+        Iterator<Map.Entry<ClientWrapper, String>> iterator = this.clientDictionary.entrySet().iterator();
+
+        while(iterator.hasNext()){
+
+            Map.Entry<ClientWrapper, String> entry = iterator.next();
+
+            if(identifierForVendor.equals(entry.getValue())){
+
+                iterator.remove();
+                entry.getKey().getmChatClient().shutdown();
+                Log.d("twilio", "Shut down Twilio Chat Client of " + identifierForVendor);
+            }
+        }
+    }
+
+    /**
+     * Sets how much new chat clients synchronize before they join the default channel.
+     * @param channelSyncMode Synchronization mode for the clients created from now on.
+     */
+    public void setChannelSyncMode(ChannelSyncMode channelSyncMode) {
+
+        this.channelSyncMode = channelSyncMode;
+    }
+
     public TwilioControllerDelegate getDelegate() {
 
         return twilioControllerDelegate != null ? twilioControllerDelegate.get() : null;
@@ -200,12 +482,6 @@ public class TwilioController {
 
     private Map getClientDictionary(){
 
-
-        if(this.clientDictionary == null){
-
-            this.clientDictionary = new HashMap<ClientWrapper, String>();
-        }
-
         return this.clientDictionary;
 
     }
@@ -214,9 +490,28 @@ public class TwilioController {
         return context;
     }
 
+    private AccessTokenCache getAccessTokenCache(){
+
+
+        if(this.accessTokenCache == null){
+
+            this.accessTokenCache = new AccessTokenCache(new AccessTokenCache.Fetcher() {
+
+                @Override
+                public void fetch(String identifierForVendor, AccessTokenCache.Callback callback) {
+
+                    fetchAccessToken(identifierForVendor, callback);
+                }
+            }, Executors.newSingleThreadScheduledExecutor());
+        }
+
+        return this.accessTokenCache;
+
+    }
+
     private WeakReference<TwilioControllerDelegate> twilioControllerDelegate;
 
-    private void joinChannel(final Channel channel, final ChatClient chatClient) {
+    private void joinChannel(final Channel channel, final ChatClient chatClient, final ChannelSyncMode syncMode) {
         Log.d("twilio", "Joining Channel: " + channel.getUniqueName());
 
 
@@ -226,7 +521,11 @@ public class TwilioController {
 
                 mGeneralChannel = channel;
                 Log.d("twilio", "Joined default channel");
-                mGeneralChannel.addListener(mDefaultChannelListener);
+                mGeneralChannel.addListener(new DefaultChannelListener(channel.getSid()));
+
+                ClientWrapper clientWrapper = new ClientWrapper(chatClient);
+                String identifierForVendor = (String) getClientDictionary().get(clientWrapper);
+                recordJoinTime(identifierForVendor, syncMode);
 
                 TwilioControllerDelegate delegate = getDelegate();
 
@@ -234,13 +533,14 @@ public class TwilioController {
 
                     String identity = chatClient.getMyIdentity();
 
-                    ClientWrapper clientWrapper = new ClientWrapper(chatClient);
-                    String identifierForVendor = (String) getClientDictionary().get(clientWrapper);
-
                     ChannelModel channelModel = new ChannelModel(channel);
 
                     delegate.didJoinChannelWithIdentifierForVendor(channelModel, identifierForVendor, identity);
                 }
+
+                if(syncMode == ChannelSyncMode.LAZY){
+                    fetchRecentMessages(channel);
+                }
             }
 
             @Override
@@ -250,7 +550,213 @@ public class TwilioController {
         });
     }
 
-    private ChannelListener mDefaultChannelListener = new ChannelListener() {
+    /**
+     * Fetches the last messages of a channel a lazily synchronized client
+     * just joined, which its synchronization skipped, and reports them like
+     * the messages its listener receives. Messages already seen are dropped
+     * by their sid downstream.
+     * @param channel Channel that was joined.
+     */
+    private void fetchRecentMessages(final Channel channel) {
+
+        channel.getMessages().getLastMessages(LAZY_SYNC_MESSAGE_COUNT, new CallbackListener<List<Message>>() {
+
+            @Override
+            public void onSuccess(List<Message> messages) {
+
+                TwilioControllerDelegate delegate = getDelegate();
+
+                if (delegate == null) {
+                    return;
+                }
+
+                for (Message message : messages) {
+                    delegate.didReceiveMessage(message, channel.getSid());
+                }
+            }
+
+            @Override
+            public void onError(ErrorInfo errorInfo) {
+                Log.e("twilio","Error fetching recent messages: " + errorInfo.getMessage());
+            }
+        });
+    }
+
+    private void recordJoinTime(String identifierForVendor, ChannelSyncMode syncMode){
+
+        Long tokenReceivedTime = identifierForVendor != null ? tokenReceivedTimes.remove(identifierForVendor) : null;
+
+        if(tokenReceivedTime == null){
+            return;
+        }
+
+        long elapsed = SystemClock.elapsedRealtime() - tokenReceivedTime;
+        getMetrics().recordLatency(syncMode == ChannelSyncMode.LAZY ? BridgeMetrics.TWILIO_JOIN_LAZY : BridgeMetrics.TWILIO_JOIN_FULL, elapsed);
+        Log.i("twilio", String.format("Joined default channel %d ms after receiving the token (%s sync)", elapsed, syncMode));
+    }
+
+    /**
+     * Listener of a chat client, which renews the client's token through the
+     * token cache when twilio reports that it is about to expire, or expired,
+     * and hands the new token to the client.
+     */
+    private class ClientTokenListener implements ChatClientListener {
+
+        private final String identifierForVendor;
+        private final ChatClient chatClient;
+        private volatile String accessToken;
+
+        ClientTokenListener(String identifierForVendor, ChatClient chatClient, String accessToken) {
+
+            this.identifierForVendor = identifierForVendor;
+            this.chatClient = chatClient;
+            this.accessToken = accessToken;
+        }
+
+        private void renewToken() {
+
+            getAccessTokenCache().renewToken(identifierForVendor, accessToken, new AccessTokenCache.Callback() {
+
+                @Override
+                public void onToken(final String renewedToken) {
+
+                    chatClient.updateToken(renewedToken, new StatusListener() {
+
+                        @Override
+                        public void onSuccess() {
+                            accessToken = renewedToken;
+                            Log.d("twilio", "Updated the token of the chat client of " + identifierForVendor);
+                        }
+
+                        @Override
+                        public void onError(ErrorInfo errorInfo) {
+                            Log.e("twilio","Error updating token: " + errorInfo.getMessage());
+                        }
+                    });
+                }
+
+                @Override
+                public void onError(Exception e) {
+                    Log.e("twilio","Error renewing token: " + e.getMessage());
+                }
+            });
+        }
+
+        @Override
+        public void onTokenAboutToExpire() {
+
+            renewToken();
+        }
+
+        @Override
+        public void onTokenExpired() {
+
+            renewToken();
+        }
+
+        @Override
+        public void onChannelJoined(Channel channel) {
+
+        }
+
+        @Override
+        public void onChannelInvited(Channel channel) {
+
+        }
+
+        @Override
+        public void onChannelAdded(Channel channel) {
+
+        }
+
+        @Override
+        public void onChannelUpdated(Channel channel, Channel.UpdateReason updateReason) {
+
+        }
+
+        @Override
+        public void onChannelDeleted(Channel channel) {
+
+        }
+
+        @Override
+        public void onChannelSynchronizationChange(Channel channel) {
+
+        }
+
+        @Override
+        public void onError(ErrorInfo errorInfo) {
+
+        }
+
+        @Override
+        public void onUserUpdated(User user, User.UpdateReason updateReason) {
+
+        }
+
+        @Override
+        public void onUserSubscribed(User user) {
+
+        }
+
+        @Override
+        public void onUserUnsubscribed(User user) {
+
+        }
+
+        @Override
+        public void onClientSynchronization(ChatClient.SynchronizationStatus synchronizationStatus) {
+
+        }
+
+        @Override
+        public void onNewMessageNotification(String channelSid, String messageSid, long messageIndex) {
+
+        }
+
+        @Override
+        public void onAddedToChannelNotification(String channelSid) {
+
+        }
+
+        @Override
+        public void onInvitedToChannelNotification(String channelSid) {
+
+        }
+
+        @Override
+        public void onRemovedFromChannelNotification(String channelSid) {
+
+        }
+
+        @Override
+        public void onNotificationSubscribed() {
+
+        }
+
+        @Override
+        public void onNotificationFailed(ErrorInfo errorInfo) {
+
+        }
+
+        @Override
+        public void onConnectionStateChange(ChatClient.ConnectionState connectionState) {
+
+        }
+    }
+
+    /**
+     * Listener of the default channel, which reports the channel along with
+     * each message so they are only fanned out to its subscribers.
+     */
+    private class DefaultChannelListener implements ChannelListener {
+
+        private final String channelSid;
+
+        DefaultChannelListener(String channelSid) {
+
+            this.channelSid = channelSid;
+        }
 
         @Override
         public void onMessageAdded(Message message) {
@@ -258,7 +764,7 @@ public class TwilioController {
             TwilioControllerDelegate delegate = getDelegate();
 
             if (delegate != null) {
-                delegate.didReceiveMessage(message);
+                delegate.didReceiveMessage(message, channelSid);
             }
         }
 
@@ -301,15 +807,15 @@ public class TwilioController {
         public void onSynchronizationChanged(Channel channel) {
 
         }
-    };
+    }
 
-    private void loadChannels(final ChatClient chatClient) {
+    private void loadChannels(final ChatClient chatClient, final ChannelSyncMode syncMode) {
 
         mChatClient.getChannels().getChannel(DEFAULT_CHANNEL_NAME, new CallbackListener<Channel>() {
             @Override
             public void onSuccess(Channel channel) {
                 if (channel != null) {
-                    joinChannel(channel, chatClient);
+                    joinChannel(channel, chatClient, syncMode);
 
                 } else {
                     mChatClient.getChannels().createChannel(DEFAULT_CHANNEL_NAME,
@@ -317,7 +823,7 @@ public class TwilioController {
                                 @Override
                                 public void onSuccess(Channel channel) {
                                     if (channel != null) {
-                                        joinChannel(channel, chatClient);
+                                        joinChannel(channel, chatClient, syncMode);
                                     }
                                 }
 
@@ -0,0 +1,137 @@
+package com.hypelabs.hypetwiliodemo;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a frame dispatched through the binary FrameDispatcher path
+ * reaches the same handler, with the same fields, as the legacy JSON
+ * path. The timings and allocation of both paths are reported by
+ * FrameDispatchBenchmark in bridge-benchmarks.
+ */
+public class FrameDispatchTest {
+
+    @Test
+    public void dispatch_readsSameFieldsAsJsonPath() throws Exception {
+
+        Map<String, String> frame = new HashMap<String, String>();
+        frame.put("type", "send");
+        frame.put("message", "Hey, is anyone at the north gate yet?");
+        frame.put("identifierForVendor", "8f14e45fceea167a");
+
+        byte[] jsonFrame = new JSONObject(frame).toString().getBytes("utf-8");
+        Map<String, String> json = decodeJson(jsonFrame);
+
+        RecordingHandler handler = new RecordingHandler();
+        FrameDispatcher<Object> dispatcher = new FrameDispatcher<Object>(handler);
+        Object peer = new Object();
+
+        assertFalse(dispatcher.dispatch(jsonFrame, peer));
+        assertNull(handler.type);
+        assertTrue(dispatcher.dispatch(FrameCodec.encode(frame), peer));
+
+        assertEquals(json.get("type"), handler.type);
+        assertSame(peer, handler.peer);
+        assertEquals(json.get("message"), handler.message);
+        assertEquals(json.get("identifierForVendor"), handler.identifierForVendor);
+    }
+
+    @Test
+    public void dispatch_reportsFramesOfUnknownType() throws Exception {
+
+        Map<String, String> frame = new HashMap<String, String>();
+        frame.put("type", "send");
+
+        byte[] data = FrameCodec.encode(frame);
+        data[2] = (byte) 0x7f;
+
+        RecordingHandler handler = new RecordingHandler();
+        new FrameDispatcher<Object>(handler).dispatch(data, this);
+
+        assertEquals("unknown", handler.type);
+    }
+
+    private static Map<String, String> decodeJson(byte[] data) throws Exception {
+
+        JSONObject object = new JSONObject(new String(data, "utf-8"));
+        Map<String, String> response = new HashMap<String, String>();
+
+        Iterator<String> keys = object.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            response.put(key, (String) object.get(key));
+        }
+        return response;
+    }
+
+    private static class RecordingHandler implements FrameDispatcher.FrameHandler<Object> {
+
+        String type;
+        Object peer;
+        String message;
+        String identifierForVendor;
+
+        private void record(String type, Object peer) {
+            this.type = type;
+            this.peer = peer;
+        }
+
+        @Override
+        public void onAnnouncementFrame(byte[] frame, Object peer) {
+            record("announcement", peer);
+        }
+
+        @Override
+        public void onClientFrame(byte[] frame, Object peer) {
+            record("client", peer);
+        }
+
+        @Override
+        public void onSendFrame(byte[] frame, Object peer) {
+            record("send", peer);
+            message = FrameCodec.readField(frame, FrameCodec.KEY_MESSAGE);
+            identifierForVendor = FrameCodec.readField(frame, FrameCodec.KEY_IDENTIFIER_FOR_VENDOR);
+        }
+
+        @Override
+        public void onReceiveFrame(byte[] frame, Object peer) {
+            record("receive", peer);
+        }
+
+        @Override
+        public void onRouteFrame(byte[] frame, Object peer) {
+            record("route", peer);
+        }
+
+        @Override
+        public void onJoinFrame(byte[] frame, Object peer) {
+            record("join", peer);
+        }
+
+        @Override
+        public void onPingFrame(byte[] frame, Object peer) {
+            record("ping", peer);
+        }
+
+        @Override
+        public void onPongFrame(byte[] frame, Object peer) {
+            record("pong", peer);
+        }
+
+        @Override
+        public void onLeaveFrame(byte[] frame, Object peer) {
+            record("leave", peer);
+        }
+
+        @Override
+        public void onUnknownFrame(byte[] frame, Object peer) {
+            record("unknown", peer);
+        }
+    }
+}
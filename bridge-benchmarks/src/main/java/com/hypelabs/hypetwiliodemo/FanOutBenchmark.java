@@ -0,0 +1,113 @@
+//
+// MIT License
+//
+// Copyright (C) 2018 HypeLabs Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+
+package com.hypelabs.hypetwiliodemo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of fanning a twilio message out to the peers
+ * subscribed to its channel as the number of peers grows. Half the peers
+ * take binary frames and half the legacy encoding; the transport hands
+ * the frames to a black hole instead of the mesh.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FanOutBenchmark {
+
+    private static final String CHANNEL_SID = "CHa1b2c3d4e5f60718293a4b5c6d7e8f90";
+    private static final int CHANNEL_COUNT = 4;
+
+    @Param({"1", "10", "100", "1000"})
+    public int peerCount;
+
+    private PeerRegistry<Integer, String> registry;
+    private FrameFanOut<Integer> fanOut;
+    private int sequence;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+
+        registry = new PeerRegistry<Integer, String>();
+
+        // Only a quarter of the peers are subscribed to the benchmarked channel.
+        for (int i = 0; i < peerCount * CHANNEL_COUNT; i++) {
+
+            String vendor = String.format("%016x", i);
+            String channelSid = i % CHANNEL_COUNT == 0 ? CHANNEL_SID : CHANNEL_SID + (i % CHANNEL_COUNT);
+            registry.putPeer(vendor, i);
+            registry.putChannel(vendor, channelSid, channelSid);
+        }
+
+        fanOut = new FrameFanOut<Integer>(new MeshTransport<Integer>() {
+
+            @Override
+            public boolean supportsBinaryFrames(Integer peer) {
+                return peer % 2 == 0;
+            }
+
+            @Override
+            public byte[] encodeLegacyFrame(Map<String, String> frame) {
+                return frame.toString().getBytes();
+            }
+
+            @Override
+            public void send(byte[] data, Integer peer) {
+                blackhole.consume(data);
+            }
+        }, new RoutingTable<Integer>());
+        fanOut.setCompressionThreshold(FrameCodec.DEFAULT_COMPRESSION_THRESHOLD);
+    }
+
+    @Benchmark
+    public int fanOut() {
+
+        Map<String, String> message = new HashMap<String, String>();
+        message.put("sid", "IM" + (sequence++));
+        message.put("author", "8f14e45fceea167a");
+        message.put("body", "Hello everyone, is anyone there?");
+
+        return fanOut.fanOut(message, registry.getSubscribedPeers(CHANNEL_SID));
+    }
+}
@@ -0,0 +1,98 @@
+//
+// MIT License
+//
+// Copyright (C) 2018 HypeLabs Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+
+package com.hypelabs.hypetwiliodemo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of encoding and decoding a receive frame, with and
+ * without compression, for short and long message bodies.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FrameCodecBenchmark {
+
+    @Param({"16", "256", "1024"})
+    public int bodyLength;
+
+    @Param({"true", "false"})
+    public boolean compressed;
+
+    private Map<String, String> frame;
+    private byte[] encoded;
+    private int compressionThreshold;
+
+    @Setup
+    public void setUp() {
+
+        StringBuilder body = new StringBuilder(bodyLength);
+
+        while (body.length() < bodyLength) {
+            body.append("we are at the meeting point near the entrance ");
+        }
+        body.setLength(bodyLength);
+
+        frame = new HashMap<String, String>();
+        frame.put("type", "receive");
+        frame.put("sid", "IMa1b2c3d4e5f60718293a4b5c6d7e8f90");
+        frame.put("author", "8f14e45fceea167a");
+        frame.put("ttl", "8");
+        frame.put("body", body.toString());
+
+        compressionThreshold = compressed ? FrameCodec.DEFAULT_COMPRESSION_THRESHOLD : FrameCodec.NO_COMPRESSION;
+        encoded = FrameCodec.encode(frame, compressionThreshold);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+
+        return FrameCodec.encode(frame, compressionThreshold);
+    }
+
+    @Benchmark
+    public Map<String, String> decode() {
+
+        return FrameCodec.decode(encoded);
+    }
+}
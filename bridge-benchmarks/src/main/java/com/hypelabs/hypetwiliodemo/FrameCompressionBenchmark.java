@@ -0,0 +1,137 @@
+//
+// MIT License
+//
+// Copyright (C) 2018 HypeLabs Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+
+
+package com.hypelabs.hypetwiliodemo;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the encode and decode cost of binary frames over a corpus of
+ * chat messages of typical lengths, with and without compression. The
+ * plainBytes and encodedBytes counters add up the frame sizes without and
+ * with the given threshold, their quotient is the compression ratio of
+ * the corpus.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FrameCompressionBenchmark {
+
+    private static final String[] PHRASES = {
+            "Hello everyone", "is anyone there?", "we are at the meeting point near the entrance",
+            "I'm on my way", "see you soon", "the network is down again", "can you hear me",
+            "we need water and food", "my battery is almost dead", "thanks!", "ok", "haha",
+            "where are you?", "tomorrow at 9", "the signal is better near the north gate",
+            "please forward this to the others", "sorry, I missed that", "yes", "no", "maybe later"
+    };
+
+    private static final int CORPUS_SIZE = 2000;
+
+    /**
+     * Frame sizes added up over the invocations of an iteration.
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Sizes {
+
+        public long plainBytes;
+        public long encodedBytes;
+    }
+
+    @Param({"true", "false"})
+    public boolean compressed;
+
+    private List<Map<String, String>> corpus;
+    private int[] plainLengths;
+    private int compressionThreshold;
+    private int next;
+
+    @Setup
+    public void setUp() {
+
+        Random random = new Random(42);
+        corpus = new ArrayList<Map<String, String>>(CORPUS_SIZE);
+        plainLengths = new int[CORPUS_SIZE];
+
+        for (int i = 0; i < CORPUS_SIZE; i++) {
+
+            StringBuilder body = new StringBuilder();
+            int phrases = 1 + random.nextInt(random.nextInt(10) < 7 ? 2 : 8);
+
+            for (int j = 0; j < phrases; j++) {
+                if (j > 0) {
+                    body.append(random.nextBoolean() ? ", " : ". ");
+                }
+                body.append(PHRASES[random.nextInt(PHRASES.length)]);
+            }
+
+            Map<String, String> frame = new HashMap<String, String>();
+            frame.put("type", "receive");
+            frame.put("sid", String.format("IM%032x", random.nextLong()));
+            frame.put("author", String.format("%016x", random.nextLong()));
+            frame.put("body", body.toString());
+
+            corpus.add(frame);
+            plainLengths[i] = FrameCodec.encode(frame).length;
+        }
+
+        compressionThreshold = compressed ? FrameCodec.DEFAULT_COMPRESSION_THRESHOLD : FrameCodec.NO_COMPRESSION;
+    }
+
+    @Benchmark
+    public Map<String, String> encodeAndDecode(Sizes sizes) {
+
+        int index = next;
+        next = (index + 1) % CORPUS_SIZE;
+
+        byte[] encoded = FrameCodec.encode(corpus.get(index), compressionThreshold);
+
+        sizes.plainBytes += plainLengths[index];
+        sizes.encodedBytes += encoded.length;
+        return FrameCodec.decode(encoded);
+    }
+}
@@ -0,0 +1,149 @@
+//
+// MIT License
+//
+// Copyright (C) 2018 HypeLabs Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package com.hypelabs.hypetwiliodemo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of taking an inbound send or receive frame apart,
+ * decoding it into a frame dictionary against dispatching it by its type
+ * tag and reading only the fields the Hype controller handlers read. Run
+ * with -prof gc to see the allocation per frame.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FrameDispatchBenchmark {
+
+    @Param({"send", "receive"})
+    public String type;
+
+    private byte[] encoded;
+    private FrameDispatcher<Object> dispatcher;
+    private int sink;
+
+    @Setup
+    public void setUp() {
+
+        Map<String, String> frame = new HashMap<String, String>();
+        frame.put("type", type);
+
+        if (type.equals("send")) {
+            frame.put("message", "Hey, is anyone at the north gate yet?");
+            frame.put("identifierForVendor", "8f14e45fceea167a");
+        } else {
+            frame.put("sid", "IMa1b2c3d4e5f60718293a4b5c6d7e8f90");
+            frame.put("author", "8f14e45fceea167a");
+            frame.put("body", "Hey, is anyone at the north gate yet?");
+        }
+
+        encoded = FrameCodec.encode(frame, FrameCodec.NO_COMPRESSION);
+        dispatcher = new FrameDispatcher<Object>(new FieldReadingHandler());
+    }
+
+    @Benchmark
+    public int decodeMap() {
+
+        Map<String, String> frame = FrameCodec.decode(encoded);
+
+        if (frame.get("type").equals("send")) {
+            return frame.get("message").length() + frame.get("identifierForVendor").length();
+        }
+        return frame.get("sid").length() + frame.get("author").length() + frame.get("body").length();
+    }
+
+    @Benchmark
+    public int dispatchAndReadFields() {
+
+        sink = 0;
+        dispatcher.dispatch(encoded, this);
+        return sink;
+    }
+
+    private final class FieldReadingHandler implements FrameDispatcher.FrameHandler<Object> {
+
+        @Override
+        public void onAnnouncementFrame(byte[] frame, Object peer) {
+        }
+
+        @Override
+        public void onClientFrame(byte[] frame, Object peer) {
+        }
+
+        @Override
+        public void onSendFrame(byte[] frame, Object peer) {
+            sink = FrameCodec.readField(frame, FrameCodec.KEY_MESSAGE).length()
+                    + FrameCodec.readField(frame, FrameCodec.KEY_IDENTIFIER_FOR_VENDOR).length();
+        }
+
+        @Override
+        public void onReceiveFrame(byte[] frame, Object peer) {
+            sink = FrameCodec.readField(frame, FrameCodec.KEY_SID).length()
+                    + FrameCodec.readField(frame, FrameCodec.KEY_AUTHOR).length()
+                    + FrameCodec.readField(frame, FrameCodec.KEY_BODY).length();
+        }
+
+        @Override
+        public void onRouteFrame(byte[] frame, Object peer) {
+        }
+
+        @Override
+        public void onJoinFrame(byte[] frame, Object peer) {
+        }
+
+        @Override
+        public void onPingFrame(byte[] frame, Object peer) {
+        }
+
+        @Override
+        public void onPongFrame(byte[] frame, Object peer) {
+        }
+
+        @Override
+        public void onLeaveFrame(byte[] frame, Object peer) {
+        }
+
+        @Override
+        public void onUnknownFrame(byte[] frame, Object peer) {
+        }
+    }
+}
@@ -0,0 +1,99 @@
+//
+// MIT License
+//
+// Copyright (C) 2018 HypeLabs Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+
+package com.hypelabs.hypetwiliodemo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the work done on the UI thread to get the text of a chat row,
+ * formatting it from the message dictionary on every bind as the adapter
+ * used to, against reading the text cached in the history entry. Run with
+ * -prof gc to see the allocation per bind.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageBindBenchmark {
+
+    private static final int MESSAGE_COUNT = 256;
+
+    private List<Map<String, String>> messages;
+    private List<MessageHistory.Entry> entries;
+    private int position;
+
+    @Setup
+    public void setUp() {
+
+        messages = new ArrayList<Map<String, String>>(MESSAGE_COUNT);
+        entries = new ArrayList<MessageHistory.Entry>(MESSAGE_COUNT);
+
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+
+            Map<String, String> message = new HashMap<String, String>();
+            message.put("sid", String.format("IM%032x", i));
+            message.put("author", String.format("%016x", i % 7));
+            message.put("body", "we are at the meeting point near the entrance " + i);
+
+            messages.add(message);
+            entries.add(new MessageHistory.Entry(message.get("sid"), message.get("author"), message.get("body")));
+        }
+    }
+
+    @Benchmark
+    public CharSequence formatOnBind() {
+
+        position = (position + 1) % MESSAGE_COUNT;
+        Map<String, String> message = messages.get(position);
+
+        return String.format("%s: %s", message.get("author"), message.get("body"));
+    }
+
+    @Benchmark
+    public CharSequence cachedDisplayText() {
+
+        position = (position + 1) % MESSAGE_COUNT;
+
+        return entries.get(position).getDisplayText();
+    }
+}
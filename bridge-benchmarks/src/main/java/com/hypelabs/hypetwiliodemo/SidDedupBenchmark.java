@@ -0,0 +1,99 @@
+//
+// MIT License
+//
+// Copyright (C) 2018 HypeLabs Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+
+package com.hypelabs.hypetwiliodemo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures SID lookups on a full dedup store, for SIDs that were already
+ * bridged and for new ones, with and without the Bloom filter.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SidDedupBenchmark {
+
+    private static final int LOOKUP_COUNT = 1024;
+
+    @Param({"true", "false"})
+    public boolean bloomFilterEnabled;
+
+    private SidDedupStore store;
+    private String[] knownSids;
+    private String[] newSids;
+    private int next;
+
+    @Setup
+    public void setUp() {
+
+        store = new SidDedupStore(SidDedupStore.DEFAULT_CAPACITY, SidDedupStore.NO_TIME_WINDOW, bloomFilterEnabled);
+        knownSids = new String[LOOKUP_COUNT];
+        newSids = new String[LOOKUP_COUNT];
+
+        for (int i = 0; i < SidDedupStore.DEFAULT_CAPACITY; i++) {
+            store.add(sid(i));
+        }
+
+        for (int i = 0; i < LOOKUP_COUNT; i++) {
+            knownSids[i] = sid(SidDedupStore.DEFAULT_CAPACITY - 1 - i);
+            newSids[i] = sid(SidDedupStore.DEFAULT_CAPACITY + i);
+        }
+    }
+
+    @Benchmark
+    public boolean containsKnownSid() {
+
+        next = (next + 1) % LOOKUP_COUNT;
+        return store.contains(knownSids[next]);
+    }
+
+    @Benchmark
+    public boolean containsNewSid() {
+
+        next = (next + 1) % LOOKUP_COUNT;
+        return store.contains(newSids[next]);
+    }
+
+    private static String sid(int i) {
+
+        return String.format("IM%032x", i);
+    }
+}
@@ -0,0 +1,386 @@
+//
+// MIT License
+//
+// Copyright (C) 2018 HypeLabs Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+
+package com.hypelabs.hypetwiliodemo;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class caches twilio access tokens by identifier for vendor. The
+ * expiry of each token is read from its JWT payload, tokens still in use
+ * are refreshed in the background shortly before they expire, and
+ * concurrent requests for the same vendor share a single fetch.
+ */
+public class AccessTokenCache {
+
+    /**
+     * Lifetime assumed for tokens whose expiry cannot be read.
+     */
+    public static final long DEFAULT_TOKEN_TTL_MILLIS = 60 * 60 * 1000;
+
+    /**
+     * How long before expiry a token is refreshed, and stops being served.
+     */
+    public static final long REFRESH_MARGIN_MILLIS = 60 * 1000;
+
+    private static final Pattern EXPIRY_PATTERN = Pattern.compile("\"exp\"\\s*:\\s*(\\d+)");
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * This interface is implemented by whoever fetches tokens from the server.
+     */
+    public interface Fetcher {
+
+        /**
+         * Fetches a new token for the given vendor.
+         * @param identifierForVendor Vendor the token is for.
+         * @param callback Callback to notify with the outcome, exactly once.
+         */
+        void fetch(String identifierForVendor, Callback callback);
+    }
+
+    /**
+     * This callback receives the outcome of a token request.
+     */
+    public interface Callback {
+
+        /**
+         * This notification indicates that a token is available.
+         * @param accessToken Access token.
+         */
+        void onToken(String accessToken);
+
+        /**
+         * This notification indicates that the token could not be fetched.
+         * @param e Cause of the failure.
+         */
+        void onError(Exception e);
+    }
+
+    private final Fetcher fetcher;
+    private final ScheduledExecutorService refreshTimer;
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private final Map<String, List<Callback>> pendingCallbacks = new HashMap<String, List<Callback>>();
+
+    private long hits;
+    private long fetches;
+
+    /**
+     * Initializes a cache.
+     * @param fetcher Fetcher that requests tokens from the server.
+     * @param refreshTimer Executor used to refresh tokens before they expire.
+     */
+    public AccessTokenCache(Fetcher fetcher, ScheduledExecutorService refreshTimer) {
+
+        this.fetcher = fetcher;
+        this.refreshTimer = refreshTimer;
+    }
+
+    /**
+     * Gets a token for the given vendor, from the cache when it holds one that
+     * does not expire soon, or from the server otherwise.
+     * @param identifierForVendor Vendor the token is for.
+     * @param callback Callback to notify with the outcome.
+     */
+    public void getToken(String identifierForVendor, Callback callback) {
+
+        String accessToken = null;
+        boolean fetch = false;
+
+        synchronized (this) {
+
+            Entry entry = entries.get(identifierForVendor);
+            long now = now();
+
+            if (entry != null && now < entry.expiresAt - REFRESH_MARGIN_MILLIS) {
+
+                entry.lastUsedAt = now;
+                accessToken = entry.accessToken;
+                hits++;
+
+            } else {
+
+                List<Callback> callbacks = pendingCallbacks.get(identifierForVendor);
+
+                if (callbacks == null) {
+                    callbacks = new ArrayList<Callback>();
+                    pendingCallbacks.put(identifierForVendor, callbacks);
+                    fetch = true;
+                }
+                callbacks.add(callback);
+            }
+        }
+
+        if (accessToken != null) {
+            callback.onToken(accessToken);
+        } else if (fetch) {
+            fetch(identifierForVendor);
+        }
+    }
+
+    /**
+     * Gets a token to replace one that is about to expire, or expired, in a
+     * live client. The cache is used unless it still holds that same token,
+     * in which case a new one is fetched.
+     * @param identifierForVendor Vendor the token is for.
+     * @param expiringToken Token the client is using.
+     * @param callback Callback to notify with the outcome.
+     */
+    public void renewToken(String identifierForVendor, String expiringToken, Callback callback) {
+
+        synchronized (this) {
+
+            Entry entry = entries.get(identifierForVendor);
+
+            if (entry != null && entry.accessToken.equals(expiringToken)) {
+                entries.remove(identifierForVendor);
+            }
+        }
+
+        getToken(identifierForVendor, callback);
+    }
+
+    /**
+     * Forgets the token of the given vendor and stops refreshing it.
+     * @param identifierForVendor Vendor to forget.
+     */
+    public synchronized void invalidate(String identifierForVendor) {
+
+        entries.remove(identifierForVendor);
+    }
+
+    /**
+     * @return Number of requests served from the cache.
+     */
+    public synchronized long getHits() {
+
+        return hits;
+    }
+
+    /**
+     * @return Number of tokens fetched from the server, refreshes included.
+     */
+    public synchronized long getFetches() {
+
+        return fetches;
+    }
+
+    protected long now() {
+
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Reads the expiry of a JWT access token.
+     * @param accessToken Access token.
+     * @return Expiry in milliseconds since the epoch, or -1 if it cannot be read.
+     */
+    static long parseExpiry(String accessToken) {
+
+        String[] parts = accessToken.split("\\.");
+
+        if (parts.length < 2) {
+            return -1;
+        }
+
+        byte[] payload = decodeBase64Url(parts[1]);
+
+        if (payload == null) {
+            return -1;
+        }
+
+        Matcher matcher = EXPIRY_PATTERN.matcher(new String(payload, UTF8));
+
+        if (!matcher.find()) {
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(matcher.group(1)) * 1000;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void fetch(final String identifierForVendor) {
+
+        synchronized (this) {
+            fetches++;
+        }
+
+        fetcher.fetch(identifierForVendor, new Callback() {
+
+            @Override
+            public void onToken(String accessToken) {
+                onFetched(identifierForVendor, accessToken, null);
+            }
+
+            @Override
+            public void onError(Exception e) {
+                onFetched(identifierForVendor, null, e);
+            }
+        });
+    }
+
+    private void onFetched(final String identifierForVendor, String accessToken, Exception error) {
+
+        List<Callback> callbacks;
+
+        synchronized (this) {
+
+            callbacks = pendingCallbacks.remove(identifierForVendor);
+
+            if (accessToken != null) {
+
+                long now = now();
+                long expiresAt = parseExpiry(accessToken);
+
+                if (expiresAt < 0) {
+                    expiresAt = now + DEFAULT_TOKEN_TTL_MILLIS;
+                }
+
+                Entry previous = entries.get(identifierForVendor);
+                Entry entry = new Entry(accessToken, expiresAt, now);
+                boolean requested = callbacks != null && !callbacks.isEmpty();
+                entry.lastUsedAt = requested || previous == null ? now : previous.lastUsedAt;
+                entries.put(identifierForVendor, entry);
+
+                scheduleRefresh(identifierForVendor, entry);
+            }
+        }
+
+        if (callbacks == null) {
+            return;
+        }
+
+        for (Callback callback : callbacks) {
+            if (accessToken != null) {
+                callback.onToken(accessToken);
+            } else {
+                callback.onError(error);
+            }
+        }
+    }
+
+    private void scheduleRefresh(final String identifierForVendor, final Entry entry) {
+
+        long delay = Math.max(0, entry.expiresAt - REFRESH_MARGIN_MILLIS - now());
+
+        refreshTimer.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                refresh(identifierForVendor, entry);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void refresh(String identifierForVendor, Entry entry) {
+
+        synchronized (this) {
+
+            // Only the latest token of a vendor is refreshed, and only if it
+            // was used during its lifetime, so departed peers are let go.
+            if (entries.get(identifierForVendor) != entry || entry.lastUsedAt < entry.fetchedAt) {
+
+                if (entries.get(identifierForVendor) == entry) {
+                    entries.remove(identifierForVendor);
+                }
+                return;
+            }
+
+            if (pendingCallbacks.containsKey(identifierForVendor)) {
+                return;
+            }
+            pendingCallbacks.put(identifierForVendor, new ArrayList<Callback>());
+        }
+
+        fetch(identifierForVendor);
+    }
+
+    private static byte[] decodeBase64Url(String value) {
+
+        int bits = 0;
+        int bitCount = 0;
+        byte[] output = new byte[value.length() * 3 / 4];
+        int length = 0;
+
+        for (int i = 0; i < value.length(); i++) {
+
+            char c = value.charAt(i);
+            int digit;
+
+            if (c >= 'A' && c <= 'Z') {
+                digit = c - 'A';
+            } else if (c >= 'a' && c <= 'z') {
+                digit = c - 'a' + 26;
+            } else if (c >= '0' && c <= '9') {
+                digit = c - '0' + 52;
+            } else if (c == '-' || c == '+') {
+                digit = 62;
+            } else if (c == '_' || c == '/') {
+                digit = 63;
+            } else if (c == '=') {
+                break;
+            } else {
+                return null;
+            }
+
+            bits = (bits << 6) | digit;
+            bitCount += 6;
+
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                output[length++] = (byte) (bits >> bitCount);
+            }
+        }
+
+        byte[] result = new byte[length];
+        System.arraycopy(output, 0, result, 0, length);
+        return result;
+    }
+
+    private static class Entry {
+
+        final String accessToken;
+        final long expiresAt;
+        final long fetchedAt;
+        long lastUsedAt;
+
+        Entry(String accessToken, long expiresAt, long fetchedAt) {
+            this.accessToken = accessToken;
+            this.expiresAt = expiresAt;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+//
+// MIT License
+//
+// Copyright (C) 2018 HypeLabs Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+
+package com.hypelabs.hypetwiliodemo;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class runs the events of the bridge one at a time, whatever the
+ * thread that produced them. Producers (the Hype SDK thread, twilio
+ * listeners, network callbacks, the UI) append events to a lock-free
+ * inbox, and a single drain task at a time runs them on the given
+ * executor. State touched only from events is therefore owned by the loop
+ * and needs no locks. Events are drained in batches, and the listener is
+ * told when a batch ends so work requested by several events can be done
+ * once per batch.
+ */
+public class BridgeEventLoop implements Executor {
+
+    /**
+     * Default number of events run before the drain task yields the executor.
+     */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+
+    /**
+     * This listener is notified on the loop when a batch of events was run.
+     */
+    public interface Listener {
+
+        /**
+         * This notification indicates that a batch of events was run.
+         * @param eventCount Number of events in the batch.
+         */
+        void onBatchDrained(int eventCount);
+
+        /**
+         * This notification indicates that an event threw, the loop goes on
+         * with the next event.
+         * @param event Event that threw.
+         * @param exception Exception thrown.
+         */
+        void onEventFailed(Runnable event, RuntimeException exception);
+    }
+
+    private final ConcurrentLinkedQueue<Runnable> inbox = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final Executor executor;
+    private final int maxBatchSize;
+    private final Runnable drainTask = new Runnable() {
+
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+    private volatile Thread loopThread;
+    private volatile Listener listener;
+    private volatile long batchCount;
+
+    /**
+     * Initializes a loop with the default batch size.
+     * @param executor Executor the drain task runs on.
+     */
+    public BridgeEventLoop(Executor executor) {
+
+        this(executor, DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    /**
+     * Initializes a loop.
+     * @param executor Executor the drain task runs on.
+     * @param maxBatchSize Number of events run before the drain task yields the executor.
+     */
+    public BridgeEventLoop(Executor executor, int maxBatchSize) {
+
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+
+        this.executor = executor;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public void setListener(Listener listener) {
+
+        this.listener = listener;
+    }
+
+    /**
+     * Appends an event to the inbox. Never blocks.
+     * @param event Event to run on the loop.
+     */
+    @Override
+    public void execute(Runnable event) {
+
+        if (event == null) {
+            throw new NullPointerException("event");
+        }
+
+        pendingCount.incrementAndGet();
+        inbox.offer(event);
+        scheduleDrain();
+    }
+
+    /**
+     * @return true if called from an event running on the loop.
+     */
+    public boolean isInLoop() {
+
+        return loopThread == Thread.currentThread();
+    }
+
+    /**
+     * @return Number of events waiting in the inbox.
+     */
+    public int getPendingCount() {
+
+        return pendingCount.get();
+    }
+
+    /**
+     * @return Number of batches run so far.
+     */
+    public long getBatchCount() {
+
+        return batchCount;
+    }
+
+    private void scheduleDrain() {
+
+        if (drainScheduled.compareAndSet(false, true)) {
+            executor.execute(drainTask);
+        }
+    }
+
+    private void drain() {
+
+        loopThread = Thread.currentThread();
+
+        try {
+            int drained = 0;
+            Runnable event;
+
+            while (drained < maxBatchSize && (event = inbox.poll()) != null) {
+
+                pendingCount.decrementAndGet();
+                drained++;
+
+                try {
+                    event.run();
+                } catch (RuntimeException e) {
+
+                    Listener listener = this.listener;
+
+                    if (listener != null) {
+                        listener.onEventFailed(event, e);
+                    }
+                }
+            }
+
+            if (drained > 0) {
+
+                batchCount++;
+
+                Listener listener = this.listener;
+
+                if (listener != null) {
+                    listener.onBatchDrained(drained);
+                }
+            }
+        } finally {
+
+            loopThread = null;
+            drainScheduled.set(false);
+
+            // Events offered after the last poll but before the flag was
+            // cleared could not schedule a drain, so check again.
+            if (!inbox.isEmpty()) {
+                scheduleDrain();
+            }
+        }
+    }
+}
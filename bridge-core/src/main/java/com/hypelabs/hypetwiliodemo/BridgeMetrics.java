@@ -0,0 +1,298 @@
+//
+// MIT License
+//
+// Copyright (C) 2018 HypeLabs Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+
+package com.hypelabs.hypetwiliodemo;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class is the registry of the bridge metrics. Counters and latency
+ * histograms are updated without locks from any thread, and gauges read
+ * their value from the component they describe when a snapshot is taken.
+ * Snapshots flatten every metric to named values, which can be dumped as
+ * text or exported to a file.
+ */
+public class BridgeMetrics {
+
+    /**
+     * Time from a mesh peer's message reaching the gateway to twilio acknowledging it.
+     */
+    public static final String MESH_INGRESS_TO_TWILIO_ACK = "mesh.ingress_to_twilio_ack_ms";
+
+    /**
+     * Time from a message being created on this device to twilio acknowledging it.
+     */
+    public static final String TWILIO_SEND_ACK = "twilio.send_ack_ms";
+
+    /**
+     * Time from receiving an access token to joining the default channel, for
+     * chat clients fully synchronized and lazily synchronized.
+     */
+    public static final String TWILIO_JOIN_FULL = "twilio.join_full_ms";
+    public static final String TWILIO_JOIN_LAZY = "twilio.join_lazy_ms";
+
+    /**
+     * Time to hand a twilio message to every subscribed instance, in microseconds.
+     */
+    public static final String TWILIO_TO_MESH_FANOUT = "twilio.to_mesh_fanout_us";
+
+    /**
+     * Time from a frame being sent to a peer to its delivery.
+     */
+    public static final String MESH_DELIVERY = "mesh.delivery_ms";
+
+    public static final String MESH_FRAMES_RECEIVED = "mesh.frames_received";
+    public static final String MESH_FRAMES_FANNED_OUT = "mesh.frames_fanned_out";
+    public static final String TWILIO_MESSAGES_RECEIVED = "twilio.messages_received";
+    public static final String TWILIO_SEND_ERRORS = "twilio.send_errors";
+    public static final String DEDUP_HITS = "dedup.hits";
+    public static final String DEDUP_MISSES = "dedup.misses";
+    public static final String DEDUP_HIT_RATE = "dedup.hit_rate_percent";
+    public static final String MESH_QUEUE_DEPTH = "mesh.queue_depth";
+    public static final String MESH_MAX_QUEUE_DEPTH = "mesh.max_queue_depth";
+    public static final String MESH_IN_FLIGHT = "mesh.in_flight";
+    public static final String MESH_DROPPED = "mesh.dropped";
+    public static final String OUTBOX_SIZE = "outbox.size";
+    public static final String CHAT_CLIENTS = "twilio.chat_clients";
+    public static final String BRIDGE_INBOX_DEPTH = "bridge.inbox_depth";
+
+    /**
+     * Number of batches run by the bridge event loop, and of events run in them.
+     */
+    public static final String BRIDGE_EVENT_BATCHES = "bridge.event_batches";
+    public static final String BRIDGE_EVENTS = "bridge.events";
+
+    /**
+     * Largest number of events run in a single batch of the bridge event loop.
+     */
+    public static final String BRIDGE_MAX_EVENT_BATCH = "bridge.max_event_batch";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * This interface is implemented by values read when a snapshot is taken.
+     */
+    public interface Gauge {
+
+        /**
+         * @return Current value of the gauge.
+         */
+        long getValue();
+    }
+
+    private final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentHashMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+    private final ConcurrentHashMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+
+    /**
+     * Increments a counter.
+     * @param name Name of the counter.
+     */
+    public void increment(String name) {
+
+        add(name, 1);
+    }
+
+    /**
+     * Adds to a counter.
+     * @param name Name of the counter.
+     * @param delta Value to add.
+     */
+    public void add(String name, long delta) {
+
+        getOrCreateCounter(name).addAndGet(delta);
+    }
+
+    /**
+     * Raises a counter to a value, if the value is larger. Counters updated
+     * this way hold the maximum of the values recorded, and are kept apart
+     * from the histograms, which only take latencies.
+     * @param name Name of the counter.
+     * @param value Value recorded.
+     */
+    public void recordMax(String name, long value) {
+
+        AtomicLong counter = getOrCreateCounter(name);
+        long current;
+
+        while ((current = counter.get()) < value) {
+
+            if (counter.compareAndSet(current, value)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param name Name of the counter.
+     * @return Value of the counter, zero if it was never updated.
+     */
+    public long getCounter(String name) {
+
+        AtomicLong counter = counters.get(name);
+        return counter != null ? counter.get() : 0;
+    }
+
+    private AtomicLong getOrCreateCounter(String name) {
+
+        AtomicLong counter = counters.get(name);
+
+        if (counter == null) {
+
+            AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(name, created);
+
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Records a latency. Histograms hold plain numbers, so the unit is the
+     * one their name ends with: milliseconds for _ms, microseconds for _us.
+     * @param name Name of the histogram.
+     * @param latency Latency in the unit of the histogram.
+     */
+    public void recordLatency(String name, long latency) {
+
+        getHistogram(name).record(latency);
+    }
+
+    /**
+     * @param name Name of the histogram.
+     * @return Histogram with the given name, created if needed.
+     */
+    public LatencyHistogram getHistogram(String name) {
+
+        LatencyHistogram histogram = histograms.get(name);
+
+        if (histogram == null) {
+
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = histograms.putIfAbsent(name, created);
+
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Registers a gauge, replacing any gauge with the same name.
+     * @param name Name of the gauge.
+     * @param gauge Gauge to read when a snapshot is taken.
+     */
+    public void registerGauge(String name, Gauge gauge) {
+
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Takes a snapshot of every metric. Histograms are flattened to their
+     * count, mean, 50th, 90th and 99th percentiles and maximum, under the
+     * name of the histogram followed by the statistic.
+     * @return Values of the metrics, sorted by name.
+     */
+    public Map<String, Long> snapshot() {
+
+        Map<String, Long> snapshot = new TreeMap<String, Long>();
+
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().get());
+        }
+
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            try {
+                snapshot.put(entry.getKey(), entry.getValue().getValue());
+            } catch (RuntimeException e) {
+                // A gauge failing to read must not take the whole snapshot down.
+                e.printStackTrace();
+            }
+        }
+
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+
+            LatencyHistogram histogram = entry.getValue();
+            String name = entry.getKey();
+
+            snapshot.put(name + ".count", histogram.getCount());
+            snapshot.put(name + ".mean", Math.round(histogram.getMean()));
+            snapshot.put(name + ".p50", histogram.getValueAtPercentile(50));
+            snapshot.put(name + ".p90", histogram.getValueAtPercentile(90));
+            snapshot.put(name + ".p99", histogram.getValueAtPercentile(99));
+            snapshot.put(name + ".max", histogram.getMax());
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return Snapshot of every metric, one "name value" pair per line.
+     */
+    public String dump() {
+
+        StringBuilder builder = new StringBuilder();
+
+        for (Map.Entry<String, Long> entry : snapshot().entrySet()) {
+            builder.append(String.format(Locale.US, "%s %d%n", entry.getKey(), entry.getValue()));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Writes a snapshot of every metric to a file. The snapshot is written
+     * to a temporary file first and renamed over the target, so readers
+     * never see a partial export.
+     * @param file File to write.
+     * @throws IOException If the file could not be written.
+     */
+    public void exportTo(File file) throws IOException {
+
+        File temporary = new File(file.getPath() + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(temporary), UTF8);
+
+        try {
+            writer.write(dump());
+        } finally {
+            writer.close();
+        }
+
+        if (!temporary.renameTo(file)) {
+            throw new IOException("Could not rename " + temporary + " to " + file);
+        }
+    }
+}
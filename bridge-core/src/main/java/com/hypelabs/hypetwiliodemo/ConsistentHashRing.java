@@ -0,0 +1,178 @@
+//
+// MIT License
+//
+// Copyright (C) 2018 HypeLabs Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+
+package com.hypelabs.hypetwiliodemo;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class assigns keys to nodes with consistent hashing. Each node is
+ * placed at several points of a hash ring, and a key belongs to the first
+ * node found walking the ring clockwise from the hash of the key. Every
+ * device computing the ring over the same nodes agrees on the assignment,
+ * and a node leaving only moves the keys it owned, spread over the others.
+ */
+public class ConsistentHashRing {
+
+    /**
+     * Default number of points each node takes on the ring.
+     */
+    public static final int DEFAULT_VIRTUAL_NODES = 64;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final int virtualNodes;
+    private final TreeMap<Long, String> ring = new TreeMap<Long, String>();
+    private final List<String> nodes = new ArrayList<String>();
+
+    /**
+     * Initializes an empty ring with the default number of virtual nodes.
+     */
+    public ConsistentHashRing() {
+
+        this(DEFAULT_VIRTUAL_NODES);
+    }
+
+    /**
+     * Initializes an empty ring.
+     * @param virtualNodes Number of points each node takes on the ring.
+     */
+    public ConsistentHashRing(int virtualNodes) {
+
+        if (virtualNodes <= 0) {
+            throw new IllegalArgumentException("Virtual nodes must be positive: " + virtualNodes);
+        }
+        this.virtualNodes = virtualNodes;
+    }
+
+    /**
+     * Adds a node to the ring.
+     * @param node Node to add.
+     * @return false if the node was already in the ring.
+     */
+    public synchronized boolean addNode(String node) {
+
+        if (nodes.contains(node)) {
+            return false;
+        }
+
+        nodes.add(node);
+
+        for (int i = 0; i < virtualNodes; i++) {
+
+            long point = hash(node + "#" + i);
+
+            // Colliding points are settled by node order, so every device
+            // resolves them the same way whatever order nodes were added in.
+            String owner = ring.get(point);
+
+            if (owner == null || node.compareTo(owner) < 0) {
+                ring.put(point, node);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes a node from the ring.
+     * @param node Node to remove.
+     * @return false if the node was not in the ring.
+     */
+    public synchronized boolean removeNode(String node) {
+
+        if (!nodes.remove(node)) {
+            return false;
+        }
+
+        ring.clear();
+
+        List<String> remaining = new ArrayList<String>(nodes);
+        nodes.clear();
+
+        for (String remainingNode : remaining) {
+            addNode(remainingNode);
+        }
+        return true;
+    }
+
+    /**
+     * @param node Node to check.
+     * @return true if the node is in the ring.
+     */
+    public synchronized boolean containsNode(String node) {
+
+        return nodes.contains(node);
+    }
+
+    /**
+     * @return Nodes in the ring.
+     */
+    public synchronized List<String> getNodes() {
+
+        return new ArrayList<String>(nodes);
+    }
+
+    /**
+     * @param key Key to assign.
+     * @return Node the key is assigned to, or null if the ring is empty.
+     */
+    public synchronized String getNode(String key) {
+
+        if (ring.isEmpty()) {
+            return null;
+        }
+
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+
+        if (entry == null) {
+            entry = ring.firstEntry();
+        }
+        return entry.getValue();
+    }
+
+    static long hash(String value) {
+
+        byte[] digest;
+
+        try {
+            digest = MessageDigest.getInstance("MD5").digest(value.getBytes(UTF8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        long hash = 0;
+
+        for (int i = 0; i < 8; i++) {
+            hash = (hash << 8) | (digest[i] & 0xff);
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,556 @@
+//
+// MIT License
+//
+// Copyright (C) 2018 HypeLabs Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package com.hypelabs.hypetwiliodemo;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * This class encodes and decodes the frames exchanged between
+ * Hype instances using a compact binary format. A frame starts with
+ * a three byte header (version, flags and type tag) followed by the
+ * frame fields. Each field is written as a key tag, with well known
+ * keys taking a single byte, and a length prefixed UTF-8 value.
+ * Frames that do not start with the version byte are legacy JSON
+ * frames and must be parsed by the caller.
+ * Fields of large frames may be deflated with a preset dictionary of
+ * common chat text, which is flagged in the header. The header itself is
+ * never compressed so the type tag can still be read directly, but the
+ * field readers expect a frame that went through decompress first.
+ */
+public final class FrameCodec {
+
+    /**
+     * Version of the binary frame format. JSON frames always start
+     * with '{', so this byte never clashes with the legacy format.
+     */
+    public static final byte VERSION = 0x01;
+
+    /**
+     * Length of the frame header, in bytes.
+     */
+    public static final int HEADER_LENGTH = 3;
+
+    static final int VERSION_OFFSET = 0;
+    static final int FLAGS_OFFSET = 1;
+    static final int TYPE_OFFSET = 2;
+
+    /**
+     * Header flag set when the frame fields are deflated.
+     */
+    public static final byte FLAG_COMPRESSED = 0x01;
+
+    /**
+     * Size of the encoded fields, in bytes, from which compression is tried.
+     */
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 96;
+
+    /**
+     * Largest size of the fields a compressed frame may inflate to.
+     */
+    static final int MAX_DECOMPRESSED_LENGTH = 1024 * 1024;
+
+    /**
+     * Value of the compression threshold that disables compression.
+     */
+    public static final int NO_COMPRESSION = Integer.MAX_VALUE;
+
+    /**
+     * Preset dictionary shared by every peer speaking this frame version.
+     * Deflate favours the end of the dictionary, so the most common
+     * strings come last. Changing it requires a new frame version.
+     */
+    private static final byte[] COMPRESSION_DICTIONARY = ("http://https://www.com .jpg :) :( haha lol ok okay thanks thank you "
+            + "please sorry yes no maybe where are you when will what is the how are you doing "
+            + "I'm on my way see you soon at the meeting point near the entrance tomorrow today tonight "
+            + "is anyone there can you hear me we need help water food battery signal network internet "
+            + "the and that this with have for not you are was but they from will would there their "
+            + "Hello hello Hi hi Hey hey everyone ").getBytes(Charset.forName("UTF-8"));
+
+    public static final byte TYPE_UNKNOWN = 0;
+    public static final byte TYPE_ANNOUNCEMENT = 1;
+    public static final byte TYPE_CLIENT = 2;
+    public static final byte TYPE_SEND = 3;
+    public static final byte TYPE_RECEIVE = 4;
+    public static final byte TYPE_ROUTE = 5;
+    public static final byte TYPE_JOIN = 6;
+    public static final byte TYPE_PING = 7;
+    public static final byte TYPE_PONG = 8;
+    public static final byte TYPE_LEAVE = 9;
+
+    private static final String[] TYPE_NAMES = {
+            null,
+            "announcement",
+            "client",
+            "send",
+            "receive",
+            "route",
+            "join",
+            "ping",
+            "pong",
+            "leave"
+    };
+
+    public static final byte KEY_LITERAL = 0;
+    public static final byte KEY_TWILIO = 1;
+    public static final byte KEY_VENDOR_IDENTIFIER = 2;
+    public static final byte KEY_IDENTITY = 3;
+    public static final byte KEY_MESSAGE = 4;
+    public static final byte KEY_IDENTIFIER_FOR_VENDOR = 5;
+    public static final byte KEY_SID = 6;
+    public static final byte KEY_BODY = 7;
+    public static final byte KEY_AUTHOR = 8;
+    public static final byte KEY_HOPS = 9;
+    public static final byte KEY_TTL = 10;
+    public static final byte KEY_FRAME_ID = 11;
+    public static final byte KEY_NONCE = 12;
+    public static final byte KEY_LOAD = 13;
+
+    private static final String[] KEY_NAMES = {
+            null,
+            "twilio",
+            "vendorIdentifier",
+            "identity",
+            "message",
+            "identifierForVendor",
+            "sid",
+            "body",
+            "author",
+            "hops",
+            "ttl",
+            "frameId",
+            "nonce",
+            "load"
+    };
+
+    private static final String TYPE_KEY = "type";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private FrameCodec() {
+    }
+
+    /**
+     * Checks whether the given data holds a binary frame.
+     * @param data Data received from the network.
+     * @return true if the data starts with a binary frame header.
+     */
+    public static boolean isBinaryFrame(byte[] data) {
+
+        return data != null && data.length >= HEADER_LENGTH && data[VERSION_OFFSET] == VERSION;
+    }
+
+    /**
+     * Encodes the given frame dictionary into an uncompressed binary frame.
+     * @param frame Frame dictionary, with its type under the "type" key.
+     * @return Encoded frame.
+     */
+    public static byte[] encode(Map<String, String> frame) {
+
+        return encode(frame, NO_COMPRESSION);
+    }
+
+    /**
+     * Encodes the given frame dictionary into a binary frame, deflating its
+     * fields when they are at least as large as the given threshold and
+     * compression actually makes them smaller.
+     * @param frame Frame dictionary, with its type under the "type" key.
+     * @param compressionThreshold Size of the fields from which compression is tried.
+     * @return Encoded frame.
+     */
+    public static byte[] encode(Map<String, String> frame, int compressionThreshold) {
+
+        byte[] data = encodeFields(frame);
+
+        if (data.length - HEADER_LENGTH < compressionThreshold) {
+            return data;
+        }
+
+        byte[] compressed = compress(data);
+        return compressed.length < data.length ? compressed : data;
+    }
+
+    /**
+     * Checks whether the fields of a binary frame are deflated.
+     * @param data Binary frame, as checked by isBinaryFrame.
+     * @return true if the frame must go through decompress before its fields are read.
+     */
+    public static boolean isCompressed(byte[] data) {
+
+        return (data[FLAGS_OFFSET] & FLAG_COMPRESSED) != 0;
+    }
+
+    /**
+     * Inflates the fields of a compressed binary frame.
+     * @param data Binary frame, as checked by isBinaryFrame.
+     * @return Uncompressed frame, or the given frame if it was not compressed.
+     * @throws IllegalArgumentException If the frame is malformed.
+     */
+    public static byte[] decompress(byte[] data) {
+
+        if (!isCompressed(data)) {
+            return data;
+        }
+
+        int[] cursor = new int[] { HEADER_LENGTH };
+        int length = readVarInt(data, cursor);
+
+        if (length < 0 || length > MAX_DECOMPRESSED_LENGTH) {
+            throw new IllegalArgumentException("Malformed compressed frame length");
+        }
+
+        byte[] output = new byte[HEADER_LENGTH + length];
+        output[VERSION_OFFSET] = data[VERSION_OFFSET];
+        output[FLAGS_OFFSET] = (byte) (data[FLAGS_OFFSET] & ~FLAG_COMPRESSED);
+        output[TYPE_OFFSET] = data[TYPE_OFFSET];
+
+        Inflater inflater = new Inflater(true);
+
+        try {
+            inflater.setDictionary(COMPRESSION_DICTIONARY);
+            inflater.setInput(data, cursor[0], data.length - cursor[0]);
+
+            int offset = HEADER_LENGTH;
+
+            while (offset < output.length) {
+
+                int inflated = inflater.inflate(output, offset, output.length - offset);
+
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                offset += inflated;
+            }
+
+            if (offset != output.length) {
+                throw new IllegalArgumentException("Truncated compressed frame");
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Malformed compressed frame", e);
+        } finally {
+            inflater.end();
+        }
+        return output;
+    }
+
+    private static byte[] compress(byte[] data) {
+
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        ByteArrayOutputStream output = new ByteArrayOutputStream(data.length);
+
+        output.write(data[VERSION_OFFSET]);
+        output.write(data[FLAGS_OFFSET] | FLAG_COMPRESSED);
+        output.write(data[TYPE_OFFSET]);
+        writeVarInt(output, data.length - HEADER_LENGTH);
+
+        try {
+            deflater.setDictionary(COMPRESSION_DICTIONARY);
+            deflater.setInput(data, HEADER_LENGTH, data.length - HEADER_LENGTH);
+            deflater.finish();
+
+            byte[] buffer = new byte[256];
+
+            while (!deflater.finished()) {
+                int deflated = deflater.deflate(buffer);
+                output.write(buffer, 0, deflated);
+            }
+        } finally {
+            deflater.end();
+        }
+        return output.toByteArray();
+    }
+
+    private static byte[] encodeFields(Map<String, String> frame) {
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream(64);
+        String type = frame.get(TYPE_KEY);
+        byte typeTag = typeTagForName(type);
+
+        output.write(VERSION);
+        output.write(0);
+        output.write(typeTag);
+
+        for (Map.Entry<String, String> entry : frame.entrySet()) {
+
+            String key = entry.getKey();
+            String value = entry.getValue();
+
+            if (value == null || (TYPE_KEY.equals(key) && typeTag != TYPE_UNKNOWN)) {
+                continue;
+            }
+
+            byte keyTag = keyTagForName(key);
+            output.write(keyTag);
+
+            if (keyTag == KEY_LITERAL) {
+                writeString(output, key);
+            }
+            writeString(output, value);
+        }
+
+        return output.toByteArray();
+    }
+
+    /**
+     * Decodes a binary frame into a frame dictionary.
+     * @param data Binary frame, as checked by isBinaryFrame.
+     * @return Frame dictionary.
+     * @throws IllegalArgumentException If the frame is malformed.
+     */
+    public static Map<String, String> decode(byte[] data) {
+
+        if (!isBinaryFrame(data)) {
+            throw new IllegalArgumentException("Not a binary frame");
+        }
+
+        data = decompress(data);
+
+        Map<String, String> frame = new HashMap<String, String>();
+        String type = typeNameForTag(data[TYPE_OFFSET]);
+
+        if (type != null) {
+            frame.put(TYPE_KEY, type);
+        }
+
+        int[] cursor = new int[] { HEADER_LENGTH };
+
+        while (cursor[0] < data.length) {
+
+            byte keyTag = data[cursor[0]++];
+            String key = keyTag == KEY_LITERAL ? readString(data, cursor) : keyNameForTag(keyTag);
+            String value = readString(data, cursor);
+
+            if (key != null) {
+                frame.put(key, value);
+            }
+        }
+
+        return frame;
+    }
+
+    /**
+     * Reads the type tag of a binary frame without decoding its fields.
+     * @param data Binary frame, as checked by isBinaryFrame.
+     * @return Type tag.
+     */
+    public static byte readType(byte[] data) {
+
+        return data[TYPE_OFFSET];
+    }
+
+    /**
+     * Reads a single well known field from a binary frame, without building
+     * a frame dictionary.
+     * @param data Uncompressed binary frame.
+     * @param keyTag Key tag of the field to read.
+     * @return Field value, or null if the frame does not hold the field.
+     */
+    public static String readField(byte[] data, byte keyTag) {
+
+        int position = findField(data, keyTag);
+
+        if (position < 0) {
+            return null;
+        }
+
+        int length = readVarIntAt(data, position);
+        return new String(data, position + varIntSize(length), length, UTF8);
+    }
+
+    /**
+     * Compares a well known field of a binary frame against the given value,
+     * byte by byte, without decoding it.
+     * @param data Uncompressed binary frame.
+     * @param keyTag Key tag of the field to compare.
+     * @param expected UTF-8 bytes of the expected value.
+     * @return true if the field is present and equal to the expected value.
+     */
+    public static boolean fieldEquals(byte[] data, byte keyTag, byte[] expected) {
+
+        int position = findField(data, keyTag);
+
+        if (position < 0) {
+            return false;
+        }
+
+        int length = readVarIntAt(data, position);
+
+        if (length != expected.length) {
+            return false;
+        }
+
+        position += varIntSize(length);
+
+        for (int i = 0; i < length; i++) {
+            if (data[position + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Maps a frame type name to its type tag.
+     * @param type Frame type name.
+     * @return Type tag, or TYPE_UNKNOWN.
+     */
+    public static byte typeTagForName(String type) {
+
+        for (int i = 1; i < TYPE_NAMES.length; i++) {
+            if (TYPE_NAMES[i].equals(type)) {
+                return (byte) i;
+            }
+        }
+        return TYPE_UNKNOWN;
+    }
+
+    /**
+     * Maps a type tag to its frame type name.
+     * @param typeTag Type tag.
+     * @return Frame type name, or null if the tag is unknown.
+     */
+    public static String typeNameForTag(byte typeTag) {
+
+        return typeTag > 0 && typeTag < TYPE_NAMES.length ? TYPE_NAMES[typeTag] : null;
+    }
+
+    private static byte keyTagForName(String key) {
+
+        for (int i = 1; i < KEY_NAMES.length; i++) {
+            if (KEY_NAMES[i].equals(key)) {
+                return (byte) i;
+            }
+        }
+        return KEY_LITERAL;
+    }
+
+    private static String keyNameForTag(byte keyTag) {
+
+        return keyTag > 0 && keyTag < KEY_NAMES.length ? KEY_NAMES[keyTag] : null;
+    }
+
+    private static int findField(byte[] data, byte keyTag) {
+
+        int position = HEADER_LENGTH;
+
+        while (position < data.length) {
+
+            byte tag = data[position++];
+
+            if (tag == KEY_LITERAL) {
+                position = skipString(data, position);
+            } else if (tag == keyTag) {
+                skipString(data, position);
+                return position;
+            }
+            position = skipString(data, position);
+        }
+        return -1;
+    }
+
+    private static int skipString(byte[] data, int position) {
+
+        int length = readVarIntAt(data, position);
+        position += varIntSize(length);
+
+        if (length < 0 || position + length > data.length) {
+            throw new IllegalArgumentException("Truncated frame field");
+        }
+        return position + length;
+    }
+
+    private static void writeString(ByteArrayOutputStream output, String value) {
+
+        byte[] bytes = value.getBytes(UTF8);
+        writeVarInt(output, bytes.length);
+        output.write(bytes, 0, bytes.length);
+    }
+
+    private static String readString(byte[] data, int[] cursor) {
+
+        int length = readVarInt(data, cursor);
+
+        if (length < 0 || cursor[0] + length > data.length) {
+            throw new IllegalArgumentException("Truncated frame field");
+        }
+
+        String value = new String(data, cursor[0], length, UTF8);
+        cursor[0] += length;
+        return value;
+    }
+
+    static void writeVarInt(ByteArrayOutputStream output, int value) {
+
+        while ((value & ~0x7F) != 0) {
+            output.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output.write(value);
+    }
+
+    static int readVarInt(byte[] data, int[] cursor) {
+
+        int value = readVarIntAt(data, cursor[0]);
+        cursor[0] += varIntSize(value);
+        return value;
+    }
+
+    static int readVarIntAt(byte[] data, int position) {
+
+        int value = 0;
+        int shift = 0;
+
+        while (shift < 32) {
+
+            if (position >= data.length) {
+                throw new IllegalArgumentException("Truncated frame length");
+            }
+
+            byte b = data[position++];
+            value |= (b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+        throw new IllegalArgumentException("Malformed frame length");
+    }
+
+    static int varIntSize(int value) {
+
+        int size = 1;
+
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
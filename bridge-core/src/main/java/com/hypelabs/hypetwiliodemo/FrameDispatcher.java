@@ -0,0 +1,187 @@
+//
+// MIT License
+//
+// Copyright (C) 2018 HypeLabs Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package com.hypelabs.hypetwiliodemo;
+
+/**
+ * This class routes binary frames to typed handlers by reading the
+ * type tag straight from the frame header. Handlers receive the raw
+ * frame and read only the fields they need through FrameCodec, so no
+ * intermediate string or dictionary is built on the way in. Compressed
+ * frames are inflated before they reach the handlers.
+ * @param <P> Type of the peer the frame was received from.
+ */
+public final class FrameDispatcher<P> {
+
+    /**
+     * This handler receives the frames routed by the dispatcher.
+     * @param <P> Type of the peer the frame was received from.
+     */
+    public interface FrameHandler<P> {
+
+        /**
+         * This notification indicates that a peer announced itself.
+         * @param frame Binary frame received.
+         * @param peer Peer that sent the frame.
+         */
+        void onAnnouncementFrame(byte[] frame, P peer);
+
+        /**
+         * This notification indicates that a gateway joined us to a channel.
+         * @param frame Binary frame received.
+         * @param peer Peer that sent the frame.
+         */
+        void onClientFrame(byte[] frame, P peer);
+
+        /**
+         * This notification indicates that a peer wants a message sent to twilio.
+         * @param frame Binary frame received.
+         * @param peer Peer that sent the frame.
+         */
+        void onSendFrame(byte[] frame, P peer);
+
+        /**
+         * This notification indicates that a gateway forwarded a twilio message.
+         * @param frame Binary frame received.
+         * @param peer Peer that sent the frame.
+         */
+        void onReceiveFrame(byte[] frame, P peer);
+
+        /**
+         * This notification indicates that a peer advertised its hop count
+         * to the nearest gateway.
+         * @param frame Binary frame received.
+         * @param peer Peer that sent the frame.
+         */
+        void onRouteFrame(byte[] frame, P peer);
+
+        /**
+         * This notification indicates that a peer relayed a request to join
+         * twilio on behalf of a device further away.
+         * @param frame Binary frame received.
+         * @param peer Peer that sent the frame.
+         */
+        void onJoinFrame(byte[] frame, P peer);
+
+        /**
+         * This notification indicates that a peer probed the round trip time.
+         * @param frame Binary frame received.
+         * @param peer Peer that sent the frame.
+         */
+        void onPingFrame(byte[] frame, P peer);
+
+        /**
+         * This notification indicates that a peer answered a probe.
+         * @param frame Binary frame received.
+         * @param peer Peer that sent the frame.
+         */
+        void onPongFrame(byte[] frame, P peer);
+
+        /**
+         * This notification indicates that a peer is now served by another
+         * gateway and no longer needs its client here.
+         * @param frame Binary frame received.
+         * @param peer Peer that sent the frame.
+         */
+        void onLeaveFrame(byte[] frame, P peer);
+
+        /**
+         * This notification indicates that the frame type is not known to
+         * the dispatcher.
+         * @param frame Binary frame received.
+         * @param peer Peer that sent the frame.
+         */
+        void onUnknownFrame(byte[] frame, P peer);
+    }
+
+    private final FrameHandler<P> handler;
+
+    /**
+     * Initializes a dispatcher that routes frames to the given handler.
+     * @param handler Handler that receives the frames.
+     */
+    public FrameDispatcher(FrameHandler<P> handler) {
+
+        this.handler = handler;
+    }
+
+    /**
+     * Routes the given data to the handler, if it holds a binary frame.
+     * @param data Data received from the network.
+     * @param peer Peer that sent the data.
+     * @return false if the data is not a binary frame and must be parsed as JSON.
+     */
+    public boolean dispatch(byte[] data, P peer) {
+
+        if (!FrameCodec.isBinaryFrame(data)) {
+            return false;
+        }
+
+        data = FrameCodec.decompress(data);
+
+        switch (FrameCodec.readType(data)) {
+
+            case FrameCodec.TYPE_ANNOUNCEMENT:
+                handler.onAnnouncementFrame(data, peer);
+                break;
+
+            case FrameCodec.TYPE_CLIENT:
+                handler.onClientFrame(data, peer);
+                break;
+
+            case FrameCodec.TYPE_SEND:
+                handler.onSendFrame(data, peer);
+                break;
+
+            case FrameCodec.TYPE_RECEIVE:
+                handler.onReceiveFrame(data, peer);
+                break;
+
+            case FrameCodec.TYPE_ROUTE:
+                handler.onRouteFrame(data, peer);
+                break;
+
+            case FrameCodec.TYPE_JOIN:
+                handler.onJoinFrame(data, peer);
+                break;
+
+            case FrameCodec.TYPE_PING:
+                handler.onPingFrame(data, peer);
+                break;
+
+            case FrameCodec.TYPE_PONG:
+                handler.onPongFrame(data, peer);
+                break;
+
+            case FrameCodec.TYPE_LEAVE:
+                handler.onLeaveFrame(data, peer);
+                break;
+
+            default:
+                handler.onUnknownFrame(data, peer);
+                break;
+        }
+        return true;
+    }
+}
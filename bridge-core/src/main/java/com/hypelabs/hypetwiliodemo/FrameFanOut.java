@@ -0,0 +1,219 @@
+//
+// MIT License
+//
+// Copyright (C) 2018 HypeLabs Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+
+package com.hypelabs.hypetwiliodemo;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class sends twilio messages to the mesh devices subscribed to their
+ * channel. Subscribers in range get the message directly, without a ttl,
+ * and do not pass it on. Subscribers further away get a copy addressed to
+ * them, which goes back along the path their join came through, one hop
+ * at a time, with one less hop left in its ttl at each relay. Nothing is
+ * flooded, devices that did not subscribe never get a copy. Each frame is
+ * encoded at most once per format, whatever the number of peers, and is
+ * marked as seen in the routing table so it is not taken back when it
+ * comes around.
+ * @param <P> Type of the mesh peers.
+ */
+public class FrameFanOut<P> {
+
+    static final String TYPE_KEY = "type";
+    static final String SID_KEY = "sid";
+    static final String TTL_KEY = "ttl";
+    static final String IDENTIFIER_FOR_VENDOR_KEY = "identifierForVendor";
+    static final String RECEIVE_TYPE = "receive";
+
+    private final MeshTransport<P> transport;
+    private final RoutingTable<P> routingTable;
+    private volatile int compressionThreshold = FrameCodec.NO_COMPRESSION;
+
+    /**
+     * Initializes a fan out.
+     * @param transport Transport used to send the frames.
+     * @param routingTable Routing table where flooded sids are marked, or null.
+     */
+    public FrameFanOut(MeshTransport<P> transport, RoutingTable<P> routingTable) {
+
+        this.transport = transport;
+        this.routingTable = routingTable;
+    }
+
+    /**
+     * Sets the size of the frame fields from which binary frames are compressed.
+     * @param compressionThreshold Threshold in bytes, or FrameCodec.NO_COMPRESSION.
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Sends a message to the given neighbours, which take it as it is and
+     * do not pass it on. Messages without a type are sent as receive frames.
+     * @param message Message dictionary, left unchanged.
+     * @param peers Peers keyed by identifier for vendor.
+     * @return Number of peers the message was sent to.
+     */
+    public int fanOut(Map<String, String> message, Map<String, P> peers) {
+
+        Map<String, String> frame = new LinkedHashMap<String, String>(message);
+
+        frame.remove(TTL_KEY);
+        frame.remove(IDENTIFIER_FOR_VENDOR_KEY);
+        return send(frame, peers);
+    }
+
+    /**
+     * Sends a message to devices that are not neighbours, one copy addressed
+     * to each, through the neighbour their join came from. Devices without a
+     * known route are skipped.
+     * @param message Message dictionary, left unchanged.
+     * @param identifiersForVendor Identifiers for vendor of the addressees.
+     * @return Number of copies sent.
+     */
+    public int route(Map<String, String> message, Collection<String> identifiersForVendor) {
+
+        int sent = 0;
+
+        for (String identifierForVendor : identifiersForVendor) {
+
+            P nextHop = routingTable != null ? routingTable.getReverseRoute(identifierForVendor) : null;
+
+            if (nextHop == null) {
+                continue;
+            }
+
+            Map<String, String> frame = new LinkedHashMap<String, String>(message);
+            frame.put(IDENTIFIER_FOR_VENDOR_KEY, identifierForVendor);
+            frame.put(TTL_KEY, String.valueOf(RoutingTable.DEFAULT_TTL));
+
+            sent += send(frame, Collections.singletonMap(identifierForVendor, nextHop));
+        }
+        return sent;
+    }
+
+    /**
+     * Passes a message addressed to another device one hop closer to it.
+     * An addressee in range gets the message directly; otherwise it goes
+     * to the neighbour its join came from, with its ttl decremented.
+     * Messages whose ttl ran out or without a route are dropped.
+     * @param message Message dictionary as received, left unchanged.
+     * @param addressee Addressee, if it is a neighbour, or null.
+     * @return Number of peers the message was sent to.
+     */
+    public int forward(Map<String, String> message, P addressee) {
+
+        String identifierForVendor = message.get(IDENTIFIER_FOR_VENDOR_KEY);
+
+        if (identifierForVendor == null) {
+            return 0;
+        }
+
+        if (addressee != null) {
+            return fanOut(message, Collections.singletonMap(identifierForVendor, addressee));
+        }
+
+        int ttl;
+
+        try {
+            ttl = message.get(TTL_KEY) != null ? Integer.parseInt(message.get(TTL_KEY)) : 0;
+        } catch (NumberFormatException e) {
+            ttl = 0;
+        }
+
+        P nextHop = routingTable != null ? routingTable.getReverseRoute(identifierForVendor) : null;
+
+        if (ttl <= 1 || nextHop == null) {
+            return 0;
+        }
+
+        Map<String, String> frame = new LinkedHashMap<String, String>(message);
+        frame.put(TTL_KEY, String.valueOf(ttl - 1));
+
+        return send(frame, Collections.singletonMap(identifierForVendor, nextHop));
+    }
+
+    /**
+     * Returns the key a receive frame is remembered under in the routing
+     * table. Copies addressed to different devices travel apart, so a relay
+     * passes each of them on once.
+     * @param sid Sid of the message.
+     * @param addressee Identifier for vendor the frame is addressed to, or null if it is for its receiver.
+     * @return Key of the frame.
+     */
+    public static String frameKey(String sid, String addressee) {
+
+        return addressee != null ? sid + "@" + addressee : sid;
+    }
+
+    private int send(Map<String, String> message, Map<String, P> peers) {
+
+        if (routingTable != null && message.get(SID_KEY) != null) {
+            routingTable.markFrameSeen(frameKey(message.get(SID_KEY), message.get(IDENTIFIER_FOR_VENDOR_KEY)));
+        }
+
+        if (message.get(TYPE_KEY) == null) {
+            message.put(TYPE_KEY, RECEIVE_TYPE);
+        }
+
+        byte[] binaryFrame = null;
+        byte[] legacyFrame = null;
+        int sent = 0;
+
+        for (P peer : peers.values()) {
+
+            byte[] data;
+
+            if (transport.supportsBinaryFrames(peer)) {
+
+                if (binaryFrame == null) {
+                    binaryFrame = FrameCodec.encode(message, compressionThreshold);
+                }
+                data = binaryFrame;
+
+            } else {
+
+                if (legacyFrame == null) {
+                    legacyFrame = transport.encodeLegacyFrame(message);
+
+                    if (legacyFrame == null) {
+                        continue;
+                    }
+                }
+                data = legacyFrame;
+            }
+
+            transport.send(data, peer);
+            sent++;
+        }
+
+        return sent;
+    }
+}
@@ -0,0 +1,172 @@
+//
+// MIT License
+//
+// Copyright (C) 2018 HypeLabs Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+
+package com.hypelabs.hypetwiliodemo;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class scores the peers messages may be sent through and picks the
+ * best one. Each peer is measured actively, with the round trip time of
+ * probes, and passively, with the time frames sent to it took to be
+ * delivered; both are smoothed with an exponentially weighted moving
+ * average, so scores follow the peers as conditions change. Peers also
+ * report their own load, which is added to the score so that a busy relay
+ * is avoided even while it still answers quickly.
+ * @param <P> Type of the peers.
+ */
+public class GatewaySelector<P> {
+
+    /**
+     * Latency assumed for peers that were never measured.
+     */
+    public static final long UNKNOWN_LATENCY_MILLIS = 500;
+
+    /**
+     * Latency added to the score for each unit of load a peer reports.
+     */
+    public static final long LOAD_PENALTY_MILLIS = 20;
+
+    /**
+     * Weight of a new sample in the moving averages.
+     */
+    static final double SMOOTHING = 0.25;
+
+    private final Map<P, Stats> stats = new HashMap<P, Stats>();
+
+    /**
+     * Records the round trip time of a probe.
+     * @param peer Peer that answered the probe.
+     * @param roundTripMillis Time between sending the probe and receiving the answer.
+     */
+    public synchronized void recordRoundTrip(P peer, long roundTripMillis) {
+
+        Stats peerStats = getStats(peer);
+        peerStats.roundTrip = smooth(peerStats.roundTrip, roundTripMillis);
+    }
+
+    /**
+     * Records the time a frame took to be delivered.
+     * @param peer Peer the frame was delivered to.
+     * @param latencyMillis Time between sending the frame and its delivery.
+     */
+    public synchronized void recordDeliveryLatency(P peer, long latencyMillis) {
+
+        Stats peerStats = getStats(peer);
+        peerStats.deliveryLatency = smooth(peerStats.deliveryLatency, latencyMillis);
+    }
+
+    /**
+     * Records the load reported by a peer.
+     * @param peer Peer that reported its load.
+     * @param load Load of the peer, such as the frames it has queued.
+     */
+    public synchronized void recordLoad(P peer, int load) {
+
+        getStats(peer).load = Math.max(0, load);
+    }
+
+    /**
+     * Forgets a peer.
+     * @param peer Peer that was lost.
+     */
+    public synchronized void remove(P peer) {
+
+        stats.remove(peer);
+    }
+
+    /**
+     * @param peer Peer to score.
+     * @return Score of the peer, as an estimated latency in milliseconds; lower is better.
+     */
+    public synchronized double getScore(P peer) {
+
+        Stats peerStats = stats.get(peer);
+
+        if (peerStats == null) {
+            return UNKNOWN_LATENCY_MILLIS;
+        }
+
+        double latency;
+
+        if (peerStats.roundTrip >= 0 && peerStats.deliveryLatency >= 0) {
+            latency = (peerStats.roundTrip + peerStats.deliveryLatency) / 2;
+        } else if (peerStats.roundTrip >= 0) {
+            latency = peerStats.roundTrip;
+        } else if (peerStats.deliveryLatency >= 0) {
+            latency = peerStats.deliveryLatency;
+        } else {
+            latency = UNKNOWN_LATENCY_MILLIS;
+        }
+        return latency + peerStats.load * LOAD_PENALTY_MILLIS;
+    }
+
+    /**
+     * Picks the peer with the best score.
+     * @param candidates Peers to pick from.
+     * @return Best peer, or null if there are no candidates.
+     */
+    public synchronized P select(Collection<P> candidates) {
+
+        P best = null;
+        double bestScore = Double.MAX_VALUE;
+
+        for (P candidate : candidates) {
+
+            double score = getScore(candidate);
+
+            if (score < bestScore) {
+                best = candidate;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    private Stats getStats(P peer) {
+
+        Stats peerStats = stats.get(peer);
+
+        if (peerStats == null) {
+            peerStats = new Stats();
+            stats.put(peer, peerStats);
+        }
+        return peerStats;
+    }
+
+    private static double smooth(double average, long sample) {
+
+        return average < 0 ? sample : average + SMOOTHING * (sample - average);
+    }
+
+    private static class Stats {
+
+        double roundTrip = -1;
+        double deliveryLatency = -1;
+        int load;
+    }
+}
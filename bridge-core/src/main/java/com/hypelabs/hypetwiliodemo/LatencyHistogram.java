@@ -0,0 +1,158 @@
+//
+// MIT License
+//
+// Copyright (C) 2018 HypeLabs Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+
+package com.hypelabs.hypetwiliodemo;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class records latencies in a log-linear histogram, in the manner of
+ * HdrHistogram: values below 64 are counted exactly, and every power of two
+ * above that is split in 32 buckets, so any recorded value is reported
+ * within about 3% of its actual value whatever its magnitude. Recording is
+ * lock-free and allocation-free, so it can be done on hot paths from any
+ * thread.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_HALF_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_MASK = (SUB_BUCKET_HALF_COUNT << 1) - 1;
+    private static final int BUCKET_COUNT = 32;
+
+    /**
+     * Largest value that can be recorded, larger values are clamped to it.
+     */
+    public static final long MAX_VALUE = (1L << (BUCKET_COUNT + SUB_BUCKET_BITS)) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray((BUCKET_COUNT + 1) * SUB_BUCKET_HALF_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong totalValue = new AtomicLong();
+    private final AtomicLong maxValue = new AtomicLong();
+
+    /**
+     * Records a value.
+     * @param value Value to record, negative values are recorded as zero.
+     */
+    public void record(long value) {
+
+        value = Math.max(0, Math.min(value, MAX_VALUE));
+
+        counts.incrementAndGet(indexOf(value));
+        totalCount.incrementAndGet();
+        totalValue.addAndGet(value);
+
+        long max;
+
+        while (value > (max = maxValue.get())) {
+            if (maxValue.compareAndSet(max, value)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return Number of values recorded.
+     */
+    public long getCount() {
+
+        return totalCount.get();
+    }
+
+    /**
+     * @return Largest value recorded.
+     */
+    public long getMax() {
+
+        return maxValue.get();
+    }
+
+    /**
+     * @return Mean of the values recorded, or zero if there are none.
+     */
+    public double getMean() {
+
+        long count = totalCount.get();
+        return count > 0 ? (double) totalValue.get() / count : 0;
+    }
+
+    /**
+     * Returns the value below which the given percentage of the recorded
+     * values fall, within the precision of the histogram.
+     * @param percentile Percentile to compute, between 0 and 100.
+     * @return Value at the percentile, or zero if nothing was recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+
+        long count = totalCount.get();
+
+        if (count == 0) {
+            return 0;
+        }
+
+        long target = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * count));
+        long seen = 0;
+
+        for (int i = 0; i < counts.length(); i++) {
+
+            seen += counts.get(i);
+
+            if (seen >= target) {
+                return Math.min(highestEquivalentValue(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Forgets every recorded value.
+     */
+    public void reset() {
+
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        totalCount.set(0);
+        totalValue.set(0);
+        maxValue.set(0);
+    }
+
+    static int indexOf(long value) {
+
+        int bucket = Math.max(0, 63 - Long.numberOfLeadingZeros(value | SUB_BUCKET_MASK) - SUB_BUCKET_BITS);
+        int subBucket = (int) (value >>> bucket);
+
+        return bucket * SUB_BUCKET_HALF_COUNT + subBucket;
+    }
+
+    static long highestEquivalentValue(int index) {
+
+        int bucket = Math.max(0, index / SUB_BUCKET_HALF_COUNT - 1);
+        long subBucket = index - bucket * SUB_BUCKET_HALF_COUNT;
+
+        return ((subBucket + 1) << bucket) - 1;
+    }
+}
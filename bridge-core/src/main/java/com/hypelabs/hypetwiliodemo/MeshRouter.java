@@ -0,0 +1,358 @@
+//
+// MIT License
+//
+// Copyright (C) 2018 HypeLabs Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+
+
+package com.hypelabs.hypetwiliodemo;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class handles the routed frames of the mesh: messages going up to
+ * the nearest gateway, joins that teach relays the way back, messages
+ * coming down to the devices that joined, and the hop counts neighbours
+ * advertise. Frames are taken either binary, reading only the fields the
+ * decision needs, or as the dictionaries of the legacy JSON format, and
+ * the same rules apply to both. What to do once a frame arrives, and how
+ * frames reach a peer, is left to the host.
+ * @param <P> Type of the mesh peers.
+ */
+public class MeshRouter<P> {
+
+    static final String TYPE_KEY = "type";
+    static final String SID_KEY = "sid";
+    static final String AUTHOR_KEY = "author";
+    static final String BODY_KEY = "body";
+    static final String MESSAGE_KEY = "message";
+    static final String IDENTIFIER_FOR_VENDOR_KEY = "identifierForVendor";
+    static final String TTL_KEY = "ttl";
+    static final String FRAME_ID_KEY = "frameId";
+
+    /**
+     * Interface of the device the router runs on.
+     * @param <P> Type of the mesh peers.
+     */
+    public interface Host<P> {
+
+        /**
+         * Encodes and sends a frame to a peer.
+         * @param frame Frame dictionary to send.
+         * @param peer Peer that will receive the frame.
+         */
+        void send(Map<String, String> frame, P peer);
+
+        /**
+         * @return Neighbour messages go up through, or null if there is no route.
+         */
+        P selectNextHop();
+
+        /**
+         * @param identifierForVendor Identifier for vendor of a device.
+         * @return The device, if it is a neighbour, or null.
+         */
+        P getNeighbour(String identifierForVendor);
+
+        /**
+         * Called when the hop count or the next hop of this device changed.
+         */
+        void onRouteChanged();
+
+        /**
+         * Called when a device joined through this gateway.
+         * @param identifierForVendor Identifier for vendor of the device.
+         */
+        void onJoin(String identifierForVendor);
+
+        /**
+         * Called when a message reached this device to be posted to twilio.
+         * @param message Message text.
+         * @param identifierForVendor Identifier for vendor of the author.
+         * @param frameId Identifier of the routed frame, or null if it came from a neighbour.
+         */
+        void onSend(String message, String identifierForVendor, String frameId);
+
+        /**
+         * Called when a twilio message addressed to this device arrived.
+         * @param message Message dictionary.
+         */
+        void onReceive(Map<String, String> message);
+
+        /**
+         * Called when a routed frame ran out of time to live or of route.
+         * @param frame Frame dictionary that was dropped.
+         */
+        void onDrop(Map<String, String> frame);
+    }
+
+    private final String identifierForVendor;
+    private final RoutingTable<P> routingTable;
+    private final FrameFanOut<P> fanOut;
+    private final Host<P> host;
+
+    /**
+     * Initializes a router.
+     * @param identifierForVendor Identifier for vendor of this device.
+     * @param routingTable Routing table of this device.
+     * @param fanOut Fan out used to pass messages down.
+     * @param host Device the router runs on.
+     */
+    public MeshRouter(String identifierForVendor, RoutingTable<P> routingTable, FrameFanOut<P> fanOut, Host<P> host) {
+
+        this.identifierForVendor = identifierForVendor;
+        this.routingTable = routingTable;
+        this.fanOut = fanOut;
+        this.host = host;
+    }
+
+    /**
+     * Handles a binary send frame. Frames posted here are handed over
+     * without decoding them, only frames that keep going up are decoded.
+     * @param frame Encoded frame.
+     * @param peer Peer the frame came from.
+     */
+    public void onSendFrame(byte[] frame, P peer) {
+
+        String frameId = FrameCodec.readField(frame, FrameCodec.KEY_FRAME_ID);
+
+        if (frameId != null && !routingTable.markFrameSeen(frameId)) {
+            return;
+        }
+
+        String origin = FrameCodec.readField(frame, FrameCodec.KEY_IDENTIFIER_FOR_VENDOR);
+
+        if (frameId == null || routingTable.isGateway()) {
+
+            host.onSend(FrameCodec.readField(frame, FrameCodec.KEY_MESSAGE), origin, frameId);
+            return;
+        }
+
+        routingTable.learnReverseRoute(origin, peer);
+        forward(FrameCodec.decode(frame), host.selectNextHop());
+    }
+
+    /**
+     * Handles a send frame of the legacy format. Frames from legacy peers,
+     * which carry no frame id, and frames that reached a gateway are posted
+     * here; routed frames on a relay keep going up.
+     * @param frame Frame dictionary.
+     * @param peer Peer the frame came from.
+     */
+    public void onSend(Map<String, String> frame, P peer) {
+
+        String frameId = frame.get(FRAME_ID_KEY);
+
+        if (frameId != null && !routingTable.markFrameSeen(frameId)) {
+            return;
+        }
+
+        if (frameId == null || routingTable.isGateway()) {
+
+            host.onSend(frame.get(MESSAGE_KEY), frame.get(IDENTIFIER_FOR_VENDOR_KEY), frameId);
+            return;
+        }
+
+        routingTable.learnReverseRoute(frame.get(IDENTIFIER_FOR_VENDOR_KEY), peer);
+        forward(frame, host.selectNextHop());
+    }
+
+    /**
+     * Handles a binary receive frame. Messages for another device are
+     * decoded, as they are passed on with every field they came with;
+     * messages for this device only carry the fields shown.
+     * @param frame Encoded frame.
+     * @param peer Peer the frame came from.
+     */
+    public void onReceiveFrame(byte[] frame, P peer) {
+
+        String sid = FrameCodec.readField(frame, FrameCodec.KEY_SID);
+        String addressee = getAddressee(FrameCodec.readField(frame, FrameCodec.KEY_IDENTIFIER_FOR_VENDOR));
+
+        if (sid != null && !routingTable.markFrameSeen(FrameFanOut.frameKey(sid, addressee))) {
+            return;
+        }
+
+        if (addressee != null) {
+
+            forwardToAddressee(FrameCodec.decode(frame), addressee);
+            return;
+        }
+
+        Map<String, String> message = new HashMap<String, String>();
+        message.put(TYPE_KEY, FrameFanOut.RECEIVE_TYPE);
+        message.put(SID_KEY, sid);
+        message.put(AUTHOR_KEY, FrameCodec.readField(frame, FrameCodec.KEY_AUTHOR));
+        message.put(BODY_KEY, FrameCodec.readField(frame, FrameCodec.KEY_BODY));
+
+        host.onReceive(message);
+    }
+
+    /**
+     * Handles a receive frame of the legacy format. Copies that come back
+     * through another path, or from another gateway, are dropped.
+     * @param message Message dictionary.
+     * @param peer Peer the frame came from.
+     */
+    public void onReceive(Map<String, String> message, P peer) {
+
+        String sid = message.get(SID_KEY);
+        String addressee = getAddressee(message.get(IDENTIFIER_FOR_VENDOR_KEY));
+
+        if (sid != null && !routingTable.markFrameSeen(FrameFanOut.frameKey(sid, addressee))) {
+            return;
+        }
+
+        if (addressee != null) {
+
+            forwardToAddressee(message, addressee);
+            return;
+        }
+
+        host.onReceive(message);
+    }
+
+    /**
+     * Handles a binary join frame.
+     * @param frame Encoded frame.
+     * @param peer Peer the frame came from.
+     */
+    public void onJoinFrame(byte[] frame, P peer) {
+
+        if (acceptJoin(FrameCodec.readField(frame, FrameCodec.KEY_IDENTIFIER_FOR_VENDOR),
+                FrameCodec.readField(frame, FrameCodec.KEY_FRAME_ID), peer)) {
+            forward(FrameCodec.decode(frame), routingTable.getNextHop());
+        }
+    }
+
+    /**
+     * Handles a join frame of the legacy format.
+     * @param frame Frame dictionary.
+     * @param peer Peer the frame came from.
+     */
+    public void onJoin(Map<String, String> frame, P peer) {
+
+        if (acceptJoin(frame.get(IDENTIFIER_FOR_VENDOR_KEY), frame.get(FRAME_ID_KEY), peer)) {
+            forward(frame, routingTable.getNextHop());
+        }
+    }
+
+    /**
+     * Handles a binary route frame.
+     * @param frame Encoded frame.
+     * @param peer Peer the frame came from.
+     */
+    public void onRouteFrame(byte[] frame, P peer) {
+
+        onRoute(FrameCodec.readField(frame, FrameCodec.KEY_HOPS), peer);
+    }
+
+    /**
+     * Records the hop count a neighbour advertised, in a route frame or in
+     * its announcement. Missing or malformed hop counts are ignored.
+     * @param hops Hop count from the neighbour to its nearest gateway.
+     * @param peer Neighbour that advertised.
+     */
+    public void onRoute(String hops, P peer) {
+
+        if (hops == null) {
+            return;
+        }
+
+        int hopCount;
+
+        try {
+            hopCount = Integer.parseInt(hops);
+        } catch (NumberFormatException e) {
+            return;
+        }
+
+        if (routingTable.updateNeighbour(peer, hopCount)) {
+            host.onRouteChanged();
+        }
+    }
+
+    /**
+     * Sends a routed frame to the given peer after taking one from its
+     * time to live. Frames that ran out of time to live are dropped.
+     * @param frame Routed frame to forward, updated in place.
+     * @param peer Peer to forward the frame to, or null if there is no route.
+     * @return false if the frame was dropped.
+     */
+    public boolean forward(Map<String, String> frame, P peer) {
+
+        int ttl;
+
+        try {
+            ttl = frame.get(TTL_KEY) != null ? Integer.parseInt(frame.get(TTL_KEY)) : 0;
+        } catch (NumberFormatException e) {
+            ttl = 0;
+        }
+
+        if (peer == null || ttl <= 1) {
+
+            host.onDrop(frame);
+            return false;
+        }
+
+        frame.put(TTL_KEY, String.valueOf(ttl - 1));
+        host.send(frame, peer);
+        return true;
+    }
+
+    /**
+     * Learns the way back to a device that joined, and reports the join if
+     * this device is a gateway.
+     * @return true if the join must be forwarded up.
+     */
+    private boolean acceptJoin(String origin, String frameId, P peer) {
+
+        if (origin == null || origin.equals(identifierForVendor)
+                || (frameId != null && !routingTable.markFrameSeen(frameId))) {
+            return false;
+        }
+
+        routingTable.learnReverseRoute(origin, peer);
+
+        if (routingTable.isGateway()) {
+
+            host.onJoin(origin);
+            return false;
+        }
+        return true;
+    }
+
+    private String getAddressee(String addressee) {
+
+        return addressee != null && !addressee.equals(identifierForVendor) ? addressee : null;
+    }
+
+    private void forwardToAddressee(Map<String, String> message, String addressee) {
+
+        // Only the device the message is addressed to gets it, straight
+        // from here if it is a neighbour.
+        if (fanOut.forward(message, host.getNeighbour(addressee)) == 0) {
+            host.onDrop(message);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+//
+// MIT License
+//
+// Copyright (C) 2018 HypeLabs Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+
+package com.hypelabs.hypetwiliodemo;
+
+import java.util.Map;
+
+/**
+ * Interface through which the bridge core sends frames down the mesh. The
+ * app implements it on top of the Hype SDK, benchmarks and tests implement
+ * it in memory.
+ * @param <P> Type of the mesh peers.
+ */
+public interface MeshTransport<P> {
+
+    /**
+     * @param peer Peer that will receive the frame.
+     * @return Whether the peer announced support for binary frames.
+     */
+    boolean supportsBinaryFrames(P peer);
+
+    /**
+     * Encodes a frame for peers that only understand the legacy JSON format.
+     * @param frame Frame dictionary to encode.
+     * @return Encoded frame, or null if it could not be encoded.
+     */
+    byte[] encodeLegacyFrame(Map<String, String> frame);
+
+    /**
+     * Sends an encoded frame to a peer.
+     * @param data Encoded frame.
+     * @param peer Peer that will receive the frame.
+     */
+    void send(byte[] data, P peer);
+}
@@ -0,0 +1,460 @@
+//
+// MIT License
+//
+// Copyright (C) 2018 HypeLabs Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+
+package com.hypelabs.hypetwiliodemo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class keeps the messages shown in the chat with a bounded memory
+ * footprint. The most recent messages are kept in a fixed size window in
+ * memory; older ones are spilled to an append-only file and read back a
+ * page at a time, with a few recently read pages cached, when the user
+ * scrolls up to them. The file only lives for the session and is
+ * truncated when the history is opened.
+ * <p>
+ * Pages are read through their own handle on the file, so a background
+ * thread can prefetch them with prefetch while appends and peek go on
+ * without waiting on the disk; peek only ever answers from memory.
+ */
+public class MessageHistory implements Closeable {
+
+    /**
+     * Default number of recent messages kept in memory.
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 256;
+
+    /**
+     * Default number of messages read from the file at once.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 64;
+
+    /**
+     * Default number of pages kept in memory once read.
+     */
+    public static final int DEFAULT_CACHED_PAGES = 4;
+
+    private static final int NULL_LENGTH = -1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * This class is an immutable message of the history. The text shown in
+     * the chat is built once when the entry is created, so binding a row
+     * does no formatting or allocation.
+     */
+    public static final class Entry {
+
+        private final String sid;
+        private final String author;
+        private final String body;
+        private final CharSequence displayText;
+
+        public Entry(String sid, String author, String body) {
+
+            this.sid = sid;
+            this.author = author;
+            this.body = body;
+            this.displayText = formatDisplayText(author, body);
+        }
+
+        /**
+         * Builds the text shown for a message, "author: body".
+         * @param author Author of the message.
+         * @param body Body of the message.
+         * @return Text shown for the message.
+         */
+        public static String formatDisplayText(String author, String body) {
+
+            String authorText = String.valueOf(author);
+            String bodyText = String.valueOf(body);
+
+            return new StringBuilder(authorText.length() + 2 + bodyText.length())
+                    .append(authorText)
+                    .append(": ")
+                    .append(bodyText)
+                    .toString();
+        }
+
+        public String getSid() {
+
+            return sid;
+        }
+
+        public String getAuthor() {
+
+            return author;
+        }
+
+        public String getBody() {
+
+            return body;
+        }
+
+        /**
+         * @return Text shown in the chat for this message.
+         */
+        public CharSequence getDisplayText() {
+
+            return displayText;
+        }
+    }
+
+    private final int windowSize;
+    private final int pageSize;
+    private final Entry[] window;
+    private final LinkedHashMap<Integer, Entry[]> pages;
+    private RandomAccessFile file;
+    private RandomAccessFile reader;
+    private long fileLength;
+    private long[] pageOffsets = new long[16];
+    private int windowStart;
+    private int windowCount;
+    private int spilledCount;
+
+    /**
+     * Opens a history with the default window and page sizes.
+     * @param file File older messages are spilled to.
+     * @throws IOException If the file cannot be opened.
+     */
+    public MessageHistory(File file) throws IOException {
+
+        this(file, DEFAULT_WINDOW_SIZE, DEFAULT_PAGE_SIZE, DEFAULT_CACHED_PAGES);
+    }
+
+    /**
+     * Opens a history.
+     * @param file File older messages are spilled to.
+     * @param windowSize Number of recent messages kept in memory.
+     * @param pageSize Number of messages read from the file at once.
+     * @param cachedPages Number of pages kept in memory once read.
+     * @throws IOException If the file cannot be opened.
+     */
+    public MessageHistory(File file, int windowSize, int pageSize, final int cachedPages) throws IOException {
+
+        if (windowSize < 1 || pageSize < 1 || cachedPages < 1) {
+            throw new IllegalArgumentException("Window size, page size and cached pages must be positive");
+        }
+
+        this.windowSize = windowSize;
+        this.pageSize = pageSize;
+        this.window = new Entry[windowSize];
+        this.pages = new LinkedHashMap<Integer, Entry[]>(cachedPages + 1, 1, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, MessageHistory.Entry[]> eldest) {
+                return size() > cachedPages;
+            }
+        };
+        this.file = new RandomAccessFile(file, "rw");
+        this.file.setLength(0);
+        this.reader = new RandomAccessFile(file, "r");
+    }
+
+    /**
+     * Appends a message at the end of the history. Once the window is full
+     * its oldest message is spilled to the file.
+     * @param entry Message to append.
+     * @throws IOException If a message cannot be spilled.
+     */
+    public synchronized void append(Entry entry) throws IOException {
+
+        if (windowCount == windowSize) {
+
+            spill(window[windowStart]);
+            window[windowStart] = null;
+            windowStart = (windowStart + 1) % windowSize;
+            windowCount--;
+        }
+
+        window[(windowStart + windowCount) % windowSize] = entry;
+        windowCount++;
+    }
+
+    /**
+     * Returns the message at the given position, reading its page from the
+     * file if it is no longer in memory.
+     * @param position Position of the message, 0 being the oldest.
+     * @return Message at the given position.
+     * @throws IOException If the page cannot be read.
+     */
+    public synchronized Entry get(int position) throws IOException {
+
+        if (position < 0 || position >= size()) {
+            throw new IndexOutOfBoundsException("Position " + position + " out of " + size());
+        }
+
+        if (position >= spilledCount) {
+            return window[(windowStart + position - spilledCount) % windowSize];
+        }
+
+        int page = position / pageSize;
+        int offset = position - page * pageSize;
+        Entry[] entries = pages.get(page);
+
+        // The last page read may have been spilled to since.
+        if (entries == null || offset >= entries.length) {
+            entries = readPage(reader, pageOffsets[page], getPageEnd(page), getPageCount(page));
+            pages.put(page, entries);
+        }
+        return entries[offset];
+    }
+
+    /**
+     * Returns the message at the given position if it is in memory, without
+     * touching the file.
+     * @param position Position of the message, 0 being the oldest.
+     * @return Message at the given position, or null if its page was not read yet.
+     */
+    public synchronized Entry peek(int position) {
+
+        if (position < 0 || position >= size()) {
+            throw new IndexOutOfBoundsException("Position " + position + " out of " + size());
+        }
+
+        if (position >= spilledCount) {
+            return window[(windowStart + position - spilledCount) % windowSize];
+        }
+
+        int page = position / pageSize;
+        Entry[] entries = pages.get(page);
+        int offset = position - page * pageSize;
+
+        return entries != null && offset < entries.length ? entries[offset] : null;
+    }
+
+    /**
+     * Reads the page holding the given position and the pages next to it
+     * into memory, unless they are there already. The file is read without
+     * holding the history, so this is meant to be called off the thread
+     * appending and peeking.
+     * @param position Position of the message, 0 being the oldest.
+     * @return Number of pages read from the file.
+     * @throws IOException If a page cannot be read.
+     */
+    public int prefetch(int position) throws IOException {
+
+        int page = position / pageSize;
+        int read = 0;
+
+        // The page asked for is read last, so it is the last one evicted.
+        read += prefetchPage(page - 1) ? 1 : 0;
+        read += prefetchPage(page + 1) ? 1 : 0;
+        read += prefetchPage(page) ? 1 : 0;
+        return read;
+    }
+
+    private boolean prefetchPage(int page) throws IOException {
+
+        long start;
+        long end;
+        int count;
+        RandomAccessFile reader;
+
+        synchronized (this) {
+
+            if (page < 0 || page * pageSize >= spilledCount || this.reader == null) {
+                return false;
+            }
+
+            count = getPageCount(page);
+            Entry[] entries = pages.get(page);
+
+            if (entries != null && entries.length == count) {
+                return false;
+            }
+
+            start = pageOffsets[page];
+            end = getPageEnd(page);
+            reader = this.reader;
+        }
+
+        Entry[] entries;
+
+        synchronized (reader) {
+
+            // The history may have been closed while waiting on the reader.
+            if (reader.getChannel().isOpen()) {
+                entries = readPage(reader, start, end, count);
+            } else {
+                return false;
+            }
+        }
+
+        synchronized (this) {
+
+            Entry[] cached = pages.get(page);
+
+            if (this.reader == null || (cached != null && cached.length >= entries.length)) {
+                return false;
+            }
+            pages.put(page, entries);
+        }
+        return true;
+    }
+
+    /**
+     * @return Number of messages in the history.
+     */
+    public synchronized int size() {
+
+        return spilledCount + windowCount;
+    }
+
+    /**
+     * @return Messages of the in-memory window, oldest first. The first one
+     * is at the position given by getSpilledCount.
+     */
+    public synchronized List<Entry> getWindow() {
+
+        List<Entry> entries = new ArrayList<Entry>(windowCount);
+
+        for (int i = 0; i < windowCount; i++) {
+            entries.add(window[(windowStart + i) % windowSize]);
+        }
+        return entries;
+    }
+
+    /**
+     * @return Number of messages spilled to the file.
+     */
+    public synchronized int getSpilledCount() {
+
+        return spilledCount;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+
+        if (file != null) {
+            file.close();
+            file = null;
+        }
+
+        if (reader != null) {
+            synchronized (reader) {
+                reader.close();
+            }
+            reader = null;
+        }
+        pages.clear();
+    }
+
+    private void spill(Entry entry) throws IOException {
+
+        byte[] record = encode(entry);
+
+        if (spilledCount % pageSize == 0) {
+
+            int page = spilledCount / pageSize;
+
+            if (page == pageOffsets.length) {
+                pageOffsets = Arrays.copyOf(pageOffsets, pageOffsets.length * 2);
+            }
+            pageOffsets[page] = fileLength;
+        }
+
+        file.seek(fileLength);
+        file.write(record);
+        fileLength += record.length;
+        spilledCount++;
+    }
+
+    private int getPageCount(int page) {
+
+        return Math.min(pageSize, spilledCount - page * pageSize);
+    }
+
+    private long getPageEnd(int page) {
+
+        return (page + 1) * pageSize < spilledCount ? pageOffsets[page + 1] : fileLength;
+    }
+
+    private static Entry[] readPage(RandomAccessFile reader, long start, long end, int count) throws IOException {
+
+        byte[] data = new byte[(int) (end - start)];
+
+        synchronized (reader) {
+            reader.seek(start);
+            reader.readFully(data);
+        }
+
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(data));
+        Entry[] entries = new Entry[count];
+
+        for (int i = 0; i < count; i++) {
+            entries[i] = new Entry(readString(input), readString(input), readString(input));
+        }
+        return entries;
+    }
+
+    private static byte[] encode(Entry entry) throws IOException {
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(buffer);
+        writeString(output, entry.getSid());
+        writeString(output, entry.getAuthor());
+        writeString(output, entry.getBody());
+        output.flush();
+        return buffer.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+
+        if (value == null) {
+            output.writeInt(NULL_LENGTH);
+            return;
+        }
+
+        byte[] bytes = value.getBytes(UTF8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+
+        int length = input.readInt();
+
+        if (length == NULL_LENGTH) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+}
@@ -0,0 +1,185 @@
+//
+// MIT License
+//
+// Copyright (C) 2018 HypeLabs Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package com.hypelabs.hypetwiliodemo;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class decides what is done with a message received from twilio. The
+ * first copy of a message is shown, later copies with the same sid come
+ * from the clients of the peers and are fanned out to the peers subscribed
+ * to the channel they came from, and routed to the subscribers that are not
+ * neighbours. Proxied peers have no client of their own, so no later copy
+ * is ever received for them: they get the first copy received on the
+ * channel they are proxied through. Messages received from the mesh are
+ * only shown, passing them on is up to the routing layer. Sids restored
+ * from a previous run are neither shown nor fanned out. This class is not
+ * thread safe, it is meant to be used from the bridge event loop.
+ * @param <P> Type of the mesh peers.
+ */
+public class MessageReception<P> {
+
+    private final PeerRegistry<P, ?> registry;
+    private final SidDedupStore seenSids;
+    private final Set<String> proxiedVendors = new HashSet<String>();
+    private SidDedupStore restoredSids;
+
+    /**
+     * Initializes a message reception.
+     * @param registry Registry the subscribed peers are looked up in.
+     * @param seenSids Store of the sids already received.
+     */
+    public MessageReception(PeerRegistry<P, ?> registry, SidDedupStore seenSids) {
+
+        this.registry = registry;
+        this.seenSids = seenSids;
+    }
+
+    /**
+     * Sets the sids of the messages shown and bridged before the app restarted.
+     * @param restoredSids Store of the restored sids, or null.
+     */
+    public void setRestoredSids(SidDedupStore restoredSids) {
+
+        this.restoredSids = restoredSids;
+    }
+
+    /**
+     * Marks an identifier for vendor as proxied through this device's client.
+     * @param identifierForVendor Identifier for vendor of the peer.
+     */
+    public void addProxiedVendor(String identifierForVendor) {
+
+        proxiedVendors.add(identifierForVendor);
+    }
+
+    /**
+     * @param identifierForVendor Identifier for vendor of the peer.
+     */
+    public void removeProxiedVendor(String identifierForVendor) {
+
+        proxiedVendors.remove(identifierForVendor);
+    }
+
+    /**
+     * @param identifierForVendor Identifier for vendor of the peer.
+     * @return true if the peer is proxied through this device's client.
+     */
+    public boolean isProxiedVendor(String identifierForVendor) {
+
+        return proxiedVendors.contains(identifierForVendor);
+    }
+
+    /**
+     * Records the reception of a message.
+     * @param sid Sid of the message.
+     * @param channelSid Sid of the channel the message came from, or null if it came from the mesh.
+     * @return What to do with the message, or null if it was restored and must be dropped.
+     */
+    public Delivery<P> receive(String sid, String channelSid) {
+
+        if (restoredSids != null && sid != null && restoredSids.contains(sid)) {
+            return null;
+        }
+
+        boolean firstSighting = !seenSids.contains(sid);
+
+        if (firstSighting) {
+            seenSids.add(sid);
+        }
+
+        if (channelSid == null || (firstSighting && proxiedVendors.isEmpty())) {
+            return new Delivery<P>(firstSighting, Collections.<String, P>emptyMap(), Collections.<String>emptySet());
+        }
+
+        Map<String, P> peers = registry.getSubscribedPeers(channelSid);
+        Set<String> routedVendors = registry.getRemoteSubscribers(channelSid);
+
+        if (!firstSighting) {
+            return new Delivery<P>(false, peers, routedVendors);
+        }
+
+        Map<String, P> proxiedPeers = new HashMap<String, P>();
+        Set<String> proxiedRoutedVendors = new HashSet<String>();
+
+        for (Map.Entry<String, P> entry : peers.entrySet()) {
+
+            if (proxiedVendors.contains(entry.getKey())) {
+                proxiedPeers.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        for (String identifierForVendor : routedVendors) {
+
+            if (proxiedVendors.contains(identifierForVendor)) {
+                proxiedRoutedVendors.add(identifierForVendor);
+            }
+        }
+        return new Delivery<P>(true, proxiedPeers, proxiedRoutedVendors);
+    }
+
+    /**
+     * What is done with a received message.
+     * @param <P> Type of the mesh peers.
+     */
+    public static final class Delivery<P> {
+
+        private final boolean firstSighting;
+        private final Map<String, P> peers;
+        private final Set<String> routedVendors;
+
+        Delivery(boolean firstSighting, Map<String, P> peers, Set<String> routedVendors) {
+
+            this.firstSighting = firstSighting;
+            this.peers = peers;
+            this.routedVendors = routedVendors;
+        }
+
+        /**
+         * @return true if this is the first copy of the message, which must be shown.
+         */
+        public boolean isFirstSighting() {
+            return firstSighting;
+        }
+
+        /**
+         * @return Peers the message must be fanned out to, keyed by identifier for vendor.
+         */
+        public Map<String, P> getPeers() {
+            return peers;
+        }
+
+        /**
+         * @return Identifiers for vendor the message must be routed to, as they are not neighbours.
+         */
+        public Set<String> getRoutedVendors() {
+            return routedVendors;
+        }
+    }
+}
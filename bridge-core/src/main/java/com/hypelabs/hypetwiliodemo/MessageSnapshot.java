@@ -0,0 +1,252 @@
+//
+// MIT License
+//
+// Copyright (C) 2018 HypeLabs Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+
+package com.hypelabs.hypetwiliodemo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * This class is a compact binary snapshot of the recent messages of the
+ * chat, saved when the app stops so the next start can show them right
+ * away instead of waiting for twilio and the mesh. The file holds a
+ * header, one record per message (index, sid, author and body) and a
+ * checksum, and is loaded with a single memory-mapped read. A missing,
+ * truncated or corrupted snapshot reads as empty.
+ */
+public final class MessageSnapshot {
+
+    static final int MAGIC = 0x48534e50;
+    static final int VERSION = 1;
+
+    private static final int HEADER_LENGTH = 12;
+    private static final int CHECKSUM_LENGTH = 4;
+    private static final int MIN_RECORD_LENGTH = 20;
+    private static final int NULL_LENGTH = -1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final long[] indices;
+    private final List<MessageHistory.Entry> entries;
+
+    private MessageSnapshot(long[] indices, List<MessageHistory.Entry> entries) {
+
+        this.indices = indices;
+        this.entries = Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * @return Messages of the snapshot, oldest first.
+     */
+    public List<MessageHistory.Entry> getEntries() {
+
+        return entries;
+    }
+
+    /**
+     * @param position Position of the message in the snapshot.
+     * @return Index the message had in the history when it was saved.
+     */
+    public long getIndex(int position) {
+
+        return indices[position];
+    }
+
+    /**
+     * @return Sids of the messages of the snapshot, skipping messages without one.
+     */
+    public List<String> getSids() {
+
+        List<String> sids = new ArrayList<String>(entries.size());
+
+        for (MessageHistory.Entry entry : entries) {
+            if (entry.getSid() != null) {
+                sids.add(entry.getSid());
+            }
+        }
+        return sids;
+    }
+
+    /**
+     * Saves the in-memory window of a history. The file is written aside and
+     * renamed, so a crash never leaves a partial snapshot behind.
+     * @param file File to write.
+     * @param history History whose recent messages are saved.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void write(File file, MessageHistory history) throws IOException {
+
+        long firstIndex;
+        List<MessageHistory.Entry> window;
+
+        synchronized (history) {
+            firstIndex = history.getSpilledCount();
+            window = history.getWindow();
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(buffer);
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        output.writeInt(window.size());
+
+        for (int i = 0; i < window.size(); i++) {
+
+            MessageHistory.Entry entry = window.get(i);
+            output.writeLong(firstIndex + i);
+            writeString(output, entry.getSid());
+            writeString(output, entry.getAuthor());
+            writeString(output, entry.getBody());
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.toByteArray());
+        output.writeInt((int) crc.getValue());
+        output.flush();
+
+        File temporary = new File(file.getPath() + ".tmp");
+        OutputStream stream = new FileOutputStream(temporary);
+
+        try {
+            buffer.writeTo(stream);
+        } finally {
+            stream.close();
+        }
+
+        if (!temporary.renameTo(file)) {
+            throw new IOException("Could not rename " + temporary + " to " + file);
+        }
+    }
+
+    /**
+     * Loads a snapshot.
+     * @param file File to read.
+     * @return Snapshot read, empty if the file is missing or not a valid snapshot.
+     * @throws IOException If the file cannot be read.
+     */
+    public static MessageSnapshot read(File file) throws IOException {
+
+        if (!file.isFile() || file.length() < HEADER_LENGTH + CHECKSUM_LENGTH) {
+            return empty();
+        }
+
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+
+        try {
+            FileChannel channel = input.getChannel();
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return parse(data);
+        } finally {
+            input.close();
+        }
+    }
+
+    private static MessageSnapshot parse(ByteBuffer data) {
+
+        int length = data.limit() - CHECKSUM_LENGTH;
+        byte[] content = new byte[length];
+        data.get(content);
+
+        CRC32 crc = new CRC32();
+        crc.update(content);
+
+        if ((int) crc.getValue() != data.getInt()) {
+            return empty();
+        }
+
+        ByteBuffer records = ByteBuffer.wrap(content);
+
+        try {
+            if (records.getInt() != MAGIC || records.getInt() != VERSION) {
+                return empty();
+            }
+
+            int count = records.getInt();
+
+            if (count < 0 || count > records.remaining() / MIN_RECORD_LENGTH) {
+                return empty();
+            }
+
+            long[] indices = new long[count];
+            List<MessageHistory.Entry> entries = new ArrayList<MessageHistory.Entry>(count);
+
+            for (int i = 0; i < count; i++) {
+                indices[i] = records.getLong();
+                entries.add(new MessageHistory.Entry(readString(records), readString(records), readString(records)));
+            }
+            return new MessageSnapshot(indices, entries);
+
+        } catch (BufferUnderflowException e) {
+            return empty();
+        }
+    }
+
+    private static MessageSnapshot empty() {
+
+        return new MessageSnapshot(new long[0], new ArrayList<MessageHistory.Entry>());
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+
+        if (value == null) {
+            output.writeInt(NULL_LENGTH);
+            return;
+        }
+
+        byte[] bytes = value.getBytes(UTF8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(ByteBuffer input) {
+
+        int length = input.getInt();
+
+        if (length == NULL_LENGTH) {
+            return null;
+        }
+
+        if (length < 0 || length > input.remaining()) {
+            throw new BufferUnderflowException();
+        }
+
+        byte[] bytes = new byte[length];
+        input.get(bytes);
+        return new String(bytes, UTF8);
+    }
+}
@@ -0,0 +1,722 @@
+//
+// MIT License
+//
+// Copyright (C) 2018 HypeLabs Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+
+package com.hypelabs.hypetwiliodemo;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class buffers outgoing frames in one bounded queue per peer and
+ * drains them on its own executor, so the thread that produced a frame
+ * (typically a Hype or Twilio callback) never waits on the transport.
+ * When a peer queue is full, frames are either dropped oldest first or
+ * the producer blocks until the queue has room, depending on the
+ * configured backpressure policy. Dropped frames, like the frames of a
+ * peer removed while its producer was blocked, go to the dead letter
+ * listener.
+ * Each peer also gets a window of frames that may be in flight at once.
+ * A frame holds one credit from the moment it is handed to the transport
+ * until the transport reports it delivered or failed, and queued frames
+ * wait while the window is full, so slow links are not flooded.
+ * Frames that fail, either reported so or because the transport threw,
+ * are queued again at the tail of their peer queue after a backoff given
+ * by the retry policy, and frames that are given up are handed to the
+ * dead letter listener.
+ * @param <P> Type of the peer frames are sent to.
+ */
+public class OutboundScheduler<P> {
+
+    /**
+     * Default number of frames buffered per peer.
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+    /**
+     * Default number of frames in flight per peer.
+     */
+    public static final int DEFAULT_IN_FLIGHT_WINDOW = 4;
+
+    /**
+     * Identifier returned by transports that cannot track a frame. Such
+     * frames do not hold a credit and are never retried.
+     */
+    public static final long NO_IDENTIFIER = -1;
+
+    /**
+     * Number of frames sent to a peer before yielding to other peers.
+     */
+    static final int DRAIN_BATCH_SIZE = 8;
+
+    /**
+     * What to do when a frame is enqueued for a peer whose queue is full.
+     */
+    public enum BackpressurePolicy {
+
+        /**
+         * Drop the oldest frame queued for the peer to make room.
+         */
+        DROP_OLDEST,
+
+        /**
+         * Block the producer until the queue has room.
+         */
+        BLOCK
+    }
+
+    /**
+     * This interface is implemented by whoever actually puts frames on the wire.
+     * @param <P> Type of the peer frames are sent to.
+     */
+    public interface Transport<P> {
+
+        /**
+         * Sends a frame to the given peer.
+         * @param data Frame to send.
+         * @param peer Peer that will receive the frame.
+         * @return Identifier later given to onFrameDelivered or onFrameFailed, or NO_IDENTIFIER.
+         */
+        long send(byte[] data, P peer);
+    }
+
+    /**
+     * This listener is notified of the frames the scheduler gave up on.
+     * @param <P> Type of the peer frames are sent to.
+     */
+    public interface DeadLetterListener<P> {
+
+        /**
+         * This notification indicates that a frame will not be sent again,
+         * either because it ran out of retries, because its peer was lost,
+         * or because backpressure dropped it to make room for newer frames.
+         * @param data Frame that was given up.
+         * @param peer Peer the frame was meant for.
+         * @param attempts Number of times the frame was sent.
+         */
+        void onFrameGivenUp(byte[] data, P peer, int attempts);
+    }
+
+    /**
+     * This listener is notified of the time frames took to be delivered.
+     * @param <P> Type of the peer frames are sent to.
+     */
+    public interface DeliveryListener<P> {
+
+        /**
+         * This notification indicates that a frame was delivered.
+         * @param peer Peer the frame was delivered to.
+         * @param latencyMillis Time from the last send of the frame to its delivery.
+         */
+        void onFrameDelivered(P peer, long latencyMillis);
+    }
+
+    private final Transport<P> transport;
+    private final Executor executor;
+    private final int queueCapacity;
+    private final int inFlightWindow;
+    private final BackpressurePolicy backpressurePolicy;
+    private final Map<P, PeerQueue> peerQueues = new HashMap<P, PeerQueue>();
+    private final Map<Long, Frame> inFlightFrames = new HashMap<Long, Frame>();
+    private final Map<Long, Boolean> earlyCompletions = new HashMap<Long, Boolean>();
+    private final Random random = new Random();
+
+    private RetryPolicy retryPolicy;
+    private ScheduledExecutorService retryTimer;
+    private DeadLetterListener<P> deadLetterListener;
+    private DeliveryListener<P> deliveryListener;
+
+    private int sendsInProgress;
+    private int totalQueueDepth;
+    private int maxQueueDepth;
+    private long enqueuedCount;
+    private long sentCount;
+    private long droppedCount;
+    private long retriedCount;
+    private long givenUpCount;
+
+    /**
+     * Initializes a scheduler with the default capacity, dropping the oldest
+     * frames when a peer queue is full.
+     * @param transport Transport that sends the frames.
+     */
+    public OutboundScheduler(Transport<P> transport) {
+
+        this(transport, DEFAULT_QUEUE_CAPACITY, DEFAULT_IN_FLIGHT_WINDOW, BackpressurePolicy.DROP_OLDEST, Executors.newSingleThreadExecutor());
+    }
+
+    /**
+     * Initializes a scheduler.
+     * @param transport Transport that sends the frames.
+     * @param queueCapacity Maximum number of frames buffered per peer.
+     * @param inFlightWindow Maximum number of frames in flight per peer.
+     * @param backpressurePolicy What to do when a peer queue is full.
+     * @param executor Executor that drains the queues. It should run one task at a time.
+     */
+    public OutboundScheduler(Transport<P> transport, int queueCapacity, int inFlightWindow, BackpressurePolicy backpressurePolicy, Executor executor) {
+
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("Queue capacity must be positive");
+        }
+
+        if (inFlightWindow <= 0) {
+            throw new IllegalArgumentException("In flight window must be positive");
+        }
+
+        this.transport = transport;
+        this.queueCapacity = queueCapacity;
+        this.inFlightWindow = inFlightWindow;
+        this.backpressurePolicy = backpressurePolicy;
+        this.executor = executor;
+    }
+
+    /**
+     * Sets how failed frames are retried.
+     * @param retryPolicy Policy deciding the retries.
+     * @param retryTimer Executor used to wait for the backoff before a frame is queued again.
+     */
+    public synchronized void setRetryPolicy(RetryPolicy retryPolicy, ScheduledExecutorService retryTimer) {
+
+        this.retryPolicy = retryPolicy;
+        this.retryTimer = retryTimer;
+    }
+
+    /**
+     * Sets the listener notified of the frames the scheduler gave up on.
+     * @param deadLetterListener Listener to notify.
+     */
+    public synchronized void setDeadLetterListener(DeadLetterListener<P> deadLetterListener) {
+
+        this.deadLetterListener = deadLetterListener;
+    }
+
+    /**
+     * Sets the listener notified of the time frames took to be delivered.
+     * @param deliveryListener Listener to notify.
+     */
+    public synchronized void setDeliveryListener(DeliveryListener<P> deliveryListener) {
+
+        this.deliveryListener = deliveryListener;
+    }
+
+    /**
+     * Queues a frame for the given peer.
+     * @param data Frame to send.
+     * @param peer Peer that will receive the frame.
+     * @return false if the frame was not queued, because the producer was
+     * interrupted while waiting for room or the peer was removed meanwhile.
+     */
+    public boolean enqueue(byte[] data, P peer) {
+
+        return enqueueFrame(new Frame(data, peer, now()));
+    }
+
+    /**
+     * Releases the credit held by a frame that was delivered.
+     * @param identifier Identifier returned by the transport for the frame.
+     */
+    public void onFrameDelivered(long identifier) {
+
+        completeFrame(identifier, true);
+    }
+
+    /**
+     * Releases the credit held by a frame that failed sending, and either
+     * schedules it to be sent again or gives it up.
+     * @param identifier Identifier returned by the transport for the frame.
+     */
+    public void onFrameFailed(long identifier) {
+
+        completeFrame(identifier, false);
+    }
+
+    /**
+     * Drops every frame queued for the given peer, typically when it is lost.
+     * @param peer Peer to forget.
+     */
+    public void removePeer(P peer) {
+
+        List<Frame> givenUp = new ArrayList<Frame>();
+
+        synchronized (this) {
+
+            PeerQueue queue = peerQueues.remove(peer);
+
+            if (queue == null) {
+                return;
+            }
+
+            // The frames of a lost peer are counted once, as given up.
+            totalQueueDepth -= queue.frames.size();
+            givenUp.addAll(queue.frames);
+            queue.frames.clear();
+            notifyAll();
+
+            Iterator<Frame> iterator = inFlightFrames.values().iterator();
+
+            while (iterator.hasNext()) {
+
+                Frame frame = iterator.next();
+
+                if (frame.queue == queue) {
+                    iterator.remove();
+                    givenUp.add(frame);
+                }
+            }
+        }
+
+        notifyGivenUp(givenUp);
+    }
+
+    /**
+     * @param peer Peer to check.
+     * @return Number of frames queued for the given peer.
+     */
+    public synchronized int getQueueDepth(P peer) {
+
+        PeerQueue queue = peerQueues.get(peer);
+        return queue != null ? queue.frames.size() : 0;
+    }
+
+    /**
+     * @param peer Peer to check.
+     * @return Number of frames sent to the given peer that did not complete yet.
+     */
+    public synchronized int getInFlightCount(P peer) {
+
+        PeerQueue queue = peerQueues.get(peer);
+        return queue != null ? queue.inFlight : 0;
+    }
+
+    /**
+     * @return Number of frames sent to all peers that did not complete yet.
+     */
+    public synchronized int getTotalInFlightCount() {
+
+        return inFlightFrames.size();
+    }
+
+    /**
+     * @return Number of frames queued for all peers.
+     */
+    public synchronized int getTotalQueueDepth() {
+
+        return totalQueueDepth;
+    }
+
+    /**
+     * @return Largest number of frames ever queued for a single peer.
+     */
+    public synchronized int getMaxQueueDepth() {
+
+        return maxQueueDepth;
+    }
+
+    /**
+     * @return Number of frames accepted by the scheduler, retries included.
+     */
+    public synchronized long getEnqueuedCount() {
+
+        return enqueuedCount;
+    }
+
+    /**
+     * @return Number of frames handed to the transport.
+     */
+    public synchronized long getSentCount() {
+
+        return sentCount;
+    }
+
+    /**
+     * @return Number of frames dropped by backpressure. Frames of removed
+     * peers are counted as given up instead.
+     */
+    public synchronized long getDroppedCount() {
+
+        return droppedCount;
+    }
+
+    /**
+     * @return Number of retries scheduled for failed frames.
+     */
+    public synchronized long getRetriedCount() {
+
+        return retriedCount;
+    }
+
+    /**
+     * @return Number of frames given up after failing or because their peer
+     * was lost. Frames dropped by backpressure also reach the dead letter
+     * listener, but are counted as dropped.
+     */
+    public synchronized long getGivenUpCount() {
+
+        return givenUpCount;
+    }
+
+    /**
+     * @return Number of completions waiting for their send call to return.
+     */
+    synchronized int getEarlyCompletionCount() {
+
+        return earlyCompletions.size();
+    }
+
+    protected long now() {
+
+        return System.nanoTime() / 1000000L;
+    }
+
+    private boolean enqueueFrame(Frame frame) {
+
+        boolean scheduleDrain;
+        boolean peerLost = false;
+        List<Frame> dropped = null;
+
+        synchronized (this) {
+
+            PeerQueue queue = getPeerQueue(frame.peer);
+
+            while (queue.frames.size() >= queueCapacity) {
+
+                if (backpressurePolicy == BackpressurePolicy.DROP_OLDEST) {
+
+                    if (dropped == null) {
+                        dropped = new ArrayList<Frame>();
+                    }
+
+                    dropped.add(queue.frames.poll());
+                    totalQueueDepth--;
+                    droppedCount++;
+
+                } else {
+
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+
+                    // A peer removed while we were waiting stays removed,
+                    // this frame is given up with the ones it had queued.
+                    if (peerQueues.get(frame.peer) != queue) {
+                        peerLost = true;
+                        break;
+                    }
+                }
+            }
+
+            if (peerLost) {
+
+                scheduleDrain = false;
+
+            } else {
+
+                frame.queue = queue;
+                queue.frames.add(frame);
+                totalQueueDepth++;
+                enqueuedCount++;
+                maxQueueDepth = Math.max(maxQueueDepth, queue.frames.size());
+
+                scheduleDrain = !queue.drainScheduled;
+                queue.drainScheduled = true;
+            }
+        }
+
+        if (dropped != null) {
+            notifyDeadLetterListener(dropped);
+        }
+
+        if (peerLost) {
+            notifyGivenUp(Collections.singletonList(frame));
+            return false;
+        }
+
+        if (scheduleDrain) {
+            scheduleDrain(frame.peer);
+        }
+        return true;
+    }
+
+    private void completeFrame(long identifier, boolean delivered) {
+
+        Frame frame;
+        boolean scheduleDrain = false;
+        DeliveryListener<P> deliveryListener;
+
+        synchronized (this) {
+
+            frame = inFlightFrames.remove(identifier);
+            deliveryListener = this.deliveryListener;
+
+            if (frame == null) {
+
+                // The completion may race with the send call that returns the
+                // identifier, so remember it until the frame is registered.
+                // Without a send in progress it belongs to a frame that was
+                // dropped or already completed, and is not kept.
+                if (identifier != NO_IDENTIFIER && sendsInProgress > 0) {
+                    earlyCompletions.put(identifier, delivered);
+                }
+                return;
+            }
+
+            PeerQueue queue = frame.queue;
+            queue.inFlight--;
+
+            if (peerQueues.get(queue.peer) == queue && !queue.drainScheduled && !queue.frames.isEmpty()) {
+                queue.drainScheduled = true;
+                scheduleDrain = true;
+            }
+        }
+
+        if (scheduleDrain) {
+            scheduleDrain(frame.peer);
+        }
+
+        if (!delivered) {
+            retryOrGiveUp(frame);
+        } else if (deliveryListener != null) {
+            deliveryListener.onFrameDelivered(frame.peer, now() - frame.sentAt);
+        }
+    }
+
+    private void retryOrGiveUp(final Frame frame) {
+
+        ScheduledExecutorService timer;
+        long delay;
+
+        synchronized (this) {
+
+            timer = retryTimer;
+            delay = retryPolicy != null ? retryPolicy.backoffMillis(frame.attempts, random) : 0;
+
+            boolean retry = retryPolicy != null && timer != null
+                    && peerQueues.get(frame.peer) == frame.queue
+                    && retryPolicy.shouldRetry(frame.attempts, now() + delay - frame.firstQueuedAt);
+
+            if (!retry) {
+                timer = null;
+            } else {
+                retriedCount++;
+            }
+        }
+
+        if (timer == null) {
+            notifyGivenUp(Collections.singletonList(frame));
+            return;
+        }
+
+        // Retries go to the tail of the peer queue, behind newer traffic.
+        timer.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+
+                boolean peerLost;
+
+                synchronized (OutboundScheduler.this) {
+                    peerLost = peerQueues.get(frame.peer) != frame.queue;
+                }
+
+                if (peerLost) {
+                    notifyGivenUp(Collections.singletonList(frame));
+                } else {
+                    enqueueFrame(frame);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void notifyGivenUp(List<Frame> frames) {
+
+        synchronized (this) {
+            givenUpCount += frames.size();
+        }
+
+        notifyDeadLetterListener(frames);
+    }
+
+    private void notifyDeadLetterListener(List<Frame> frames) {
+
+        DeadLetterListener<P> listener;
+
+        synchronized (this) {
+            listener = deadLetterListener;
+        }
+
+        if (listener == null) {
+            return;
+        }
+
+        for (Frame frame : frames) {
+            listener.onFrameGivenUp(frame.data, frame.peer, frame.attempts);
+        }
+    }
+
+    private PeerQueue getPeerQueue(P peer) {
+
+        PeerQueue queue = peerQueues.get(peer);
+
+        if (queue == null) {
+            queue = new PeerQueue(peer);
+            peerQueues.put(peer, queue);
+        }
+        return queue;
+    }
+
+    private void scheduleDrain(final P peer) {
+
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                drain(peer);
+            }
+        });
+    }
+
+    private void drain(P peer) {
+
+        for (int i = 0; i < DRAIN_BATCH_SIZE; i++) {
+
+            Frame frame;
+
+            synchronized (this) {
+
+                PeerQueue queue = peerQueues.get(peer);
+
+                if (queue == null) {
+                    return;
+                }
+
+                // Without credit the drain stops here, completeFrame
+                // schedules it again once a frame in flight completes.
+                if (queue.inFlight >= inFlightWindow || queue.frames.isEmpty()) {
+                    queue.drainScheduled = false;
+                    return;
+                }
+
+                frame = queue.frames.poll();
+                frame.attempts++;
+                frame.sentAt = now();
+                queue.inFlight++;
+                totalQueueDepth--;
+                sentCount++;
+                sendsInProgress++;
+                notifyAll();
+            }
+
+            long identifier;
+
+            try {
+                identifier = transport.send(frame.data, peer);
+            } catch (RuntimeException e) {
+
+                // A failing peer must not stall the drain of the others, and
+                // the frame goes through the retry policy like any failure.
+                e.printStackTrace();
+                registerInFlight(NO_IDENTIFIER, frame);
+                retryOrGiveUp(frame);
+                continue;
+            }
+
+            registerInFlight(identifier, frame);
+        }
+
+        // Yield to the other peers before sending the rest of this queue.
+        scheduleDrain(peer);
+    }
+
+    private void registerInFlight(long identifier, Frame frame) {
+
+        Boolean earlyOutcome = null;
+
+        synchronized (this) {
+
+            sendsInProgress--;
+
+            if (identifier == NO_IDENTIFIER) {
+
+                // Untracked frames give their credit back right away.
+                frame.queue.inFlight--;
+
+            } else {
+
+                earlyOutcome = earlyCompletions.remove(identifier);
+                inFlightFrames.put(identifier, frame);
+            }
+
+            // Completions only race with the sends in progress, whatever is
+            // left once none is belongs to no frame.
+            if (sendsInProgress == 0) {
+                earlyCompletions.clear();
+            }
+        }
+
+        if (earlyOutcome != null) {
+            completeFrame(identifier, earlyOutcome);
+        }
+    }
+
+    private class PeerQueue {
+
+        final P peer;
+        final ArrayDeque<Frame> frames = new ArrayDeque<Frame>();
+        int inFlight;
+        boolean drainScheduled;
+
+        PeerQueue(P peer) {
+            this.peer = peer;
+        }
+    }
+
+    private class Frame {
+
+        final byte[] data;
+        final P peer;
+        final long firstQueuedAt;
+        PeerQueue queue;
+        int attempts;
+        long sentAt;
+
+        Frame(byte[] data, P peer, long firstQueuedAt) {
+            this.data = data;
+            this.peer = peer;
+            this.firstQueuedAt = firstQueuedAt;
+        }
+    }
+}
@@ -0,0 +1,471 @@
+//
+// MIT License
+//
+// Copyright (C) 2018 HypeLabs Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+
+package com.hypelabs.hypetwiliodemo;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * This class is an append-only, on-disk queue of outgoing messages. Records
+ * are appended to the newest of a series of segment files and consumed in
+ * order from the oldest one, whose read position is kept in a small cursor
+ * file. Segments are deleted once fully consumed, so appends and removals
+ * cost O(1).
+ * <p>
+ * The cursor file also holds a checkpoint: the end of the records written
+ * so far and the number of records waiting up to it. It is saved on every
+ * removal, when a segment is started, on close and every
+ * CHECKPOINT_INTERVAL appends. A restart trusts the records before the
+ * checkpoint and only checks the ones after it against their checksum,
+ * which bounds its cost by the interval rather than by the size of the
+ * outbox. Without a usable checkpoint, e.g. after the tail was cut below
+ * it, every segment is walked and the last one checked in full.
+ */
+public class OutboxStore implements Closeable {
+
+    /**
+     * Default size after which a new segment file is started.
+     */
+    public static final long DEFAULT_SEGMENT_SIZE = 256 * 1024;
+
+    static final String SEGMENT_PREFIX = "outbox-";
+    static final String SEGMENT_SUFFIX = ".log";
+    static final String CURSOR_FILE_NAME = "outbox.cursor";
+
+    /**
+     * Number of appends after which the checkpoint is saved.
+     */
+    static final int CHECKPOINT_INTERVAL = 64;
+
+    private static final int RECORD_HEADER_LENGTH = 8;
+    private static final int MAX_RECORD_LENGTH = 1024 * 1024;
+    private static final int CURSOR_LENGTH = 16;
+    private static final int CHECKPOINT_LENGTH = 36;
+
+    private final File directory;
+    private final long segmentSize;
+    private final List<Long> segments = new ArrayList<Long>();
+
+    private RandomAccessFile writer;
+    private RandomAccessFile reader;
+    private RandomAccessFile cursor;
+    private long readSegment;
+    private long readOffset;
+    private long writeOffset;
+    private int pendingCount;
+    private int appendsSinceCheckpoint;
+
+    /**
+     * Opens the outbox kept in the given directory, creating it if needed.
+     * @param directory Directory holding the segment files.
+     * @throws IOException If the outbox cannot be read.
+     */
+    public OutboxStore(File directory) throws IOException {
+
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens the outbox kept in the given directory, creating it if needed.
+     * @param directory Directory holding the segment files.
+     * @param segmentSize Size after which a new segment file is started.
+     * @throws IOException If the outbox cannot be read.
+     */
+    public OutboxStore(File directory, long segmentSize) throws IOException {
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create outbox directory " + directory);
+        }
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        recover();
+    }
+
+    /**
+     * Appends a record at the end of the outbox.
+     * @param record Record to store.
+     * @throws IOException If the record cannot be written.
+     */
+    public synchronized void append(byte[] record) throws IOException {
+
+        if (record.length > MAX_RECORD_LENGTH) {
+            throw new IOException("Outbox record too large: " + record.length);
+        }
+
+        boolean started = writeOffset >= segmentSize;
+
+        if (started) {
+            startSegment(segments.get(segments.size() - 1) + 1);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+
+        byte[] buffer = new byte[RECORD_HEADER_LENGTH + record.length];
+        writeInt(buffer, 0, record.length);
+        writeInt(buffer, 4, (int) crc.getValue());
+        System.arraycopy(record, 0, buffer, RECORD_HEADER_LENGTH, record.length);
+
+        writer.seek(writeOffset);
+        writer.write(buffer);
+        writeOffset += buffer.length;
+        pendingCount++;
+
+        if (started || ++appendsSinceCheckpoint >= CHECKPOINT_INTERVAL) {
+            saveCursor();
+        }
+    }
+
+    /**
+     * Reads the oldest record of the outbox without removing it.
+     * @return Oldest record, or null if the outbox is empty.
+     * @throws IOException If the record cannot be read.
+     */
+    public synchronized byte[] peek() throws IOException {
+
+        while (pendingCount > 0) {
+
+            RandomAccessFile file = getReader();
+
+            if (readOffset < file.length()) {
+
+                file.seek(readOffset);
+                int length = file.readInt();
+                file.readInt();
+                byte[] record = new byte[length];
+                file.readFully(record);
+                return record;
+            }
+
+            if (!advanceSegment()) {
+                break;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes the oldest record of the outbox, as returned by peek.
+     * @throws IOException If the cursor cannot be saved.
+     */
+    public synchronized void remove() throws IOException {
+
+        if (peek() == null) {
+            return;
+        }
+
+        RandomAccessFile file = getReader();
+        file.seek(readOffset);
+        readOffset += RECORD_HEADER_LENGTH + file.readInt();
+        pendingCount--;
+        saveCursor();
+
+        if (readOffset >= file.length() && readSegment != segments.get(segments.size() - 1)) {
+            advanceSegment();
+        }
+    }
+
+    /**
+     * @return Number of records waiting in the outbox.
+     */
+    public synchronized int size() {
+
+        return pendingCount;
+    }
+
+    /**
+     * @return true if the outbox has no records waiting.
+     */
+    public synchronized boolean isEmpty() {
+
+        return pendingCount == 0;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+
+        if (cursor != null) {
+            saveCursor();
+        }
+        closeQuietly(reader);
+        closeQuietly(writer);
+        closeQuietly(cursor);
+        reader = null;
+        writer = null;
+        cursor = null;
+    }
+
+    private void recover() throws IOException {
+
+        File[] files = directory.listFiles();
+
+        if (files != null) {
+            for (File file : files) {
+
+                String name = file.getName();
+
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        segments.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        // Not one of ours.
+                    }
+                }
+            }
+        }
+        Collections.sort(segments);
+
+        cursor = new RandomAccessFile(new File(directory, CURSOR_FILE_NAME), "rw");
+
+        long checkpointSegment = -1;
+        long checkpointOffset = 0;
+        int checkpointCount = 0;
+
+        if (cursor.length() >= CURSOR_LENGTH) {
+            cursor.seek(0);
+            readSegment = cursor.readLong();
+            readOffset = cursor.readLong();
+        }
+
+        if (cursor.length() >= CHECKPOINT_LENGTH) {
+            checkpointSegment = cursor.readLong();
+            checkpointOffset = cursor.readLong();
+            checkpointCount = cursor.readInt();
+        }
+
+        // Segments before the cursor were consumed but not deleted yet.
+        while (!segments.isEmpty() && segments.get(0) < readSegment) {
+            segmentFile(segments.remove(0)).delete();
+        }
+
+        if (segments.isEmpty()) {
+            readSegment = 0;
+            readOffset = 0;
+            startSegment(0);
+            saveCursor();
+            return;
+        }
+
+        if (segments.get(0) > readSegment) {
+            readSegment = segments.get(0);
+            readOffset = 0;
+            checkpointSegment = -1;
+        }
+
+        long lastSegment = segments.get(segments.size() - 1);
+        writer = new RandomAccessFile(segmentFile(lastSegment), "rw");
+
+        // The checkpoint only holds if the records it covers are all still
+        // there, otherwise every segment is counted again.
+        boolean checkpointed = checkpointSegment >= readSegment && checkpointCount >= 0
+                && segments.contains(checkpointSegment)
+                && checkpointOffset <= segmentFile(checkpointSegment).length()
+                && (checkpointSegment != readSegment || checkpointOffset >= readOffset);
+
+        if (checkpointed) {
+            pendingCount = checkpointCount;
+        }
+
+        for (long segment : segments) {
+
+            if (checkpointed && segment < checkpointSegment) {
+                continue;
+            }
+
+            long offset = checkpointed && segment == checkpointSegment ? checkpointOffset : (segment == readSegment ? readOffset : 0);
+            pendingCount += countRecords(segment, offset, segment == lastSegment);
+        }
+
+        writeOffset = writer.length();
+        saveCursor();
+    }
+
+    /**
+     * Counts the records of a segment from the given offset. Only the last
+     * segment can hold a record cut short by a crash, so only its records are
+     * checked against their checksum, the others are skipped by length.
+     */
+    private int countRecords(long segment, long offset, boolean lastSegment) throws IOException {
+
+        RandomAccessFile file = new RandomAccessFile(segmentFile(segment), "rw");
+        int count = 0;
+
+        try {
+            long length = file.length();
+            file.seek(offset);
+
+            while (offset < length) {
+
+                long next = lastSegment ? validRecordEnd(file, offset, length) : recordEnd(file, offset, length);
+
+                if (next < 0) {
+                    if (lastSegment) {
+                        file.setLength(offset);
+                    }
+                    break;
+                }
+
+                offset = next;
+                count++;
+            }
+        } finally {
+            file.close();
+        }
+        return count;
+    }
+
+    private long recordEnd(RandomAccessFile file, long offset, long length) throws IOException {
+
+        if (offset + RECORD_HEADER_LENGTH > length) {
+            return -1;
+        }
+
+        file.seek(offset);
+        long next = offset + RECORD_HEADER_LENGTH + file.readInt();
+        return next <= length ? next : -1;
+    }
+
+    private long validRecordEnd(RandomAccessFile file, long offset, long length) throws IOException {
+
+        if (offset + RECORD_HEADER_LENGTH > length) {
+            return -1;
+        }
+
+        try {
+            file.seek(offset);
+            int recordLength = file.readInt();
+            int checksum = file.readInt();
+
+            if (recordLength < 0 || recordLength > MAX_RECORD_LENGTH || offset + RECORD_HEADER_LENGTH + recordLength > length) {
+                return -1;
+            }
+
+            byte[] record = new byte[recordLength];
+            file.readFully(record);
+
+            CRC32 crc = new CRC32();
+            crc.update(record, 0, record.length);
+
+            if ((int) crc.getValue() != checksum) {
+                return -1;
+            }
+            return offset + RECORD_HEADER_LENGTH + recordLength;
+
+        } catch (EOFException e) {
+            return -1;
+        }
+    }
+
+    private boolean advanceSegment() throws IOException {
+
+        int index = segments.indexOf(readSegment);
+
+        if (index < 0 || index + 1 >= segments.size()) {
+            return false;
+        }
+
+        closeQuietly(reader);
+        reader = null;
+        segmentFile(readSegment).delete();
+        segments.remove(index);
+
+        readSegment = segments.get(index);
+        readOffset = 0;
+        saveCursor();
+        return true;
+    }
+
+    private void startSegment(long segment) throws IOException {
+
+        closeQuietly(writer);
+        segments.add(segment);
+        writer = new RandomAccessFile(segmentFile(segment), "rw");
+        writeOffset = 0;
+    }
+
+    private RandomAccessFile getReader() throws IOException {
+
+        if (reader == null) {
+            reader = new RandomAccessFile(segmentFile(readSegment), "r");
+        }
+        return reader;
+    }
+
+    private void saveCursor() throws IOException {
+
+        byte[] buffer = new byte[CHECKPOINT_LENGTH];
+        writeLong(buffer, 0, readSegment);
+        writeLong(buffer, 8, readOffset);
+        writeLong(buffer, 16, segments.get(segments.size() - 1));
+        writeLong(buffer, 24, writeOffset);
+        writeInt(buffer, 32, pendingCount);
+
+        cursor.seek(0);
+        cursor.write(buffer);
+        appendsSinceCheckpoint = 0;
+    }
+
+    private File segmentFile(long segment) {
+
+        return new File(directory, String.format(Locale.US, "%s%020d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+
+    private static void writeInt(byte[] buffer, int offset, int value) {
+
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private static void writeLong(byte[] buffer, int offset, long value) {
+
+        writeInt(buffer, offset, (int) (value >>> 32));
+        writeInt(buffer, offset + 4, (int) value);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+
+        if (closeable == null) {
+            return;
+        }
+
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing left to do with it.
+        }
+    }
+}
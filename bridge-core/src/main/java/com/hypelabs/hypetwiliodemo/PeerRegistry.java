@@ -0,0 +1,405 @@
+//
+// MIT License
+//
+// Copyright (C) 2018 HypeLabs Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+
+package com.hypelabs.hypetwiliodemo;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class maps identifiers for vendor to peers and channels, and keeps a
+ * reverse index from peers to identifiers for vendor, so a lost peer is
+ * found and removed in constant time. It may be updated concurrently from
+ * Hype, Ion and Twilio callbacks: reads never lock, and updates only lock
+ * the stripes of the identifiers for vendor they touch, to keep both
+ * indexes in agreement. Null identifiers for vendor, which a peer may
+ * announce, are ignored. Fan-out iterates an immutable snapshot that is rebuilt only
+ * after the peers change. Channels may be given a key, such as their sid,
+ * under which the reachable peers subscribed to them are indexed, so fan-out
+ * for a channel only touches those peers. The identifiers for vendor
+ * subscribed to a channel without being peers, such as devices that joined
+ * through a relay, are indexed too, so they can be reached by routing. The
+ * indexes are kept up to date incrementally as peers are found and lost and
+ * as they join channels.
+ * @param <P> Type of the peers.
+ * @param <C> Type of the channels.
+ */
+public class PeerRegistry<P, C> {
+
+    private static final int LOCK_STRIPES = 16;
+
+    private final ConcurrentHashMap<String, P> peersByVendor = new ConcurrentHashMap<String, P>();
+    private final ConcurrentHashMap<P, String> vendorsByPeer = new ConcurrentHashMap<P, String>();
+    private final ConcurrentHashMap<String, C> channelsByVendor = new ConcurrentHashMap<String, C>();
+    private final ConcurrentHashMap<String, String> channelKeysByVendor = new ConcurrentHashMap<String, String>();
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, P>> subscribersByChannelKey = new ConcurrentHashMap<String, ConcurrentHashMap<String, P>>();
+    private final ConcurrentHashMap<String, Set<String>> vendorsByChannelKey = new ConcurrentHashMap<String, Set<String>>();
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final AtomicInteger version = new AtomicInteger();
+    private volatile Snapshot<P> snapshot;
+
+    public PeerRegistry() {
+
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Associates a peer with an identifier for vendor, replacing any peer
+     * previously associated with it and any identifier for vendor the peer
+     * was previously associated with. Both identifiers for vendor are
+     * locked, lowest stripe first.
+     * @param identifierForVendor Identifier for vendor of the peer, ignored if null.
+     * @param peer Peer to associate, ignored if null.
+     */
+    public void putPeer(String identifierForVendor, P peer) {
+
+        if (identifierForVendor == null || peer == null) {
+            return;
+        }
+
+        int stripe = stripeOf(identifierForVendor);
+
+        while (true) {
+
+            String previousVendor = vendorsByPeer.get(peer);
+            int previousStripe = previousVendor != null ? stripeOf(previousVendor) : stripe;
+
+            synchronized (locks[Math.min(stripe, previousStripe)]) {
+                synchronized (locks[Math.max(stripe, previousStripe)]) {
+
+                    // The peer moved to another identifier for vendor before
+                    // its stripe was locked, lock the right one.
+                    String currentVendor = vendorsByPeer.get(peer);
+
+                    if (currentVendor == null ? previousVendor != null : !currentVendor.equals(previousVendor)) {
+                        continue;
+                    }
+
+                    P previousPeer = peersByVendor.put(identifierForVendor, peer);
+
+                    if (previousPeer != null && !previousPeer.equals(peer)) {
+                        vendorsByPeer.remove(previousPeer, identifierForVendor);
+                    }
+
+                    vendorsByPeer.put(peer, identifierForVendor);
+
+                    if (previousVendor != null && !previousVendor.equals(identifierForVendor)) {
+                        peersByVendor.remove(previousVendor, peer);
+                        unsubscribe(channelKeysByVendor.get(previousVendor), previousVendor, peer);
+                    }
+
+                    String channelKey = channelKeysByVendor.get(identifierForVendor);
+
+                    if (channelKey != null) {
+                        getSubscribers(channelKey).put(identifierForVendor, peer);
+                    }
+
+                    version.incrementAndGet();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes a peer.
+     * @param peer Peer to remove.
+     * @return Identifier for vendor the peer was associated with, or null if it was not known.
+     */
+    public String removePeer(P peer) {
+
+        String identifierForVendor = peer != null ? vendorsByPeer.get(peer) : null;
+
+        if (identifierForVendor == null) {
+            return null;
+        }
+
+        synchronized (lockFor(identifierForVendor)) {
+
+            if (!vendorsByPeer.remove(peer, identifierForVendor)) {
+                return null;
+            }
+
+            peersByVendor.remove(identifierForVendor, peer);
+            unsubscribe(channelKeysByVendor.get(identifierForVendor), identifierForVendor, peer);
+            version.incrementAndGet();
+        }
+        return identifierForVendor;
+    }
+
+    /**
+     * @param identifierForVendor Identifier for vendor to look up.
+     * @return Peer associated with the identifier for vendor, or null.
+     */
+    public P getPeer(String identifierForVendor) {
+
+        return identifierForVendor != null ? peersByVendor.get(identifierForVendor) : null;
+    }
+
+    /**
+     * @param peer Peer to look up.
+     * @return Identifier for vendor associated with the peer, or null.
+     */
+    public String getIdentifierForVendor(P peer) {
+
+        return peer != null ? vendorsByPeer.get(peer) : null;
+    }
+
+    /**
+     * Associates a channel with an identifier for vendor.
+     * @param identifierForVendor Identifier for vendor.
+     * @param channel Channel to associate.
+     */
+    public void putChannel(String identifierForVendor, C channel) {
+
+        putChannel(identifierForVendor, channel, null);
+    }
+
+    /**
+     * Associates a channel with an identifier for vendor, and subscribes the
+     * peer of the identifier for vendor to the channel key.
+     * @param identifierForVendor Identifier for vendor.
+     * @param channel Channel to associate.
+     * @param channelKey Key the channel is indexed under, or null.
+     */
+    public void putChannel(String identifierForVendor, C channel, String channelKey) {
+
+        if (identifierForVendor == null) {
+            return;
+        }
+
+        synchronized (lockFor(identifierForVendor)) {
+
+            channelsByVendor.put(identifierForVendor, channel);
+
+            String previousKey = channelKey != null
+                    ? channelKeysByVendor.put(identifierForVendor, channelKey)
+                    : channelKeysByVendor.remove(identifierForVendor);
+            P peer = peersByVendor.get(identifierForVendor);
+
+            if (previousKey != null && !previousKey.equals(channelKey)) {
+                unsubscribe(previousKey, identifierForVendor, peer);
+                removeSubscribedVendor(previousKey, identifierForVendor);
+            }
+
+            if (channelKey != null) {
+
+                getSubscribedVendors(channelKey).add(identifierForVendor);
+
+                if (peer != null) {
+                    getSubscribers(channelKey).put(identifierForVendor, peer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the channel associated with an identifier for vendor.
+     * @param identifierForVendor Identifier for vendor.
+     */
+    public void removeChannel(String identifierForVendor) {
+
+        if (identifierForVendor == null) {
+            return;
+        }
+
+        synchronized (lockFor(identifierForVendor)) {
+
+            channelsByVendor.remove(identifierForVendor);
+
+            String channelKey = channelKeysByVendor.remove(identifierForVendor);
+            unsubscribe(channelKey, identifierForVendor, peersByVendor.get(identifierForVendor));
+            removeSubscribedVendor(channelKey, identifierForVendor);
+        }
+    }
+
+    /**
+     * Returns the reachable peers subscribed to a channel, keyed by
+     * identifier for vendor. The map is a copy, safe to iterate while other
+     * threads update the registry.
+     * @param channelKey Key of the channel.
+     * @return Subscribed peers, empty if there are none.
+     */
+    public Map<String, P> getSubscribedPeers(String channelKey) {
+
+        ConcurrentHashMap<String, P> subscribers = channelKey != null ? subscribersByChannelKey.get(channelKey) : null;
+
+        if (subscribers == null) {
+            return Collections.emptyMap();
+        }
+        return Collections.unmodifiableMap(new HashMap<String, P>(subscribers));
+    }
+
+    /**
+     * Returns the identifiers for vendor subscribed to a channel that are not
+     * peers, which are only reachable through a route. The set is a copy,
+     * safe to iterate while other threads update the registry.
+     * @param channelKey Key of the channel.
+     * @return Subscribed identifiers for vendor without a peer, empty if there are none.
+     */
+    public Set<String> getRemoteSubscribers(String channelKey) {
+
+        Set<String> vendors = channelKey != null ? vendorsByChannelKey.get(channelKey) : null;
+
+        if (vendors == null) {
+            return Collections.emptySet();
+        }
+
+        Set<String> remote = new HashSet<String>();
+
+        for (String identifierForVendor : vendors) {
+            if (!peersByVendor.containsKey(identifierForVendor)) {
+                remote.add(identifierForVendor);
+            }
+        }
+        return remote;
+    }
+
+    /**
+     * @param identifierForVendor Identifier for vendor to look up.
+     * @return Channel associated with the identifier for vendor, or null.
+     */
+    public C getChannel(String identifierForVendor) {
+
+        return identifierForVendor != null ? channelsByVendor.get(identifierForVendor) : null;
+    }
+
+    /**
+     * Returns the peers keyed by identifier for vendor, including every
+     * update that completed before the call. The map is immutable and shared
+     * between callers until the peers change again, so iterating it is safe
+     * while other threads update the registry.
+     * @return Snapshot of the peers.
+     */
+    public Map<String, P> snapshotPeers() {
+
+        int currentVersion = version.get();
+        Snapshot<P> current = snapshot;
+
+        if (current != null && current.version == currentVersion) {
+            return current.peers;
+        }
+
+        Map<String, P> peers = Collections.unmodifiableMap(new HashMap<String, P>(peersByVendor));
+        snapshot = new Snapshot<P>(currentVersion, peers);
+
+        return peers;
+    }
+
+    /**
+     * @return Number of peers.
+     */
+    public int peerCount() {
+
+        return peersByVendor.size();
+    }
+
+    /**
+     * @return true if there are no peers.
+     */
+    public boolean hasNoPeers() {
+
+        return peersByVendor.isEmpty();
+    }
+
+    private ConcurrentHashMap<String, P> getSubscribers(String channelKey) {
+
+        ConcurrentHashMap<String, P> subscribers = subscribersByChannelKey.get(channelKey);
+
+        if (subscribers == null) {
+
+            ConcurrentHashMap<String, P> created = new ConcurrentHashMap<String, P>();
+            subscribers = subscribersByChannelKey.putIfAbsent(channelKey, created);
+
+            if (subscribers == null) {
+                subscribers = created;
+            }
+        }
+        return subscribers;
+    }
+
+    private Set<String> getSubscribedVendors(String channelKey) {
+
+        Set<String> vendors = vendorsByChannelKey.get(channelKey);
+
+        if (vendors == null) {
+
+            Set<String> created = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            vendors = vendorsByChannelKey.putIfAbsent(channelKey, created);
+
+            if (vendors == null) {
+                vendors = created;
+            }
+        }
+        return vendors;
+    }
+
+    private void removeSubscribedVendor(String channelKey, String identifierForVendor) {
+
+        Set<String> vendors = channelKey != null ? vendorsByChannelKey.get(channelKey) : null;
+
+        if (vendors != null) {
+            vendors.remove(identifierForVendor);
+        }
+    }
+
+    private void unsubscribe(String channelKey, String identifierForVendor, P peer) {
+
+        ConcurrentHashMap<String, P> subscribers = channelKey != null ? subscribersByChannelKey.get(channelKey) : null;
+
+        if (subscribers != null && peer != null) {
+            subscribers.remove(identifierForVendor, peer);
+        }
+    }
+
+    private Object lockFor(String identifierForVendor) {
+
+        return locks[stripeOf(identifierForVendor)];
+    }
+
+    private static int stripeOf(String identifierForVendor) {
+
+        return (identifierForVendor.hashCode() & 0x7fffffff) % LOCK_STRIPES;
+    }
+
+    private static final class Snapshot<P> {
+
+        final int version;
+        final Map<String, P> peers;
+
+        Snapshot(int version, Map<String, P> peers) {
+
+            this.version = version;
+            this.peers = peers;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+//
+// MIT License
+//
+// Copyright (C) 2018 HypeLabs Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+
+package com.hypelabs.hypetwiliodemo;
+
+import java.util.Random;
+
+/**
+ * This class decides whether and when a frame that failed sending is
+ * sent again. Delays grow exponentially from the initial backoff up to
+ * the maximum backoff, with full jitter so peers that failed together do
+ * not retry together, and a frame is given up once it ran out of attempts
+ * or its next try would land past its deadline.
+ */
+public class RetryPolicy {
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+    public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 250;
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 8000;
+    public static final long DEFAULT_DEADLINE_MILLIS = 60000;
+
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final long deadlineMillis;
+
+    /**
+     * Initializes a policy with the default limits.
+     */
+    public RetryPolicy() {
+
+        this(DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_BACKOFF_MILLIS, DEFAULT_MAX_BACKOFF_MILLIS, DEFAULT_DEADLINE_MILLIS);
+    }
+
+    /**
+     * Initializes a policy.
+     * @param maxAttempts Maximum number of times a frame is sent, counting the first one.
+     * @param initialBackoffMillis Upper bound of the delay before the first retry.
+     * @param maxBackoffMillis Upper bound of the delay before any retry.
+     * @param deadlineMillis Time after the frame was first queued past which it is given up.
+     */
+    public RetryPolicy(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis, long deadlineMillis) {
+
+        if (maxAttempts <= 0) {
+            throw new IllegalArgumentException("Max attempts must be positive");
+        }
+
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * Computes the delay before the next try of a frame.
+     * @param attempts Number of times the frame has been sent so far.
+     * @param random Source of jitter.
+     * @return Delay in milliseconds.
+     */
+    public long backoffMillis(int attempts, Random random) {
+
+        int exponent = Math.min(Math.max(attempts - 1, 0), 30);
+        long ceiling = Math.min(maxBackoffMillis, initialBackoffMillis << exponent);
+
+        if (ceiling <= 0) {
+            return 0;
+        }
+        return (long) (random.nextDouble() * ceiling);
+    }
+
+    /**
+     * Checks whether a frame may be tried again.
+     * @param attempts Number of times the frame has been sent so far.
+     * @param elapsedMillis Time since the frame was first queued, including the next delay.
+     * @return true if the frame should be retried.
+     */
+    public boolean shouldRetry(int attempts, long elapsedMillis) {
+
+        return attempts < maxAttempts && elapsedMillis <= deadlineMillis;
+    }
+
+    public int getMaxAttempts() {
+
+        return maxAttempts;
+    }
+
+    public long getDeadlineMillis() {
+
+        return deadlineMillis;
+    }
+}
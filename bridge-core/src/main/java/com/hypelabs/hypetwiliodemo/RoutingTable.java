@@ -0,0 +1,272 @@
+//
+// MIT License
+//
+// Copyright (C) 2018 HypeLabs Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+
+package com.hypelabs.hypetwiliodemo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class is a distance-vector routing table towards the nearest
+ * gateway, that is, the nearest device that joined its own twilio channel.
+ * Each neighbour advertises its hop count to a gateway, and this device is
+ * one hop further than the best of them. Advertisements sent to the current
+ * next hop are poisoned, so two neighbours never count to infinity through
+ * each other. The table also remembers the neighbour each origin was last
+ * heard from, so replies flow back along the same path, and the frames
+ * already forwarded, so frames going around a loop are dropped.
+ * @param <P> Type of the neighbours.
+ */
+public class RoutingTable<P> {
+
+    /**
+     * Hop count meaning that there is no route to a gateway.
+     */
+    public static final int INFINITE_HOPS = 16;
+
+    /**
+     * Number of times a frame is forwarded before it is dropped.
+     */
+    public static final int DEFAULT_TTL = 8;
+
+    private static final int SEEN_FRAMES_CAPACITY = 1024;
+
+    private final Map<P, Integer> neighbourHops = new HashMap<P, Integer>();
+    private final Map<String, P> reverseRoutes = new HashMap<String, P>();
+    private final SidDedupStore seenFrames = new SidDedupStore(SEEN_FRAMES_CAPACITY, SidDedupStore.NO_TIME_WINDOW, false);
+    private boolean gateway;
+    private int hopCount = INFINITE_HOPS;
+    private P nextHop;
+
+    /**
+     * Sets whether this device is a gateway itself.
+     * @param gateway Whether this device joined its own twilio channel.
+     * @return true if the hop count or the next hop of this device changed.
+     */
+    public synchronized boolean setGateway(boolean gateway) {
+
+        this.gateway = gateway;
+        return updateRoute();
+    }
+
+    /**
+     * @return Whether this device is a gateway itself.
+     */
+    public synchronized boolean isGateway() {
+
+        return gateway;
+    }
+
+    /**
+     * Records the hop count advertised by a neighbour.
+     * @param neighbour Neighbour that advertised.
+     * @param advertisedHops Hop count from the neighbour to its nearest gateway.
+     * @return true if the hop count or the next hop of this device changed.
+     */
+    public synchronized boolean updateNeighbour(P neighbour, int advertisedHops) {
+
+        neighbourHops.put(neighbour, Math.max(0, Math.min(advertisedHops, INFINITE_HOPS)));
+        return updateRoute();
+    }
+
+    /**
+     * Forgets a neighbour and the reverse routes going through it.
+     * @param neighbour Neighbour that was lost.
+     * @return true if the hop count or the next hop of this device changed.
+     */
+    public synchronized boolean removeNeighbour(P neighbour) {
+
+        neighbourHops.remove(neighbour);
+
+        Iterator<Map.Entry<String, P>> iterator = reverseRoutes.entrySet().iterator();
+
+        while (iterator.hasNext()) {
+            if (iterator.next().getValue().equals(neighbour)) {
+                iterator.remove();
+            }
+        }
+        return updateRoute();
+    }
+
+    /**
+     * @return Hop count from this device to the nearest gateway, or INFINITE_HOPS.
+     */
+    public synchronized int getHopCount() {
+
+        return hopCount;
+    }
+
+    /**
+     * @return Neighbour on the best path to a gateway, or null if there is
+     * no route or this device is a gateway.
+     */
+    public synchronized P getNextHop() {
+
+        return nextHop;
+    }
+
+    /**
+     * @return Neighbours that are gateways themselves.
+     */
+    public synchronized List<P> getGatewayNeighbours() {
+
+        List<P> gateways = new ArrayList<P>();
+
+        for (Map.Entry<P, Integer> entry : neighbourHops.entrySet()) {
+            if (entry.getValue() == 0) {
+                gateways.add(entry.getKey());
+            }
+        }
+        return gateways;
+    }
+
+    /**
+     * Returns every neighbour on a shortest path to a gateway, so sends can
+     * pick among equally distant relays by other criteria.
+     * @return Neighbours with the lowest advertised hop count, empty if there is no route.
+     */
+    public synchronized List<P> getNextHopCandidates() {
+
+        List<P> candidates = new ArrayList<P>();
+
+        if (gateway || nextHop == null) {
+            return candidates;
+        }
+
+        for (Map.Entry<P, Integer> entry : neighbourHops.entrySet()) {
+            if (entry.getValue() + 1 == hopCount) {
+                candidates.add(entry.getKey());
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Returns the hop count to advertise to the given neighbour. The
+     * neighbour used as next hop is told there is no route through this
+     * device, since that route goes through the neighbour itself.
+     * @param neighbour Neighbour the advertisement is for.
+     * @return Hop count to advertise.
+     */
+    public synchronized int getAdvertisedHopCount(P neighbour) {
+
+        if (nextHop != null && nextHop.equals(neighbour)) {
+            return INFINITE_HOPS;
+        }
+        return hopCount;
+    }
+
+    /**
+     * @param neighbour Neighbour to check.
+     * @return true if the neighbour advertised a hop count.
+     */
+    public synchronized boolean hasNeighbour(P neighbour) {
+
+        return neighbourHops.containsKey(neighbour);
+    }
+
+    /**
+     * @return Neighbours that advertised a hop count.
+     */
+    public synchronized List<P> getNeighbours() {
+
+        return new ArrayList<P>(neighbourHops.keySet());
+    }
+
+    /**
+     * Records the neighbour a frame from the given origin came through.
+     * @param origin Identifier for vendor of the device that sent the frame.
+     * @param neighbour Neighbour the frame came from.
+     */
+    public synchronized void learnReverseRoute(String origin, P neighbour) {
+
+        reverseRoutes.put(origin, neighbour);
+    }
+
+    /**
+     * @param origin Identifier for vendor of a device.
+     * @return Neighbour frames for the device go through, or null.
+     */
+    public synchronized P getReverseRoute(String origin) {
+
+        return reverseRoutes.get(origin);
+    }
+
+    /**
+     * Records that a frame went through this device.
+     * @param frameId Identifier of the frame.
+     * @return false if the frame was already seen, in which case it must be dropped.
+     */
+    public boolean markFrameSeen(String frameId) {
+
+        synchronized (seenFrames) {
+
+            if (seenFrames.contains(frameId)) {
+                return false;
+            }
+
+            seenFrames.add(frameId);
+            return true;
+        }
+    }
+
+    private boolean updateRoute() {
+
+        int previousHopCount = hopCount;
+        P previousNextHop = nextHop;
+
+        if (gateway) {
+
+            hopCount = 0;
+            nextHop = null;
+            return hopCount != previousHopCount || previousNextHop != null;
+        }
+
+        P bestNeighbour = null;
+        int bestHops = INFINITE_HOPS;
+
+        for (Map.Entry<P, Integer> entry : neighbourHops.entrySet()) {
+
+            int hops = Math.min(entry.getValue() + 1, INFINITE_HOPS);
+
+            // Ties keep the current next hop, so routes do not flap between equals.
+            if (hops < bestHops || (hops == bestHops && hops < INFINITE_HOPS && entry.getKey().equals(nextHop))) {
+                bestNeighbour = entry.getKey();
+                bestHops = hops;
+            }
+        }
+
+        hopCount = bestHops;
+        nextHop = bestHops < INFINITE_HOPS ? bestNeighbour : null;
+
+        // A new next hop changes which neighbour gets poisoned advertisements,
+        // even when the hop count stays the same.
+        return hopCount != previousHopCount
+                || (nextHop == null ? previousNextHop != null : !nextHop.equals(previousNextHop));
+    }
+}
@@ -0,0 +1,279 @@
+//
+// MIT License
+//
+// Copyright (C) 2018 HypeLabs Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+
+package com.hypelabs.hypetwiliodemo;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class remembers the twilio message SIDs that went through the bridge
+ * with a bounded memory budget. SIDs are kept in an access ordered hash map
+ * that evicts the least recently seen SID once the capacity is reached, and
+ * optionally forgets SIDs older than a time window. An optional Bloom filter
+ * in front of the map answers most lookups for new SIDs without touching it.
+ */
+public class SidDedupStore {
+
+    /**
+     * Default number of SIDs kept in memory.
+     */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * Time window value that keeps SIDs until they are evicted by capacity.
+     */
+    public static final long NO_TIME_WINDOW = 0;
+
+    private static final int BLOOM_BITS_PER_ENTRY = 10;
+    private static final int BLOOM_HASHES = 3;
+
+    private final int capacity;
+    private final long timeWindowMillis;
+    private final LinkedHashMap<String, Long> sids;
+    private long[] bloomFilter;
+    private int evictionsSinceBloomRebuild;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Initializes a store with the default capacity, no time window and
+     * no Bloom filter.
+     */
+    public SidDedupStore() {
+
+        this(DEFAULT_CAPACITY, NO_TIME_WINDOW, false);
+    }
+
+    /**
+     * Initializes a store with the given memory budget.
+     * @param capacity Maximum number of SIDs kept in memory.
+     * @param timeWindowMillis Time after which a SID is forgotten, or NO_TIME_WINDOW.
+     * @param bloomFilterEnabled Whether lookups go through a Bloom filter first.
+     */
+    public SidDedupStore(int capacity, long timeWindowMillis, boolean bloomFilterEnabled) {
+
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+
+        this.capacity = capacity;
+        this.timeWindowMillis = timeWindowMillis;
+        this.sids = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+
+                if (size() > SidDedupStore.this.capacity) {
+                    onEviction();
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        if (bloomFilterEnabled) {
+            this.bloomFilter = new long[Math.max(1, (capacity * BLOOM_BITS_PER_ENTRY + 63) / 64)];
+        }
+    }
+
+    /**
+     * Checks whether the given SID has been seen, counting a hit or a miss.
+     * @param sid Twilio message SID.
+     * @return true if the SID is in the store.
+     */
+    public synchronized boolean contains(String sid) {
+
+        if (sid == null) {
+            misses++;
+            return false;
+        }
+
+        if (bloomFilter != null && !bloomMightContain(sid)) {
+            misses++;
+            return false;
+        }
+
+        Long seenAt = sids.get(sid);
+
+        if (seenAt == null) {
+            misses++;
+            return false;
+        }
+
+        if (isExpired(seenAt, now())) {
+            sids.remove(sid);
+            onEviction();
+            misses++;
+            return false;
+        }
+
+        hits++;
+        return true;
+    }
+
+    /**
+     * Records the given SID as seen.
+     * @param sid Twilio message SID.
+     */
+    public synchronized void add(String sid) {
+
+        if (sid == null) {
+            return;
+        }
+
+        long now = now();
+        expireOldest(now);
+        sids.put(sid, now);
+
+        if (bloomFilter != null) {
+            bloomAdd(sid);
+        }
+    }
+
+    /**
+     * @return Number of SIDs currently kept in memory.
+     */
+    public synchronized int size() {
+
+        return sids.size();
+    }
+
+    /**
+     * @return Number of lookups that found the SID.
+     */
+    public synchronized long getHits() {
+
+        return hits;
+    }
+
+    /**
+     * @return Number of lookups that did not find the SID.
+     */
+    public synchronized long getMisses() {
+
+        return misses;
+    }
+
+    /**
+     * @return Number of SIDs dropped because of the capacity or the time window.
+     */
+    public synchronized long getEvictions() {
+
+        return evictions;
+    }
+
+    protected long now() {
+
+        return System.currentTimeMillis();
+    }
+
+    private boolean isExpired(long seenAt, long now) {
+
+        return timeWindowMillis != NO_TIME_WINDOW && now - seenAt > timeWindowMillis;
+    }
+
+    private void expireOldest(long now) {
+
+        if (timeWindowMillis == NO_TIME_WINDOW) {
+            return;
+        }
+
+        Iterator<Map.Entry<String, Long>> iterator = sids.entrySet().iterator();
+
+        while (iterator.hasNext()) {
+
+            if (!isExpired(iterator.next().getValue(), now)) {
+                break;
+            }
+
+            iterator.remove();
+            onEviction();
+        }
+    }
+
+    private void onEviction() {
+
+        evictions++;
+
+        // A Bloom filter cannot forget entries, so it is rebuilt from the
+        // live SIDs once as many SIDs were evicted as the store can hold.
+        if (bloomFilter != null && ++evictionsSinceBloomRebuild >= capacity) {
+            rebuildBloomFilter();
+        }
+    }
+
+    private void rebuildBloomFilter() {
+
+        evictionsSinceBloomRebuild = 0;
+
+        for (int i = 0; i < bloomFilter.length; i++) {
+            bloomFilter[i] = 0;
+        }
+
+        for (String sid : sids.keySet()) {
+            bloomAdd(sid);
+        }
+    }
+
+    private void bloomAdd(String sid) {
+
+        int hash = sid.hashCode();
+        int step = secondaryHash(hash);
+        int bits = bloomFilter.length * 64;
+
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            int bit = ((hash + i * step) & Integer.MAX_VALUE) % bits;
+            bloomFilter[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    private boolean bloomMightContain(String sid) {
+
+        int hash = sid.hashCode();
+        int step = secondaryHash(hash);
+        int bits = bloomFilter.length * 64;
+
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            int bit = ((hash + i * step) & Integer.MAX_VALUE) % bits;
+
+            if ((bloomFilter[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int secondaryHash(int hash) {
+
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        return hash | 1;
+    }
+}
@@ -0,0 +1,348 @@
+//
+// MIT License
+//
+// Copyright (C) 2018 HypeLabs Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+
+package com.hypelabs.hypetwiliodemo;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class orchestrates the bridge startup as a set of stages with
+ * explicit dependencies. Stages without pending dependencies start right
+ * away, concurrently with each other, and every other stage starts as soon
+ * as the last of its dependencies completes. Stages may have an action to
+ * run when they start, or be driven from the outside, and each records
+ * when it started and completed relative to the start of the pipeline.
+ */
+public class StartupPipeline {
+
+    /**
+     * Value returned for timestamps that were not recorded.
+     */
+    public static final long NOT_RECORDED = -1;
+
+    /**
+     * Startup stages, in the order they usually complete.
+     */
+    public enum Stage {
+        HYPE_PERMISSION,
+        HYPE_START,
+        TOKEN_FETCH,
+        CLIENT_CREATION,
+        CHANNEL_JOIN,
+        FIRST_BRIDGED_MESSAGE
+    }
+
+    /**
+     * This interface is implemented by the work a stage runs when it starts.
+     * The stage completes when complete is called for it, which may happen
+     * later from another thread.
+     */
+    public interface StageAction {
+
+        /**
+         * Starts the work of a stage.
+         * @param pipeline Pipeline the stage belongs to.
+         */
+        void run(StartupPipeline pipeline);
+    }
+
+    /**
+     * This listener is notified as stages complete or fail.
+     */
+    public interface Listener {
+
+        /**
+         * This notification indicates that a stage completed.
+         * @param stage Stage that completed.
+         * @param pipeline Pipeline the stage belongs to.
+         */
+        void onStageCompleted(Stage stage, StartupPipeline pipeline);
+
+        /**
+         * This notification indicates that a stage failed.
+         * @param stage Stage that failed.
+         * @param reason Description of the failure.
+         * @param pipeline Pipeline the stage belongs to.
+         */
+        void onStageFailed(Stage stage, String reason, StartupPipeline pipeline);
+    }
+
+    private final Map<Stage, StageAction> actions = new EnumMap<Stage, StageAction>(Stage.class);
+    private final Map<Stage, Set<Stage>> dependencies = new EnumMap<Stage, Set<Stage>>(Stage.class);
+    private final Map<Stage, Long> startedAt = new EnumMap<Stage, Long>(Stage.class);
+    private final Map<Stage, Long> completedAt = new EnumMap<Stage, Long>(Stage.class);
+    private final Map<Stage, String> failures = new EnumMap<Stage, String>(Stage.class);
+    private final Map<Stage, Long> failedAt = new EnumMap<Stage, Long>(Stage.class);
+    private Listener listener;
+    private long origin = NOT_RECORDED;
+
+    /**
+     * Adds a stage to the pipeline.
+     * @param stage Stage to add.
+     * @param action Work to run when the stage starts, or null for stages driven from the outside.
+     * @param dependsOn Stages that must complete before this one starts.
+     * @return This pipeline.
+     */
+    public synchronized StartupPipeline addStage(Stage stage, StageAction action, Stage... dependsOn) {
+
+        Set<Stage> stageDependencies = EnumSet.noneOf(Stage.class);
+
+        for (Stage dependency : dependsOn) {
+            stageDependencies.add(dependency);
+        }
+
+        dependencies.put(stage, stageDependencies);
+
+        if (action != null) {
+            actions.put(stage, action);
+        }
+        return this;
+    }
+
+    /**
+     * Sets the listener notified as stages complete.
+     * @param listener Listener to notify.
+     */
+    public synchronized void setListener(Listener listener) {
+
+        this.listener = listener;
+    }
+
+    /**
+     * Starts the pipeline, and with it every stage without dependencies.
+     */
+    public void start() {
+
+        List<Stage> ready;
+
+        synchronized (this) {
+
+            if (origin != NOT_RECORDED) {
+                return;
+            }
+
+            origin = now();
+            ready = collectReadyStages();
+        }
+
+        runStages(ready);
+    }
+
+    /**
+     * Completes a stage and starts the stages that were waiting on it.
+     * Completing a stage twice has no effect. A stage that failed and is
+     * completed by a later attempt is no longer reported as failed.
+     * @param stage Stage that completed.
+     */
+    public void complete(Stage stage) {
+
+        List<Stage> ready;
+        Listener listener;
+
+        synchronized (this) {
+
+            if (origin == NOT_RECORDED || completedAt.containsKey(stage) || !dependencies.containsKey(stage)) {
+                return;
+            }
+
+            long now = now();
+
+            if (!startedAt.containsKey(stage)) {
+                startedAt.put(stage, now);
+            }
+
+            completedAt.put(stage, now);
+            failures.remove(stage);
+            failedAt.remove(stage);
+            ready = collectReadyStages();
+            listener = this.listener;
+        }
+
+        if (listener != null) {
+            listener.onStageCompleted(stage, this);
+        }
+
+        runStages(ready);
+    }
+
+    /**
+     * Records that a stage failed, and when. Stages depending on it will not
+     * start unless a later attempt completes it. Failing a completed stage
+     * has no effect.
+     * @param stage Stage that failed.
+     * @param reason Description of the failure.
+     */
+    public void fail(Stage stage, String reason) {
+
+        Listener listener;
+
+        synchronized (this) {
+
+            if (origin == NOT_RECORDED || completedAt.containsKey(stage) || !dependencies.containsKey(stage)) {
+                return;
+            }
+
+            failures.put(stage, reason);
+            failedAt.put(stage, now());
+            listener = this.listener;
+        }
+
+        if (listener != null) {
+            listener.onStageFailed(stage, reason, this);
+        }
+    }
+
+    /**
+     * @param stage Stage to check.
+     * @return true if the stage failed and was not completed since.
+     */
+    public synchronized boolean isFailed(Stage stage) {
+
+        return failures.containsKey(stage);
+    }
+
+    /**
+     * @param stage Stage to check.
+     * @return Milliseconds from the start of the pipeline to the last failure of the stage, or NOT_RECORDED.
+     */
+    public synchronized long getFailedAt(Stage stage) {
+
+        Long time = failedAt.get(stage);
+        return time != null ? time - origin : NOT_RECORDED;
+    }
+
+    /**
+     * @return true once start was called.
+     */
+    public synchronized boolean isStarted() {
+
+        return origin != NOT_RECORDED;
+    }
+
+    /**
+     * @param stage Stage to check.
+     * @return true if the stage completed.
+     */
+    public synchronized boolean isCompleted(Stage stage) {
+
+        return completedAt.containsKey(stage);
+    }
+
+    /**
+     * @param stage Stage to check.
+     * @return Milliseconds from the start of the pipeline to the start of the stage, or NOT_RECORDED.
+     */
+    public synchronized long getStartedAt(Stage stage) {
+
+        Long time = startedAt.get(stage);
+        return time != null ? time - origin : NOT_RECORDED;
+    }
+
+    /**
+     * @param stage Stage to check.
+     * @return Milliseconds from the start of the pipeline to the completion of the stage, or NOT_RECORDED.
+     */
+    public synchronized long getCompletedAt(Stage stage) {
+
+        Long time = completedAt.get(stage);
+        return time != null ? time - origin : NOT_RECORDED;
+    }
+
+    /**
+     * @return One line per stage with its start, completion and duration.
+     */
+    public synchronized String describe() {
+
+        StringBuilder builder = new StringBuilder();
+
+        for (Stage stage : dependencies.keySet()) {
+
+            long started = getStartedAt(stage);
+            long completed = getCompletedAt(stage);
+
+            builder.append(String.format(Locale.US, "%-22s", stage.name()));
+
+            if (failures.containsKey(stage)) {
+                builder.append(String.format(Locale.US, " start %6d ms  failed %6d ms: ", started, getFailedAt(stage))).append(failures.get(stage));
+            } else if (completed != NOT_RECORDED) {
+                builder.append(String.format(Locale.US, " start %6d ms  done %6d ms  took %6d ms", started, completed, completed - started));
+            } else if (started != NOT_RECORDED) {
+                builder.append(String.format(Locale.US, " start %6d ms  pending", started));
+            } else {
+                builder.append(" waiting");
+            }
+            builder.append('\n');
+        }
+        return builder.toString();
+    }
+
+    protected long now() {
+
+        return System.nanoTime() / 1000000L;
+    }
+
+    private List<Stage> collectReadyStages() {
+
+        List<Stage> ready = new ArrayList<Stage>();
+        long now = now();
+
+        for (Map.Entry<Stage, Set<Stage>> entry : dependencies.entrySet()) {
+
+            Stage stage = entry.getKey();
+
+            if (startedAt.containsKey(stage) || completedAt.containsKey(stage)) {
+                continue;
+            }
+
+            if (completedAt.keySet().containsAll(entry.getValue())) {
+                startedAt.put(stage, now);
+                ready.add(stage);
+            }
+        }
+        return ready;
+    }
+
+    private void runStages(List<Stage> stages) {
+
+        for (Stage stage : stages) {
+
+            StageAction action;
+
+            synchronized (this) {
+                action = actions.get(stage);
+            }
+
+            if (action != null) {
+                action.run(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.hypelabs.hypetwiliodemo;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AccessTokenCacheTest {
+
+    // {"alg":"HS256","typ":"JWT"}.{"exp":1893456000}
+    private static final String TOKEN = "eyJhbGciOiJIUzI1NiIsInR5cCI6IkpXVCJ9.eyJleHAiOjE4OTM0NTYwMDB9.c2ln";
+
+    private final List<AccessTokenCache.Callback> fetches = new ArrayList<AccessTokenCache.Callback>();
+    private final List<Runnable> refreshes = new ArrayList<Runnable>();
+    private final List<String> tokens = new ArrayList<String>();
+
+    private final AccessTokenCache.Fetcher fetcher = new AccessTokenCache.Fetcher() {
+
+        @Override
+        public void fetch(String identifierForVendor, AccessTokenCache.Callback callback) {
+            fetches.add(callback);
+        }
+    };
+
+    private final AccessTokenCache.Callback recorder = new AccessTokenCache.Callback() {
+
+        @Override
+        public void onToken(String accessToken) {
+            tokens.add(accessToken);
+        }
+
+        @Override
+        public void onError(Exception e) {
+            fail(e.getMessage());
+        }
+    };
+
+    private final ScheduledThreadPoolExecutor manualTimer = new ScheduledThreadPoolExecutor(1) {
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            refreshes.add(command);
+            return null;
+        }
+    };
+
+    @Test
+    public void parseExpiry_readsJwtPayload() throws Exception {
+
+        assertEquals(1893456000000L, AccessTokenCache.parseExpiry(TOKEN));
+        assertEquals(-1, AccessTokenCache.parseExpiry("not-a-jwt"));
+    }
+
+    @Test
+    public void getToken_collapsesConcurrentRequestsAndCaches() throws Exception {
+
+        AccessTokenCache cache = new AccessTokenCache(fetcher, manualTimer);
+
+        cache.getToken("vendor", recorder);
+        cache.getToken("vendor", recorder);
+
+        assertEquals(1, fetches.size());
+
+        fetches.get(0).onToken(TOKEN);
+        cache.getToken("vendor", recorder);
+
+        assertEquals(3, tokens.size());
+        assertEquals(1, cache.getFetches());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, refreshes.size());
+    }
+
+    @Test
+    public void refresh_dropsTokensThatWereNotUsed() throws Exception {
+
+        final long[] now = { 1000 };
+        AccessTokenCache cache = new AccessTokenCache(fetcher, manualTimer) {
+
+            @Override
+            protected long now() {
+                return now[0];
+            }
+        };
+
+        cache.getToken("vendor", recorder);
+        fetches.get(0).onToken(TOKEN);
+
+        refreshes.remove(0).run();
+        assertEquals(2, fetches.size());
+
+        now[0] += 1000;
+        fetches.get(1).onToken(TOKEN);
+        refreshes.remove(0).run();
+
+        assertEquals(2, fetches.size());
+    }
+
+    @Test
+    public void renewToken_replacesTheTokenOfALiveClient() throws Exception {
+
+        AccessTokenCache cache = new AccessTokenCache(fetcher, manualTimer);
+        final List<String> updates = new ArrayList<String>();
+
+        // The client is updated with whatever token the renewal yields.
+        AccessTokenCache.Callback client = new AccessTokenCache.Callback() {
+
+            @Override
+            public void onToken(String accessToken) {
+                updates.add(accessToken);
+            }
+
+            @Override
+            public void onError(Exception e) {
+                fail(e.getMessage());
+            }
+        };
+
+        cache.getToken("vendor", recorder);
+        fetches.get(0).onToken(TOKEN);
+
+        cache.renewToken("vendor", TOKEN, client);
+
+        assertEquals(2, fetches.size());
+        assertTrue(updates.isEmpty());
+
+        fetches.get(1).onToken(TOKEN + "2");
+
+        assertEquals(Collections.singletonList(TOKEN + "2"), updates);
+
+        // A client still holding an older token gets the current one.
+        cache.renewToken("vendor", TOKEN, client);
+
+        assertEquals(2, fetches.size());
+        assertEquals(TOKEN + "2", updates.get(1));
+    }
+}
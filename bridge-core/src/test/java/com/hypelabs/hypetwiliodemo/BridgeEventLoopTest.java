@@ -0,0 +1,172 @@
+package com.hypelabs.hypetwiliodemo;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BridgeEventLoopTest {
+
+    private static class ManualExecutor implements java.util.concurrent.Executor {
+
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runNext() {
+            tasks.remove(0).run();
+        }
+    }
+
+    private static class RecordingListener implements BridgeEventLoop.Listener {
+
+        final List<Integer> batches = new ArrayList<Integer>();
+        final List<RuntimeException> failures = new ArrayList<RuntimeException>();
+
+        @Override
+        public void onBatchDrained(int eventCount) {
+            batches.add(eventCount);
+        }
+
+        @Override
+        public void onEventFailed(Runnable event, RuntimeException exception) {
+            failures.add(exception);
+        }
+    }
+
+    private static Runnable append(final List<Integer> log, final int value) {
+
+        return new Runnable() {
+
+            @Override
+            public void run() {
+                log.add(value);
+            }
+        };
+    }
+
+    @Test
+    public void execute_runsEventsInOrderInOneBatch() throws Exception {
+
+        ManualExecutor executor = new ManualExecutor();
+        BridgeEventLoop loop = new BridgeEventLoop(executor);
+        RecordingListener listener = new RecordingListener();
+        loop.setListener(listener);
+        List<Integer> log = new ArrayList<Integer>();
+
+        loop.execute(append(log, 1));
+        loop.execute(append(log, 2));
+        loop.execute(append(log, 3));
+
+        assertEquals(1, executor.tasks.size());
+        assertEquals(3, loop.getPendingCount());
+
+        executor.runNext();
+
+        assertEquals(3, log.size());
+        assertEquals(Integer.valueOf(1), log.get(0));
+        assertEquals(Integer.valueOf(3), log.get(2));
+        assertEquals(1, listener.batches.size());
+        assertEquals(Integer.valueOf(3), listener.batches.get(0));
+        assertEquals(0, loop.getPendingCount());
+        assertTrue(executor.tasks.isEmpty());
+    }
+
+    @Test
+    public void execute_yieldsAfterMaxBatchSize() throws Exception {
+
+        ManualExecutor executor = new ManualExecutor();
+        BridgeEventLoop loop = new BridgeEventLoop(executor, 2);
+        RecordingListener listener = new RecordingListener();
+        loop.setListener(listener);
+        List<Integer> log = new ArrayList<Integer>();
+
+        for (int i = 0; i < 5; i++) {
+            loop.execute(append(log, i));
+        }
+
+        while (!executor.tasks.isEmpty()) {
+            executor.runNext();
+        }
+
+        assertEquals(5, log.size());
+        assertEquals(3, listener.batches.size());
+        assertEquals(Integer.valueOf(1), listener.batches.get(2));
+        assertEquals(3, loop.getBatchCount());
+    }
+
+    @Test
+    public void execute_keepsGoingAfterAFailedEvent() throws Exception {
+
+        ManualExecutor executor = new ManualExecutor();
+        BridgeEventLoop loop = new BridgeEventLoop(executor);
+        RecordingListener listener = new RecordingListener();
+        loop.setListener(listener);
+        final List<Integer> log = new ArrayList<Integer>();
+
+        loop.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                throw new IllegalStateException("boom");
+            }
+        });
+        loop.execute(append(log, 1));
+        executor.runNext();
+
+        assertEquals(1, log.size());
+        assertEquals(1, listener.failures.size());
+        assertEquals(Integer.valueOf(2), listener.batches.get(0));
+    }
+
+    @Test
+    public void execute_serializesEventsFromManyProducers() throws Exception {
+
+        ExecutorService loopThread = Executors.newSingleThreadExecutor();
+        final BridgeEventLoop loop = new BridgeEventLoop(loopThread, 16);
+        final int[] counter = new int[1];
+        final boolean[] outsideLoop = new boolean[1];
+        final int producers = 4;
+        final int events = 10000;
+        final CountDownLatch done = new CountDownLatch(producers * events);
+        ExecutorService producerThreads = Executors.newFixedThreadPool(producers);
+
+        for (int p = 0; p < producers; p++) {
+            producerThreads.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    for (int i = 0; i < events; i++) {
+                        loop.execute(new Runnable() {
+
+                            @Override
+                            public void run() {
+                                counter[0]++;
+                                outsideLoop[0] |= !loop.isInLoop();
+                                done.countDown();
+                            }
+                        });
+                    }
+                }
+            });
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        producerThreads.shutdown();
+        loopThread.shutdown();
+        assertTrue(loopThread.awaitTermination(1, TimeUnit.SECONDS));
+
+        assertEquals(producers * events, counter[0]);
+        assertFalse(outsideLoop[0]);
+        assertFalse(loop.isInLoop());
+    }
+}
@@ -0,0 +1,89 @@
+package com.hypelabs.hypetwiliodemo;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class BridgeMetricsTest {
+
+    @Test
+    public void histogram_reportsPercentilesWithinPrecision() throws Exception {
+
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500.5, histogram.getMean(), 0.001);
+        assertEquals(500, histogram.getValueAtPercentile(50), 500 * 0.04);
+        assertEquals(990, histogram.getValueAtPercentile(99), 990 * 0.04);
+        assertEquals(1000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void histogram_countsSmallValuesExactly() throws Exception {
+
+        for (long value = 0; value < 64; value++) {
+            assertEquals(value, LatencyHistogram.highestEquivalentValue(LatencyHistogram.indexOf(value)));
+        }
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(LatencyHistogram.MAX_VALUE + 1);
+
+        assertEquals(LatencyHistogram.MAX_VALUE, histogram.getMax());
+    }
+
+    @Test
+    public void snapshot_flattensEveryMetric() throws Exception {
+
+        BridgeMetrics metrics = new BridgeMetrics();
+
+        metrics.increment(BridgeMetrics.MESH_FRAMES_RECEIVED);
+        metrics.add(BridgeMetrics.MESH_FRAMES_RECEIVED, 2);
+        metrics.recordLatency(BridgeMetrics.TWILIO_SEND_ACK, 120);
+        metrics.registerGauge(BridgeMetrics.CHAT_CLIENTS, new BridgeMetrics.Gauge() {
+
+            @Override
+            public long getValue() {
+                return 4;
+            }
+        });
+
+        Map<String, Long> snapshot = metrics.snapshot();
+
+        assertEquals(Long.valueOf(3), snapshot.get(BridgeMetrics.MESH_FRAMES_RECEIVED));
+        assertEquals(Long.valueOf(4), snapshot.get(BridgeMetrics.CHAT_CLIENTS));
+        assertEquals(Long.valueOf(1), snapshot.get(BridgeMetrics.TWILIO_SEND_ACK + ".count"));
+        assertEquals(Long.valueOf(120), snapshot.get(BridgeMetrics.TWILIO_SEND_ACK + ".max"));
+
+        File file = File.createTempFile("metrics", ".txt");
+        metrics.exportTo(file);
+
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        String firstLine = reader.readLine();
+        reader.close();
+        file.delete();
+
+        assertEquals(BridgeMetrics.MESH_FRAMES_RECEIVED + " 3", firstLine);
+    }
+
+    @Test
+    public void recordMax_keepsLargestValue() throws Exception {
+
+        BridgeMetrics metrics = new BridgeMetrics();
+
+        metrics.recordMax(BridgeMetrics.BRIDGE_MAX_EVENT_BATCH, 12);
+        metrics.recordMax(BridgeMetrics.BRIDGE_MAX_EVENT_BATCH, 3);
+
+        assertEquals(12, metrics.getCounter(BridgeMetrics.BRIDGE_MAX_EVENT_BATCH));
+        assertNull(metrics.snapshot().get(BridgeMetrics.BRIDGE_MAX_EVENT_BATCH + ".p50"));
+    }
+}
@@ -0,0 +1,76 @@
+package com.hypelabs.hypetwiliodemo;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ConsistentHashRingTest {
+
+    @Test
+    public void getNode_agreesWhateverTheInsertionOrder() throws Exception {
+
+        ConsistentHashRing first = new ConsistentHashRing();
+        first.addNode("a");
+        first.addNode("b");
+        first.addNode("c");
+
+        ConsistentHashRing second = new ConsistentHashRing();
+        second.addNode("c");
+        second.addNode("a");
+        second.addNode("b");
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(first.getNode("vendor" + i), second.getNode("vendor" + i));
+        }
+    }
+
+    @Test
+    public void removeNode_onlyMovesKeysOfTheRemovedNode() throws Exception {
+
+        ConsistentHashRing ring = new ConsistentHashRing();
+        ring.addNode("a");
+        ring.addNode("b");
+        ring.addNode("c");
+
+        Map<String, String> before = new HashMap<String, String>();
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+
+        for (int i = 0; i < 3000; i++) {
+
+            String node = ring.getNode("vendor" + i);
+            before.put("vendor" + i, node);
+            counts.put(node, counts.containsKey(node) ? counts.get(node) + 1 : 1);
+        }
+
+        for (int count : counts.values()) {
+            assertTrue(count > 600);
+        }
+
+        ring.removeNode("b");
+
+        for (Map.Entry<String, String> entry : before.entrySet()) {
+
+            String node = ring.getNode(entry.getKey());
+
+            assertFalse("b".equals(node));
+
+            if (!"b".equals(entry.getValue())) {
+                assertEquals(entry.getValue(), node);
+            }
+        }
+    }
+
+    @Test
+    public void getNode_returnsNullOnEmptyRing() throws Exception {
+
+        ConsistentHashRing ring = new ConsistentHashRing();
+
+        assertNull(ring.getNode("vendor"));
+        assertTrue(ring.addNode("a"));
+        assertFalse(ring.addNode("a"));
+        assertEquals("a", ring.getNode("vendor"));
+    }
+}
@@ -0,0 +1,86 @@
+package com.hypelabs.hypetwiliodemo;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class FrameCodecTest {
+
+    @Test
+    public void encode_roundTripsKnownAndLiteralKeys() throws Exception {
+
+        Map<String, String> frame = new HashMap<String, String>();
+        frame.put("type", "send");
+        frame.put("message", "olá mundo");
+        frame.put("identifierForVendor", "a1b2c3");
+        frame.put("custom", "value");
+
+        byte[] data = FrameCodec.encode(frame);
+
+        assertTrue(FrameCodec.isBinaryFrame(data));
+        assertEquals(FrameCodec.TYPE_SEND, data[2]);
+        assertEquals(frame, FrameCodec.decode(data));
+    }
+
+    @Test
+    public void encode_keepsUnknownTypesAsLiteralField() throws Exception {
+
+        Map<String, String> frame = new HashMap<String, String>();
+        frame.put("type", "presence");
+
+        byte[] data = FrameCodec.encode(frame);
+
+        assertEquals(FrameCodec.TYPE_UNKNOWN, data[2]);
+        assertEquals(frame, FrameCodec.decode(data));
+    }
+
+    @Test
+    public void isBinaryFrame_rejectsJson() throws Exception {
+
+        assertFalse(FrameCodec.isBinaryFrame("{\"type\":\"send\"}".getBytes("utf-8")));
+    }
+
+    @Test
+    public void encode_compressesLargeFramesOnly() throws Exception {
+
+        Map<String, String> frame = new HashMap<String, String>();
+        frame.put("type", "receive");
+        frame.put("sid", "IMa1b2c3d4e5f60718293a4b5c6d7e8f90");
+        frame.put("author", "8f14e45fceea167a");
+        frame.put("body", "Hello everyone, we are at the meeting point near the entrance. "
+                + "Is anyone there? We need water and a battery, the network is down.");
+
+        byte[] plain = FrameCodec.encode(frame);
+        byte[] compressed = FrameCodec.encode(frame, FrameCodec.DEFAULT_COMPRESSION_THRESHOLD);
+
+        assertFalse(FrameCodec.isCompressed(plain));
+        assertTrue(FrameCodec.isCompressed(compressed));
+        assertTrue(compressed.length < plain.length);
+        assertEquals(FrameCodec.TYPE_RECEIVE, FrameCodec.readType(compressed));
+        assertEquals(frame, FrameCodec.decode(compressed));
+        assertEquals(frame.get("body"), FrameCodec.readField(FrameCodec.decompress(compressed), FrameCodec.KEY_BODY));
+
+        Map<String, String> small = new HashMap<String, String>();
+        small.put("type", "client");
+        small.put("identity", "bob");
+
+        assertFalse(FrameCodec.isCompressed(FrameCodec.encode(small, FrameCodec.DEFAULT_COMPRESSION_THRESHOLD)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decode_rejectsTruncatedFrames() throws Exception {
+
+        Map<String, String> frame = new HashMap<String, String>();
+        frame.put("type", "receive");
+        frame.put("body", "hello");
+
+        byte[] data = FrameCodec.encode(frame);
+        byte[] truncated = new byte[data.length - 2];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+
+        FrameCodec.decode(truncated);
+    }
+}
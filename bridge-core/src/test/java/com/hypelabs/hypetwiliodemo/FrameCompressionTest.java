@@ -0,0 +1,69 @@
+package com.hypelabs.hypetwiliodemo;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FrameCompressionTest {
+
+    private static final String[] PHRASES = {
+            "Hello everyone", "is anyone there?", "we are at the meeting point near the entrance",
+            "I'm on my way", "see you soon", "the network is down again", "can you hear me",
+            "we need water and food", "my battery is almost dead", "thanks!", "ok", "haha",
+            "where are you?", "tomorrow at 9", "the signal is better near the north gate",
+            "please forward this to the others", "sorry, I missed that", "yes", "no", "maybe later"
+    };
+
+    private static final int CORPUS_SIZE = 2000;
+
+    @Test
+    public void compression_shrinksChatCorpus() throws Exception {
+
+        long plainBytes = 0;
+        long compressedBytes = 0;
+
+        for (Map<String, String> frame : buildCorpus(new Random(42))) {
+
+            byte[] plain = FrameCodec.encode(frame);
+            byte[] compressed = FrameCodec.encode(frame, FrameCodec.DEFAULT_COMPRESSION_THRESHOLD);
+
+            assertEquals(frame, FrameCodec.decode(compressed));
+            plainBytes += plain.length;
+            compressedBytes += compressed.length;
+        }
+
+        assertTrue(compressedBytes < plainBytes);
+    }
+
+    private static List<Map<String, String>> buildCorpus(Random random) {
+
+        List<Map<String, String>> corpus = new ArrayList<Map<String, String>>();
+
+        for (int i = 0; i < CORPUS_SIZE; i++) {
+
+            StringBuilder body = new StringBuilder();
+            int phrases = 1 + random.nextInt(random.nextInt(10) < 7 ? 2 : 8);
+
+            for (int j = 0; j < phrases; j++) {
+                if (j > 0) {
+                    body.append(random.nextBoolean() ? ", " : ". ");
+                }
+                body.append(PHRASES[random.nextInt(PHRASES.length)]);
+            }
+
+            Map<String, String> frame = new HashMap<String, String>();
+            frame.put("type", "receive");
+            frame.put("sid", String.format("IM%032x", random.nextLong()));
+            frame.put("author", String.format("%016x", random.nextLong()));
+            frame.put("body", body.toString());
+            corpus.add(frame);
+        }
+        return corpus;
+    }
+}
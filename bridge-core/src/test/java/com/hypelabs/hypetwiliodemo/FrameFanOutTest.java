@@ -0,0 +1,161 @@
+package com.hypelabs.hypetwiliodemo;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class FrameFanOutTest {
+
+    private static class RecordingTransport implements MeshTransport<String> {
+
+        final Set<String> binaryPeers = new HashSet<String>();
+        final List<byte[]> sent = new ArrayList<byte[]>();
+        final Map<String, byte[]> sentTo = new HashMap<String, byte[]>();
+        int legacyEncodings;
+
+        @Override
+        public boolean supportsBinaryFrames(String peer) {
+            return binaryPeers.contains(peer);
+        }
+
+        @Override
+        public byte[] encodeLegacyFrame(Map<String, String> frame) {
+            legacyEncodings++;
+            return frame.toString().getBytes();
+        }
+
+        @Override
+        public void send(byte[] data, String peer) {
+            sent.add(data);
+            sentTo.put(peer, data);
+        }
+    }
+
+    @Test
+    public void fanOut_encodesOncePerFormat() throws Exception {
+
+        RecordingTransport transport = new RecordingTransport();
+        transport.binaryPeers.add("a");
+        transport.binaryPeers.add("b");
+
+        Map<String, String> peers = new HashMap<String, String>();
+        peers.put("a", "a");
+        peers.put("b", "b");
+        peers.put("c", "c");
+        peers.put("d", "d");
+
+        Map<String, String> message = new HashMap<String, String>();
+        message.put("body", "hello");
+        message.put("ttl", "3");
+
+        FrameFanOut<String> fanOut = new FrameFanOut<String>(transport, null);
+
+        assertEquals(4, fanOut.fanOut(message, peers));
+        assertEquals(4, transport.sent.size());
+        assertEquals(1, transport.legacyEncodings);
+        assertNull(message.get("type"));
+        assertEquals("3", message.get("ttl"));
+
+        // Neighbours take the message as it is, they do not pass it on.
+        Map<String, String> frame = FrameCodec.decode(transport.sentTo.get("a"));
+        assertEquals("receive", frame.get("type"));
+        assertNull(frame.get("ttl"));
+
+        Set<byte[]> distinct = new HashSet<byte[]>(transport.sent);
+        assertEquals(2, distinct.size());
+    }
+
+    @Test
+    public void fanOut_marksSidAsSeen() throws Exception {
+
+        RoutingTable<String> routingTable = new RoutingTable<String>();
+        FrameFanOut<String> fanOut = new FrameFanOut<String>(new RecordingTransport(), routingTable);
+
+        Map<String, String> message = new HashMap<String, String>();
+        message.put("sid", "IM1");
+
+        assertEquals(0, fanOut.fanOut(message, new HashMap<String, String>()));
+        assertFalse(routingTable.markFrameSeen("IM1"));
+    }
+
+    @Test
+    public void forward_decrementsTtlAndDropsExpiredMessages() throws Exception {
+
+        RecordingTransport transport = new RecordingTransport();
+        transport.binaryPeers.add("a");
+        RoutingTable<String> routingTable = new RoutingTable<String>();
+        FrameFanOut<String> fanOut = new FrameFanOut<String>(transport, routingTable);
+
+        routingTable.learnReverseRoute("far", "a");
+
+        Map<String, String> message = new HashMap<String, String>();
+        message.put("type", "receive");
+        message.put("sid", "IM1");
+        message.put("identifierForVendor", "far");
+        message.put("ttl", "3");
+
+        assertEquals(1, fanOut.forward(message, null));
+        assertEquals("3", message.get("ttl"));
+        assertEquals("2", FrameCodec.decode(transport.sentTo.get("a")).get("ttl"));
+
+        message.put("ttl", "1");
+
+        assertEquals(0, fanOut.forward(message, null));
+
+        message.put("identifierForVendor", "unknown");
+        message.put("ttl", "3");
+
+        assertEquals(0, fanOut.forward(message, null));
+        assertEquals(1, transport.sent.size());
+    }
+
+    @Test
+    public void route_reachesSubscriberTwoHopsAwayOnly() throws Exception {
+
+        // gateway - relay - subscriber, with another device next to the
+        // relay that did not subscribe.
+        RecordingTransport gatewayTransport = new RecordingTransport();
+        RecordingTransport relayTransport = new RecordingTransport();
+        gatewayTransport.binaryPeers.add("relay");
+        relayTransport.binaryPeers.add("subscriber");
+        relayTransport.binaryPeers.add("bystander");
+
+        RoutingTable<String> gatewayRoutes = new RoutingTable<String>();
+        RoutingTable<String> relayRoutes = new RoutingTable<String>();
+        FrameFanOut<String> gateway = new FrameFanOut<String>(gatewayTransport, gatewayRoutes);
+        FrameFanOut<String> relay = new FrameFanOut<String>(relayTransport, relayRoutes);
+
+        gatewayRoutes.learnReverseRoute("subscriber", "relay");
+
+        Map<String, String> message = new HashMap<String, String>();
+        message.put("sid", "IM1");
+        message.put("body", "hello");
+
+        assertEquals(1, gateway.route(message, Collections.singleton("subscriber")));
+        assertEquals(Collections.singleton("relay"), gatewayTransport.sentTo.keySet());
+
+        Map<String, String> routed = FrameCodec.decode(gatewayTransport.sentTo.get("relay"));
+
+        assertEquals("subscriber", routed.get("identifierForVendor"));
+        assertEquals(String.valueOf(RoutingTable.DEFAULT_TTL), routed.get("ttl"));
+        assertTrue(relayRoutes.markFrameSeen(FrameFanOut.frameKey(routed.get("sid"), routed.get("identifierForVendor"))));
+        assertEquals(1, relay.forward(routed, "subscriber"));
+
+        assertEquals(Collections.singleton("subscriber"), relayTransport.sentTo.keySet());
+        assertFalse(relayTransport.sentTo.containsKey("bystander"));
+
+        Map<String, String> delivered = FrameCodec.decode(relayTransport.sentTo.get("subscriber"));
+
+        assertEquals("hello", delivered.get("body"));
+        assertNull(delivered.get("ttl"));
+        assertNull(delivered.get("identifierForVendor"));
+    }
+}
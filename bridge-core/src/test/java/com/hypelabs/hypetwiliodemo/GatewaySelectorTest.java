@@ -0,0 +1,54 @@
+package com.hypelabs.hypetwiliodemo;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class GatewaySelectorTest {
+
+    @Test
+    public void select_prefersLowerLatency() throws Exception {
+
+        GatewaySelector<String> selector = new GatewaySelector<String>();
+
+        selector.recordRoundTrip("near", 40);
+        selector.recordRoundTrip("far", 300);
+
+        assertEquals("near", selector.select(Arrays.asList("far", "near")));
+        assertEquals("near", selector.select(Arrays.asList("unknown", "near")));
+        assertNull(selector.select(Collections.<String>emptyList()));
+    }
+
+    @Test
+    public void select_followsChangingConditions() throws Exception {
+
+        GatewaySelector<String> selector = new GatewaySelector<String>();
+
+        selector.recordRoundTrip("a", 50);
+        selector.recordRoundTrip("b", 80);
+
+        assertEquals("a", selector.select(Arrays.asList("a", "b")));
+
+        for (int i = 0; i < 10; i++) {
+            selector.recordDeliveryLatency("a", 900);
+        }
+
+        assertEquals("b", selector.select(Arrays.asList("a", "b")));
+    }
+
+    @Test
+    public void select_avoidsLoadedRelays() throws Exception {
+
+        GatewaySelector<String> selector = new GatewaySelector<String>();
+
+        selector.recordRoundTrip("busy", 30);
+        selector.recordRoundTrip("idle", 60);
+        selector.recordLoad("busy", 10);
+
+        assertEquals("idle", selector.select(Arrays.asList("busy", "idle")));
+        assertEquals(30 + 10 * GatewaySelector.LOAD_PENALTY_MILLIS, selector.getScore("busy"), 0.001);
+    }
+}
@@ -0,0 +1,229 @@
+package com.hypelabs.hypetwiliodemo;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class MeshRouterTest {
+
+    private static class RecordingHost implements MeshRouter.Host<String> {
+
+        final RoutingTable<String> routingTable;
+        final Map<String, Map<String, String>> sent = new HashMap<String, Map<String, String>>();
+        final List<String> joins = new ArrayList<String>();
+        final List<String> posted = new ArrayList<String>();
+        final List<Map<String, String>> received = new ArrayList<Map<String, String>>();
+        final List<Map<String, String>> dropped = new ArrayList<Map<String, String>>();
+        int routeChanges;
+
+        RecordingHost(RoutingTable<String> routingTable) {
+            this.routingTable = routingTable;
+        }
+
+        @Override
+        public void send(Map<String, String> frame, String peer) {
+            sent.put(peer, new HashMap<String, String>(frame));
+        }
+
+        @Override
+        public String selectNextHop() {
+            return routingTable.getNextHop();
+        }
+
+        @Override
+        public String getNeighbour(String identifierForVendor) {
+            return null;
+        }
+
+        @Override
+        public void onRouteChanged() {
+            routeChanges++;
+        }
+
+        @Override
+        public void onJoin(String identifierForVendor) {
+            joins.add(identifierForVendor);
+        }
+
+        @Override
+        public void onSend(String message, String identifierForVendor, String frameId) {
+            posted.add(identifierForVendor + ":" + message);
+        }
+
+        @Override
+        public void onReceive(Map<String, String> message) {
+            received.add(message);
+        }
+
+        @Override
+        public void onDrop(Map<String, String> frame) {
+            dropped.add(frame);
+        }
+    }
+
+    private static MeshRouter<String> newRouter(String identifierForVendor, RoutingTable<String> routingTable, RecordingHost host) {
+
+        FrameFanOut<String> fanOut = new FrameFanOut<String>(new MeshTransport<String>() {
+
+            @Override
+            public boolean supportsBinaryFrames(String peer) {
+                return true;
+            }
+
+            @Override
+            public byte[] encodeLegacyFrame(Map<String, String> frame) {
+                return null;
+            }
+
+            @Override
+            public void send(byte[] data, String peer) {
+            }
+        }, routingTable);
+
+        return new MeshRouter<String>(identifierForVendor, routingTable, fanOut, host);
+    }
+
+    private static Map<String, String> sendFrame(String frameId, String ttl) {
+
+        Map<String, String> frame = new HashMap<String, String>();
+        frame.put("type", "send");
+        frame.put("message", "hello");
+        frame.put("identifierForVendor", "origin");
+        frame.put("frameId", frameId);
+        frame.put("ttl", ttl);
+        return frame;
+    }
+
+    @Test
+    public void send_relayForwardsUpAndLearnsTheWayBack() throws Exception {
+
+        RoutingTable<String> routingTable = new RoutingTable<String>();
+        RecordingHost host = new RecordingHost(routingTable);
+        MeshRouter<String> router = newRouter("relay", routingTable, host);
+
+        routingTable.updateNeighbour("gateway", 0);
+        router.onSendFrame(FrameCodec.encode(sendFrame("origin:1", "3")), "origin-peer");
+
+        assertEquals("2", host.sent.get("gateway").get("ttl"));
+        assertEquals("origin-peer", routingTable.getReverseRoute("origin"));
+        assertTrue(host.posted.isEmpty());
+
+        // The same frame coming around again is dropped.
+        router.onSend(sendFrame("origin:1", "3"), "other-peer");
+
+        assertEquals(1, host.sent.size());
+        assertEquals("origin-peer", routingTable.getReverseRoute("origin"));
+
+        router.onSend(sendFrame("origin:2", "1"), "origin-peer");
+
+        assertEquals(1, host.dropped.size());
+    }
+
+    @Test
+    public void send_gatewayPostsBinaryAndLegacyFramesAlike() throws Exception {
+
+        RoutingTable<String> routingTable = new RoutingTable<String>();
+        RecordingHost host = new RecordingHost(routingTable);
+        MeshRouter<String> router = newRouter("gateway", routingTable, host);
+
+        routingTable.setGateway(true);
+        router.onSendFrame(FrameCodec.encode(sendFrame("origin:1", "3")), "peer");
+        router.onSend(sendFrame("origin:2", "3"), "peer");
+
+        Map<String, String> legacy = sendFrame(null, null);
+        legacy.remove("frameId");
+        router.onSend(legacy, "peer");
+
+        assertEquals(3, host.posted.size());
+        assertEquals("origin:hello", host.posted.get(0));
+        assertTrue(host.sent.isEmpty());
+    }
+
+    @Test
+    public void join_reachesTheGatewayThroughRelays() throws Exception {
+
+        RoutingTable<String> relayRoutes = new RoutingTable<String>();
+        RoutingTable<String> gatewayRoutes = new RoutingTable<String>();
+        RecordingHost relayHost = new RecordingHost(relayRoutes);
+        RecordingHost gatewayHost = new RecordingHost(gatewayRoutes);
+        MeshRouter<String> relay = newRouter("relay", relayRoutes, relayHost);
+        MeshRouter<String> gateway = newRouter("gateway", gatewayRoutes, gatewayHost);
+
+        relayRoutes.updateNeighbour("gateway", 0);
+        gatewayRoutes.setGateway(true);
+
+        Map<String, String> join = new HashMap<String, String>();
+        join.put("type", "join");
+        join.put("identifierForVendor", "origin");
+        join.put("frameId", "origin:join:0");
+        join.put("ttl", "8");
+
+        relay.onJoinFrame(FrameCodec.encode(join), "origin");
+        gateway.onJoin(relayHost.sent.get("gateway"), "relay");
+
+        assertEquals("origin", relayRoutes.getReverseRoute("origin"));
+        assertEquals("relay", gatewayRoutes.getReverseRoute("origin"));
+        assertEquals("7", relayHost.sent.get("gateway").get("ttl"));
+        assertEquals(1, gatewayHost.joins.size());
+
+        // Joins of this device coming back are ignored.
+        join.put("identifierForVendor", "relay");
+        join.put("frameId", "relay:join:0");
+        relay.onJoin(join, "gateway");
+
+        assertNull(relayRoutes.getReverseRoute("relay"));
+    }
+
+    @Test
+    public void receive_deliversMessagesForThisDeviceOnce() throws Exception {
+
+        RoutingTable<String> routingTable = new RoutingTable<String>();
+        RecordingHost host = new RecordingHost(routingTable);
+        MeshRouter<String> router = newRouter("device", routingTable, host);
+
+        Map<String, String> message = new HashMap<String, String>();
+        message.put("type", "receive");
+        message.put("sid", "IM1");
+        message.put("author", "twilio");
+        message.put("body", "hello");
+        message.put("identifierForVendor", "device");
+        message.put("ttl", "2");
+
+        router.onReceiveFrame(FrameCodec.encode(message), "relay");
+        router.onReceive(message, "other-relay");
+
+        assertEquals(1, host.received.size());
+        assertEquals("hello", host.received.get(0).get("body"));
+        assertEquals("IM1", host.received.get(0).get("sid"));
+
+        // Messages for a device without a known route are dropped.
+        message.put("sid", "IM2");
+        message.put("identifierForVendor", "far");
+        router.onReceive(message, "relay");
+
+        assertEquals(1, host.received.size());
+        assertEquals(1, host.dropped.size());
+    }
+
+    @Test
+    public void route_reportsChangesAndIgnoresMalformedHopCounts() throws Exception {
+
+        RoutingTable<String> routingTable = new RoutingTable<String>();
+        RecordingHost host = new RecordingHost(routingTable);
+        MeshRouter<String> router = newRouter("device", routingTable, host);
+
+        router.onRoute("1", "a");
+        router.onRoute("1", "a");
+        router.onRoute("x", "b");
+        router.onRoute(null, "b");
+
+        assertEquals(1, host.routeChanges);
+        assertEquals(2, routingTable.getHopCount());
+        assertFalse(routingTable.hasNeighbour("b"));
+    }
+}
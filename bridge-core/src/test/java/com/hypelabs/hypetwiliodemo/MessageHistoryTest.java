@@ -0,0 +1,123 @@
+package com.hypelabs.hypetwiliodemo;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MessageHistoryTest {
+
+    private static File historyFile() throws Exception {
+
+        File file = File.createTempFile("history", ".log");
+        file.deleteOnExit();
+        return file;
+    }
+
+    @Test
+    public void get_readsSpilledPagesBack() throws Exception {
+
+        MessageHistory history = new MessageHistory(historyFile(), 10, 7, 2);
+
+        for (int i = 0; i < 1000; i++) {
+            history.append(new MessageHistory.Entry("IM" + i, "author" + (i % 3), "body " + i));
+        }
+
+        assertEquals(1000, history.size());
+        assertEquals(990, history.getSpilledCount());
+
+        Random random = new Random(1);
+
+        for (int i = 0; i < 2000; i++) {
+
+            int position = random.nextInt(history.size());
+            MessageHistory.Entry entry = history.get(position);
+
+            assertEquals("IM" + position, entry.getSid());
+            assertEquals("author" + (position % 3), entry.getAuthor());
+            assertEquals("body " + position, entry.getBody());
+            assertEquals(String.format("%s: %s", "author" + (position % 3), "body " + position), entry.getDisplayText().toString());
+        }
+        history.close();
+    }
+
+    @Test
+    public void get_seesMessagesSpilledAfterThePageWasRead() throws Exception {
+
+        MessageHistory history = new MessageHistory(historyFile(), 2, 4, 1);
+
+        for (int i = 0; i < 4; i++) {
+            history.append(new MessageHistory.Entry("IM" + i, null, "olá " + i));
+        }
+
+        assertEquals("IM0", history.get(0).getSid());
+        assertNull(history.get(0).getAuthor());
+        assertEquals("null: olá 0", history.get(0).getDisplayText().toString());
+
+        history.append(new MessageHistory.Entry("IM4", null, "olá 4"));
+
+        assertEquals("IM2", history.get(2).getSid());
+        assertEquals("olá 2", history.get(2).getBody());
+        history.close();
+    }
+
+    @Test
+    public void peek_answersFromMemoryOnceThePagesArePrefetched() throws Exception {
+
+        MessageHistory history = new MessageHistory(historyFile(), 4, 5, 3);
+
+        for (int i = 0; i < 34; i++) {
+            history.append(new MessageHistory.Entry("IM" + i, "a", "b"));
+        }
+
+        assertEquals("IM33", history.peek(33).getSid());
+        assertNull(history.peek(12));
+
+        assertEquals(3, history.prefetch(12));
+        assertEquals(0, history.prefetch(12));
+
+        for (int i = 5; i < 20; i++) {
+            assertEquals("IM" + i, history.peek(i).getSid());
+        }
+        assertNull(history.peek(4));
+        assertNull(history.peek(20));
+
+        // The last page grows as the window spills, and is read again.
+        assertEquals(2, history.prefetch(29));
+        history.append(new MessageHistory.Entry("IM34", "a", "b"));
+
+        assertNull(history.peek(30));
+        assertEquals(1, history.prefetch(29));
+        assertEquals("IM30", history.peek(30).getSid());
+
+        history.close();
+
+        assertEquals(0, history.prefetch(29));
+        assertNull(history.peek(29));
+    }
+
+    @Test
+    public void open_startsEmpty() throws Exception {
+
+        File file = historyFile();
+        MessageHistory history = new MessageHistory(file, 1, 1, 1);
+        history.append(new MessageHistory.Entry("IM0", "a", "b"));
+        history.append(new MessageHistory.Entry("IM1", "a", "b"));
+        history.close();
+
+        assertTrue(file.length() > 0);
+
+        history = new MessageHistory(file, 1, 1, 1);
+        assertEquals(0, history.size());
+        assertEquals(0, file.length());
+        history.close();
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void get_rejectsPositionsPastTheEnd() throws Exception {
+
+        new MessageHistory(historyFile()).get(0);
+    }
+}
@@ -0,0 +1,111 @@
+package com.hypelabs.hypetwiliodemo;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class MessageReceptionTest {
+
+    @Test
+    public void receive_fansLaterCopiesOutToSubscribers() throws Exception {
+
+        PeerRegistry<String, String> registry = new PeerRegistry<String, String>();
+        MessageReception<String> reception = new MessageReception<String>(registry, new SidDedupStore());
+
+        registry.putPeer("a", "peer-a");
+        registry.putChannel("a", "channel", "CH1");
+
+        MessageReception.Delivery<String> first = reception.receive("IM1", "CH1");
+
+        assertTrue(first.isFirstSighting());
+        assertTrue(first.getPeers().isEmpty());
+
+        MessageReception.Delivery<String> copy = reception.receive("IM1", "CH1");
+
+        assertFalse(copy.isFirstSighting());
+        assertEquals(Collections.singletonMap("a", "peer-a"), copy.getPeers());
+        assertTrue(copy.getRoutedVendors().isEmpty());
+    }
+
+    @Test
+    public void receive_routesLaterCopiesToSubscribersOutOfRange() throws Exception {
+
+        PeerRegistry<String, String> registry = new PeerRegistry<String, String>();
+        MessageReception<String> reception = new MessageReception<String>(registry, new SidDedupStore());
+
+        registry.putPeer("a", "peer-a");
+        registry.putChannel("a", "channel", "CH1");
+        registry.putChannel("far", "channel", "CH1");
+        registry.putChannel("other", "channel", "CH2");
+
+        reception.receive("IM1", "CH1");
+        MessageReception.Delivery<String> copy = reception.receive("IM1", "CH1");
+
+        assertEquals(Collections.singletonMap("a", "peer-a"), copy.getPeers());
+        assertEquals(Collections.singleton("far"), copy.getRoutedVendors());
+
+        registry.putPeer("far", "peer-far");
+
+        assertTrue(reception.receive("IM1", "CH1").getRoutedVendors().isEmpty());
+
+        registry.removeChannel("far");
+
+        assertEquals(Collections.singletonMap("a", "peer-a"), reception.receive("IM1", "CH1").getPeers());
+    }
+
+    @Test
+    public void receive_neverFansOutMessagesFromTheMesh() throws Exception {
+
+        PeerRegistry<String, String> registry = new PeerRegistry<String, String>();
+        MessageReception<String> reception = new MessageReception<String>(registry, new SidDedupStore());
+
+        registry.putPeer("a", "peer-a");
+
+        assertTrue(reception.receive("IM1", null).isFirstSighting());
+
+        MessageReception.Delivery<String> copy = reception.receive("IM1", null);
+
+        assertFalse(copy.isFirstSighting());
+        assertTrue(copy.getPeers().isEmpty());
+        assertTrue(copy.getRoutedVendors().isEmpty());
+    }
+
+    @Test
+    public void receive_fansFirstCopyOutToProxiedPeers() throws Exception {
+
+        PeerRegistry<String, String> registry = new PeerRegistry<String, String>();
+        MessageReception<String> reception = new MessageReception<String>(registry, new SidDedupStore());
+
+        registry.putPeer("a", "peer-a");
+        registry.putPeer("b", "peer-b");
+        registry.putChannel("a", "channel", "CH1");
+        registry.putChannel("b", "channel", "CH1");
+        reception.addProxiedVendor("b");
+
+        MessageReception.Delivery<String> first = reception.receive("IM1", "CH1");
+
+        assertTrue(first.isFirstSighting());
+        assertEquals(Collections.singletonMap("b", "peer-b"), first.getPeers());
+
+        assertTrue(reception.receive("IM2", null).getPeers().isEmpty());
+
+        reception.removeProxiedVendor("b");
+
+        assertTrue(reception.receive("IM3", "CH1").getPeers().isEmpty());
+    }
+
+    @Test
+    public void receive_dropsRestoredSids() throws Exception {
+
+        SidDedupStore restored = new SidDedupStore();
+        MessageReception<String> reception = new MessageReception<String>(new PeerRegistry<String, String>(), new SidDedupStore());
+
+        restored.add("IM1");
+        reception.setRestoredSids(restored);
+
+        assertNull(reception.receive("IM1", "CH1"));
+        assertTrue(reception.receive("IM2", "CH1").isFirstSighting());
+    }
+}
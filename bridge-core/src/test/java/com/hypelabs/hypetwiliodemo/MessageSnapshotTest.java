@@ -0,0 +1,64 @@
+package com.hypelabs.hypetwiliodemo;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class MessageSnapshotTest {
+
+    private static File tempFile(String suffix) throws Exception {
+
+        File file = File.createTempFile("snapshot", suffix);
+        file.deleteOnExit();
+        return file;
+    }
+
+    @Test
+    public void read_restoresTheHistoryWindow() throws Exception {
+
+        MessageHistory history = new MessageHistory(tempFile(".log"), 3, 2, 1);
+
+        for (int i = 0; i < 5; i++) {
+            history.append(new MessageHistory.Entry(i == 4 ? null : "IM" + i, "author", "olá " + i));
+        }
+
+        File file = tempFile(".snapshot");
+        MessageSnapshot.write(file, history);
+        history.close();
+
+        MessageSnapshot snapshot = MessageSnapshot.read(file);
+
+        assertEquals(3, snapshot.getEntries().size());
+        assertEquals(2, snapshot.getIndex(0));
+        assertEquals(4, snapshot.getIndex(2));
+        assertEquals("IM2", snapshot.getEntries().get(0).getSid());
+        assertEquals("olá 4", snapshot.getEntries().get(2).getBody());
+        assertNull(snapshot.getEntries().get(2).getSid());
+        assertEquals("author: olá 3", snapshot.getEntries().get(1).getDisplayText().toString());
+        assertEquals(2, snapshot.getSids().size());
+    }
+
+    @Test
+    public void read_treatsMissingAndCorruptedFilesAsEmpty() throws Exception {
+
+        File missing = new File(tempFile(".snapshot").getPath() + ".missing");
+        assertTrue(MessageSnapshot.read(missing).getEntries().isEmpty());
+
+        MessageHistory history = new MessageHistory(tempFile(".log"));
+        history.append(new MessageHistory.Entry("IM0", "author", "body"));
+
+        File file = tempFile(".snapshot");
+        MessageSnapshot.write(file, history);
+        history.close();
+
+        RandomAccessFile corrupted = new RandomAccessFile(file, "rw");
+        corrupted.seek(20);
+        corrupted.write(0x7f);
+        corrupted.close();
+
+        assertTrue(MessageSnapshot.read(file).getEntries().isEmpty());
+    }
+}
@@ -0,0 +1,422 @@
+package com.hypelabs.hypetwiliodemo;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class OutboundSchedulerTest {
+
+    private final List<Runnable> pendingDrains = new ArrayList<Runnable>();
+    private final List<String> sent = new ArrayList<String>();
+
+    private final Executor manualExecutor = new Executor() {
+
+        @Override
+        public void execute(Runnable command) {
+            pendingDrains.add(command);
+        }
+    };
+
+    private final OutboundScheduler.Transport<String> recordingTransport = new OutboundScheduler.Transport<String>() {
+
+        @Override
+        public long send(byte[] data, String peer) {
+            sent.add(peer + ":" + data[0]);
+            return sent.size();
+        }
+    };
+
+    @Test
+    public void enqueue_drainsOffTheCallerThread() throws Exception {
+
+        OutboundScheduler<String> scheduler = new OutboundScheduler<String>(recordingTransport, 4, 4,
+                OutboundScheduler.BackpressurePolicy.DROP_OLDEST, manualExecutor);
+
+        scheduler.enqueue(new byte[] { 1 }, "a");
+        scheduler.enqueue(new byte[] { 2 }, "a");
+        scheduler.enqueue(new byte[] { 1 }, "b");
+
+        assertTrue(sent.isEmpty());
+        assertEquals(2, scheduler.getQueueDepth("a"));
+        assertEquals(3, scheduler.getTotalQueueDepth());
+
+        runPendingDrains();
+
+        assertEquals(3, sent.size());
+        assertEquals("a:1", sent.get(0));
+        assertEquals("a:2", sent.get(1));
+        assertEquals(0, scheduler.getTotalQueueDepth());
+    }
+
+    @Test
+    public void enqueue_dropsOldestWhenPeerQueueIsFull() throws Exception {
+
+        OutboundScheduler<String> scheduler = new OutboundScheduler<String>(recordingTransport, 2, 4,
+                OutboundScheduler.BackpressurePolicy.DROP_OLDEST, manualExecutor);
+
+        scheduler.enqueue(new byte[] { 1 }, "a");
+        scheduler.enqueue(new byte[] { 2 }, "a");
+        scheduler.enqueue(new byte[] { 3 }, "a");
+
+        runPendingDrains();
+
+        assertEquals(1, scheduler.getDroppedCount());
+        assertEquals("a:2", sent.get(0));
+        assertEquals("a:3", sent.get(1));
+    }
+
+    @Test
+    public void enqueue_blocksProducerUntilCreditReturns() throws Exception {
+
+        final OutboundScheduler<String> scheduler = new OutboundScheduler<String>(recordingTransport, 1, 1,
+                OutboundScheduler.BackpressurePolicy.BLOCK, manualExecutor);
+        final boolean[] queued = { false };
+
+        scheduler.enqueue(new byte[] { 1 }, "a");
+        runPendingDrains();
+        scheduler.enqueue(new byte[] { 2 }, "a");
+
+        Thread producer = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                queued[0] = scheduler.enqueue(new byte[] { 3 }, "a");
+            }
+        });
+        producer.start();
+
+        for (int i = 0; i < 200 && producer.getState() != Thread.State.WAITING; i++) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(Thread.State.WAITING, producer.getState());
+        assertEquals(1, scheduler.getQueueDepth("a"));
+
+        scheduler.onFrameDelivered(1);
+        pendingDrains.remove(0).run();
+        producer.join(2000);
+
+        assertFalse(producer.isAlive());
+        assertTrue(queued[0]);
+        assertEquals("a:2", sent.get(1));
+        assertEquals(1, scheduler.getQueueDepth("a"));
+        assertEquals(0, scheduler.getDroppedCount());
+
+        scheduler.onFrameDelivered(2);
+        runPendingDrains();
+
+        assertEquals("a:3", sent.get(2));
+    }
+
+    @Test
+    public void drain_holdsFramesWhileWindowIsFull() throws Exception {
+
+        OutboundScheduler<String> scheduler = new OutboundScheduler<String>(recordingTransport, 8, 2,
+                OutboundScheduler.BackpressurePolicy.DROP_OLDEST, manualExecutor);
+
+        scheduler.enqueue(new byte[] { 1 }, "a");
+        scheduler.enqueue(new byte[] { 2 }, "a");
+        scheduler.enqueue(new byte[] { 3 }, "a");
+        runPendingDrains();
+
+        assertEquals(2, sent.size());
+        assertEquals(2, scheduler.getInFlightCount("a"));
+        assertEquals(1, scheduler.getQueueDepth("a"));
+
+        scheduler.onFrameDelivered(1);
+        runPendingDrains();
+
+        assertEquals(3, sent.size());
+        assertEquals("a:3", sent.get(2));
+        assertEquals(2, scheduler.getInFlightCount("a"));
+    }
+
+    @Test
+    public void onFrameDelivered_reportsDeliveryLatency() throws Exception {
+
+        final long[] now = { 1000 };
+        final List<String> latencies = new ArrayList<String>();
+        OutboundScheduler<String> scheduler = new OutboundScheduler<String>(recordingTransport, 8, 2,
+                OutboundScheduler.BackpressurePolicy.DROP_OLDEST, manualExecutor) {
+
+            @Override
+            protected long now() {
+                return now[0];
+            }
+        };
+        scheduler.setDeliveryListener(new OutboundScheduler.DeliveryListener<String>() {
+
+            @Override
+            public void onFrameDelivered(String peer, long latencyMillis) {
+                latencies.add(peer + ":" + latencyMillis);
+            }
+        });
+
+        scheduler.enqueue(new byte[] { 1 }, "a");
+        now[0] += 30;
+        runPendingDrains();
+        now[0] += 120;
+        scheduler.onFrameDelivered(1);
+        scheduler.onFrameFailed(2);
+
+        assertEquals(1, latencies.size());
+        assertEquals("a:120", latencies.get(0));
+    }
+
+    @Test
+    public void onFrameDelivered_handlesCompletionBeforeRegistration() throws Exception {
+
+        final List<OutboundScheduler<String>> holder = new ArrayList<OutboundScheduler<String>>();
+        OutboundScheduler.Transport<String> eagerTransport = new OutboundScheduler.Transport<String>() {
+
+            @Override
+            public long send(byte[] data, String peer) {
+                holder.get(0).onFrameDelivered(7);
+                return 7;
+            }
+        };
+        OutboundScheduler<String> scheduler = new OutboundScheduler<String>(eagerTransport, 8, 1,
+                OutboundScheduler.BackpressurePolicy.DROP_OLDEST, manualExecutor);
+        holder.add(scheduler);
+
+        scheduler.enqueue(new byte[] { 1 }, "a");
+        runPendingDrains();
+
+        assertEquals(0, scheduler.getInFlightCount("a"));
+        assertEquals(0, scheduler.getTotalInFlightCount());
+    }
+
+    @Test
+    public void onFrameDelivered_forgetsCompletionsOfDroppedFrames() throws Exception {
+
+        OutboundScheduler<String> scheduler = new OutboundScheduler<String>(recordingTransport, 8, 4,
+                OutboundScheduler.BackpressurePolicy.DROP_OLDEST, manualExecutor);
+
+        scheduler.enqueue(new byte[] { 1 }, "a");
+        runPendingDrains();
+        scheduler.removePeer("a");
+
+        scheduler.onFrameDelivered(1);
+        scheduler.onFrameFailed(42);
+
+        assertEquals(0, scheduler.getEarlyCompletionCount());
+
+        scheduler.enqueue(new byte[] { 2 }, "a");
+        runPendingDrains();
+
+        assertEquals(1, scheduler.getInFlightCount("a"));
+        assertEquals(0, scheduler.getEarlyCompletionCount());
+    }
+
+    @Test
+    public void removePeer_countsQueuedFramesOnceAsGivenUp() throws Exception {
+
+        final List<Integer> givenUp = new ArrayList<Integer>();
+        OutboundScheduler<String> scheduler = new OutboundScheduler<String>(recordingTransport, 8, 1,
+                OutboundScheduler.BackpressurePolicy.DROP_OLDEST, manualExecutor);
+
+        scheduler.setDeadLetterListener(new OutboundScheduler.DeadLetterListener<String>() {
+
+            @Override
+            public void onFrameGivenUp(byte[] data, String peer, int attempts) {
+                givenUp.add((int) data[0]);
+            }
+        });
+
+        scheduler.enqueue(new byte[] { 1 }, "a");
+        scheduler.enqueue(new byte[] { 2 }, "a");
+        scheduler.enqueue(new byte[] { 3 }, "a");
+        runPendingDrains();
+        scheduler.removePeer("a");
+
+        assertEquals(3, givenUp.size());
+        assertEquals(3, scheduler.getGivenUpCount());
+        assertEquals(0, scheduler.getDroppedCount());
+        assertEquals(0, scheduler.getTotalQueueDepth());
+    }
+
+    @Test
+    public void onFrameFailed_retriesBehindNewerFramesThenGivesUp() throws Exception {
+
+        final List<Integer> givenUp = new ArrayList<Integer>();
+        OutboundScheduler<String> scheduler = new OutboundScheduler<String>(recordingTransport, 8, 4,
+                OutboundScheduler.BackpressurePolicy.DROP_OLDEST, manualExecutor);
+
+        scheduler.setRetryPolicy(new RetryPolicy(2, 10, 100, 60000), immediateTimer);
+        scheduler.setDeadLetterListener(new OutboundScheduler.DeadLetterListener<String>() {
+
+            @Override
+            public void onFrameGivenUp(byte[] data, String peer, int attempts) {
+                givenUp.add(attempts);
+            }
+        });
+
+        scheduler.enqueue(new byte[] { 1 }, "a");
+        runPendingDrains();
+
+        scheduler.enqueue(new byte[] { 2 }, "a");
+        scheduler.onFrameFailed(1);
+        runPendingDrains();
+
+        assertEquals("a:2", sent.get(1));
+        assertEquals("a:1", sent.get(2));
+        assertEquals(1, scheduler.getRetriedCount());
+
+        scheduler.onFrameFailed(3);
+
+        assertEquals(1, givenUp.size());
+        assertEquals(2, (int) givenUp.get(0));
+        assertEquals(1, scheduler.getGivenUpCount());
+    }
+
+    @Test
+    public void enqueue_handsDroppedFramesToTheDeadLetterListener() throws Exception {
+
+        final List<String> givenUp = new ArrayList<String>();
+        OutboundScheduler<String> scheduler = new OutboundScheduler<String>(recordingTransport, 1, 4,
+                OutboundScheduler.BackpressurePolicy.DROP_OLDEST, manualExecutor);
+
+        scheduler.setDeadLetterListener(new OutboundScheduler.DeadLetterListener<String>() {
+
+            @Override
+            public void onFrameGivenUp(byte[] data, String peer, int attempts) {
+                givenUp.add(peer + ":" + data[0]);
+            }
+        });
+
+        scheduler.enqueue(new byte[] { 1 }, "a");
+        scheduler.enqueue(new byte[] { 2 }, "a");
+
+        assertEquals(1, givenUp.size());
+        assertEquals("a:1", givenUp.get(0));
+        assertEquals(1, scheduler.getDroppedCount());
+        assertEquals(0, scheduler.getGivenUpCount());
+    }
+
+    @Test
+    public void enqueue_givesUpWhenPeerIsRemovedWhileBlocked() throws Exception {
+
+        final OutboundScheduler<String> scheduler = new OutboundScheduler<String>(recordingTransport, 1, 1,
+                OutboundScheduler.BackpressurePolicy.BLOCK, manualExecutor);
+        final boolean[] queued = { true };
+        final List<String> givenUp = new ArrayList<String>();
+
+        scheduler.setDeadLetterListener(new OutboundScheduler.DeadLetterListener<String>() {
+
+            @Override
+            public void onFrameGivenUp(byte[] data, String peer, int attempts) {
+                synchronized (givenUp) {
+                    givenUp.add(peer + ":" + data[0]);
+                }
+            }
+        });
+
+        scheduler.enqueue(new byte[] { 1 }, "a");
+
+        Thread producer = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                queued[0] = scheduler.enqueue(new byte[] { 2 }, "a");
+            }
+        });
+        producer.start();
+
+        for (int i = 0; i < 200 && producer.getState() != Thread.State.WAITING; i++) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(Thread.State.WAITING, producer.getState());
+
+        scheduler.removePeer("a");
+        producer.join(2000);
+
+        assertFalse(producer.isAlive());
+        assertFalse(queued[0]);
+        assertEquals(0, scheduler.getQueueDepth("a"));
+        assertEquals(0, scheduler.getTotalQueueDepth());
+        assertEquals(2, scheduler.getGivenUpCount());
+
+        synchronized (givenUp) {
+            assertEquals(2, givenUp.size());
+            assertEquals("a:2", givenUp.get(1));
+        }
+
+        // The removed peer did not get its queue back.
+        runPendingDrains();
+
+        assertTrue(sent.isEmpty());
+    }
+
+    @Test
+    public void drain_retriesFramesTheTransportThrewOnThenGivesUp() throws Exception {
+
+        final List<Integer> givenUp = new ArrayList<Integer>();
+        final int[] attempts = { 0 };
+        OutboundScheduler.Transport<String> failingTransport = new OutboundScheduler.Transport<String>() {
+
+            @Override
+            public long send(byte[] data, String peer) {
+
+                if (attempts[0]++ < 2) {
+                    throw new IllegalStateException("link down");
+                }
+                sent.add(peer + ":" + data[0]);
+                return sent.size();
+            }
+        };
+        OutboundScheduler<String> scheduler = new OutboundScheduler<String>(failingTransport, 8, 4,
+                OutboundScheduler.BackpressurePolicy.DROP_OLDEST, manualExecutor);
+
+        scheduler.setRetryPolicy(new RetryPolicy(3, 10, 100, 60000), immediateTimer);
+        scheduler.setDeadLetterListener(new OutboundScheduler.DeadLetterListener<String>() {
+
+            @Override
+            public void onFrameGivenUp(byte[] data, String peer, int attempts) {
+                givenUp.add(attempts);
+            }
+        });
+
+        scheduler.enqueue(new byte[] { 1 }, "a");
+        runPendingDrains();
+
+        assertEquals(1, sent.size());
+        assertEquals("a:1", sent.get(0));
+        assertEquals(2, scheduler.getRetriedCount());
+        assertEquals(1, scheduler.getInFlightCount("a"));
+        assertTrue(givenUp.isEmpty());
+
+        attempts[0] = 0;
+        scheduler.setRetryPolicy(new RetryPolicy(1, 10, 100, 60000), immediateTimer);
+        scheduler.enqueue(new byte[] { 2 }, "a");
+        runPendingDrains();
+
+        assertEquals(1, givenUp.size());
+        assertEquals(1, (int) givenUp.get(0));
+        assertEquals(1, scheduler.getGivenUpCount());
+        assertEquals(1, scheduler.getInFlightCount("a"));
+    }
+
+    private final ScheduledThreadPoolExecutor immediateTimer = new ScheduledThreadPoolExecutor(1) {
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            command.run();
+            return null;
+        }
+    };
+
+    private void runPendingDrains() {
+
+        while (!pendingDrains.isEmpty()) {
+            pendingDrains.remove(0).run();
+        }
+    }
+}
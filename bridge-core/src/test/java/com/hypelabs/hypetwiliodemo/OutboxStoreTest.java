@@ -0,0 +1,115 @@
+package com.hypelabs.hypetwiliodemo;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class OutboxStoreTest {
+
+    @Test
+    public void peek_returnsRecordsInOrderAcrossSegments() throws Exception {
+
+        File directory = newDirectory();
+        OutboxStore outbox = new OutboxStore(directory, 32);
+
+        for (int i = 0; i < 10; i++) {
+            outbox.append(("message " + i).getBytes("utf-8"));
+        }
+
+        assertEquals(10, outbox.size());
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals("message " + i, new String(outbox.peek(), "utf-8"));
+            outbox.remove();
+        }
+
+        assertTrue(outbox.isEmpty());
+        assertNull(outbox.peek());
+        outbox.close();
+    }
+
+    @Test
+    public void recover_resumesFromCursorAndDropsTornTail() throws Exception {
+
+        File directory = newDirectory();
+        OutboxStore outbox = new OutboxStore(directory, 32);
+
+        for (int i = 0; i < 6; i++) {
+            outbox.append(("message " + i).getBytes("utf-8"));
+        }
+        outbox.remove();
+        outbox.remove();
+        outbox.close();
+
+        File[] segments = directory.listFiles();
+        File last = null;
+        for (File segment : segments) {
+            if (segment.getName().endsWith(OutboxStore.SEGMENT_SUFFIX) && (last == null || segment.getName().compareTo(last.getName()) > 0)) {
+                last = segment;
+            }
+        }
+        RandomAccessFile tail = new RandomAccessFile(last, "rw");
+        tail.setLength(tail.length() - 3);
+        tail.close();
+
+        OutboxStore recovered = new OutboxStore(directory, 32);
+
+        assertEquals(3, recovered.size());
+        assertEquals("message 2", new String(recovered.peek(), "utf-8"));
+
+        recovered.append("message 6".getBytes("utf-8"));
+        recovered.remove();
+        recovered.remove();
+        recovered.remove();
+        assertEquals("message 6", new String(recovered.peek(), "utf-8"));
+        recovered.close();
+    }
+
+    @Test
+    public void recover_checksOnlyRecordsAfterCheckpoint() throws Exception {
+
+        File directory = newDirectory();
+        OutboxStore outbox = new OutboxStore(directory);
+        int count = OutboxStore.CHECKPOINT_INTERVAL + 3;
+
+        for (int i = 0; i < count; i++) {
+            outbox.append(("message " + i).getBytes("utf-8"));
+        }
+
+        // The outbox is not closed, as after a crash: the checkpoint covers
+        // the first CHECKPOINT_INTERVAL records only.
+        File segment = null;
+        for (File file : directory.listFiles()) {
+            if (file.getName().endsWith(OutboxStore.SEGMENT_SUFFIX)) {
+                segment = file;
+            }
+        }
+
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        file.seek(4);
+        file.writeInt(0);
+        file.setLength(file.length() - 3);
+        file.close();
+
+        OutboxStore recovered = new OutboxStore(directory);
+
+        // The bad checksum of the first record is before the checkpoint and
+        // is not read again, the torn last record is after it and is dropped.
+        assertEquals(count - 1, recovered.size());
+        assertEquals("message 0", new String(recovered.peek(), "utf-8"));
+        recovered.close();
+        outbox.close();
+    }
+
+    private static File newDirectory() throws Exception {
+
+        File directory = File.createTempFile("outbox", "");
+        directory.delete();
+        directory.mkdirs();
+        directory.deleteOnExit();
+        return directory;
+    }
+}
@@ -0,0 +1,148 @@
+package com.hypelabs.hypetwiliodemo;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class PeerRegistryTest {
+
+    @Test
+    public void removePeer_usesReverseIndex() throws Exception {
+
+        PeerRegistry<Object, String> registry = new PeerRegistry<Object, String>();
+        Object first = new Object();
+        Object second = new Object();
+
+        registry.putPeer("a", first);
+        registry.putPeer("b", second);
+
+        assertEquals("b", registry.getIdentifierForVendor(second));
+        assertEquals("a", registry.removePeer(first));
+        assertNull(registry.removePeer(first));
+        assertNull(registry.getPeer("a"));
+        assertEquals(1, registry.peerCount());
+    }
+
+    @Test
+    public void putPeer_replacesStaleMappings() throws Exception {
+
+        PeerRegistry<Object, String> registry = new PeerRegistry<Object, String>();
+        Object first = new Object();
+        Object second = new Object();
+
+        registry.putPeer("a", first);
+        registry.putPeer("a", second);
+
+        assertNull(registry.getIdentifierForVendor(first));
+        assertSame(second, registry.getPeer("a"));
+
+        registry.putPeer("b", second);
+
+        assertNull(registry.getPeer("a"));
+        assertEquals("b", registry.getIdentifierForVendor(second));
+    }
+
+    @Test
+    public void snapshotPeers_isStableWhileRegistryChanges() throws Exception {
+
+        PeerRegistry<Object, String> registry = new PeerRegistry<Object, String>();
+        Object first = new Object();
+
+        registry.putPeer("a", first);
+        Map<String, Object> snapshot = registry.snapshotPeers();
+
+        assertSame(snapshot, registry.snapshotPeers());
+
+        for (Map.Entry<String, Object> entry : snapshot.entrySet()) {
+            registry.removePeer(entry.getValue());
+            registry.putPeer("b", new Object());
+        }
+
+        assertEquals(1, snapshot.size());
+        assertTrue(registry.snapshotPeers().containsKey("b"));
+        assertFalse(registry.snapshotPeers().containsKey("a"));
+    }
+
+    @Test
+    public void getSubscribedPeers_followsJoinsAndLosses() throws Exception {
+
+        PeerRegistry<Object, String> registry = new PeerRegistry<Object, String>();
+        Object first = new Object();
+        Object second = new Object();
+
+        registry.putPeer("a", first);
+        registry.putPeer("b", second);
+        registry.putChannel("a", "general", "CH1");
+        registry.putChannel("c", "general", "CH1");
+        registry.putChannel("b", "other", "CH2");
+
+        assertEquals(1, registry.getSubscribedPeers("CH1").size());
+        assertSame(first, registry.getSubscribedPeers("CH1").get("a"));
+
+        Object third = new Object();
+        registry.putPeer("c", third);
+
+        assertEquals(2, registry.getSubscribedPeers("CH1").size());
+
+        registry.removePeer(first);
+        registry.putChannel("b", "general", "CH1");
+
+        assertFalse(registry.getSubscribedPeers("CH1").containsKey("a"));
+        assertSame(second, registry.getSubscribedPeers("CH1").get("b"));
+        assertTrue(registry.getSubscribedPeers("CH2").isEmpty());
+
+        registry.removeChannel("c");
+
+        assertEquals(1, registry.getSubscribedPeers("CH1").size());
+        assertTrue(registry.getSubscribedPeers("unknown").isEmpty());
+    }
+
+    @Test
+    public void putPeer_ignoresNullIdentifierForVendor() throws Exception {
+
+        PeerRegistry<Object, String> registry = new PeerRegistry<Object, String>();
+        Object peer = new Object();
+
+        registry.putPeer(null, peer);
+        registry.putChannel(null, "general", "CH1");
+        registry.removeChannel(null);
+
+        assertTrue(registry.hasNoPeers());
+        assertNull(registry.getIdentifierForVendor(peer));
+        assertNull(registry.removePeer(peer));
+    }
+
+    @Test
+    public void putPeer_keepsIndexesInAgreementWhenPeerMovesConcurrently() throws Exception {
+
+        final PeerRegistry<Object, String> registry = new PeerRegistry<Object, String>();
+        final Object peer = new Object();
+        Thread[] threads = new Thread[4];
+
+        for (int t = 0; t < threads.length; t++) {
+
+            final int offset = t;
+            threads[t] = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    for (int i = 0; i < 2000; i++) {
+                        registry.putPeer("vendor" + ((i + offset) % 7), peer);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        String identifierForVendor = registry.getIdentifierForVendor(peer);
+
+        assertEquals(1, registry.peerCount());
+        assertSame(peer, registry.getPeer(identifierForVendor));
+    }
+}
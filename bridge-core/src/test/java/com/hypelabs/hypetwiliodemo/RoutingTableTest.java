@@ -0,0 +1,74 @@
+package com.hypelabs.hypetwiliodemo;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RoutingTableTest {
+
+    @Test
+    public void updateNeighbour_picksNearestGateway() throws Exception {
+
+        RoutingTable<String> table = new RoutingTable<String>();
+
+        assertEquals(RoutingTable.INFINITE_HOPS, table.getHopCount());
+        assertNull(table.getNextHop());
+
+        assertTrue(table.updateNeighbour("far", 3));
+        assertTrue(table.updateNeighbour("near", 1));
+
+        assertEquals(2, table.getHopCount());
+        assertEquals("near", table.getNextHop());
+
+        assertFalse(table.updateNeighbour("other", 1));
+        assertEquals("near", table.getNextHop());
+
+        assertTrue(table.removeNeighbour("near"));
+        assertEquals(2, table.getHopCount());
+        assertEquals("other", table.getNextHop());
+
+        assertTrue(table.removeNeighbour("other"));
+        assertEquals(4, table.getHopCount());
+        assertEquals("far", table.getNextHop());
+    }
+
+    @Test
+    public void getAdvertisedHopCount_poisonsTheNextHop() throws Exception {
+
+        RoutingTable<String> table = new RoutingTable<String>();
+
+        table.updateNeighbour("gateway", 0);
+
+        assertEquals(RoutingTable.INFINITE_HOPS, table.getAdvertisedHopCount("gateway"));
+        assertEquals(1, table.getAdvertisedHopCount("leaf"));
+
+        table.setGateway(true);
+
+        assertEquals(0, table.getAdvertisedHopCount("gateway"));
+        assertNull(table.getNextHop());
+    }
+
+    @Test
+    public void removeNeighbour_withoutAlternativeLosesTheRoute() throws Exception {
+
+        RoutingTable<String> table = new RoutingTable<String>();
+
+        table.updateNeighbour("relay", 1);
+        table.learnReverseRoute("origin", "relay");
+
+        assertTrue(table.removeNeighbour("relay"));
+        assertEquals(RoutingTable.INFINITE_HOPS, table.getHopCount());
+        assertNull(table.getNextHop());
+        assertNull(table.getReverseRoute("origin"));
+    }
+
+    @Test
+    public void markFrameSeen_suppressesLoops() throws Exception {
+
+        RoutingTable<String> table = new RoutingTable<String>();
+
+        assertTrue(table.markFrameSeen("a:1"));
+        assertFalse(table.markFrameSeen("a:1"));
+        assertTrue(table.markFrameSeen("a:2"));
+    }
+}
@@ -0,0 +1,57 @@
+package com.hypelabs.hypetwiliodemo;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SidDedupStoreTest {
+
+    @Test
+    public void contains_countsHitsAndMisses() throws Exception {
+
+        SidDedupStore store = new SidDedupStore();
+
+        assertFalse(store.contains("IM1"));
+        store.add("IM1");
+        assertTrue(store.contains("IM1"));
+
+        assertEquals(1, store.getHits());
+        assertEquals(1, store.getMisses());
+    }
+
+    @Test
+    public void add_evictsLeastRecentlySeenSid() throws Exception {
+
+        SidDedupStore store = new SidDedupStore(2, SidDedupStore.NO_TIME_WINDOW, true);
+
+        store.add("IM1");
+        store.add("IM2");
+        store.contains("IM1");
+        store.add("IM3");
+
+        assertEquals(2, store.size());
+        assertEquals(1, store.getEvictions());
+        assertTrue(store.contains("IM1"));
+        assertFalse(store.contains("IM2"));
+        assertTrue(store.contains("IM3"));
+    }
+
+    @Test
+    public void contains_forgetsSidsOutsideTimeWindow() throws Exception {
+
+        final long[] now = { 1000 };
+        SidDedupStore store = new SidDedupStore(16, 500, false) {
+
+            @Override
+            protected long now() {
+                return now[0];
+            }
+        };
+
+        store.add("IM1");
+        now[0] += 501;
+
+        assertFalse(store.contains("IM1"));
+        assertEquals(1, store.getEvictions());
+    }
+}
@@ -0,0 +1,113 @@
+package com.hypelabs.hypetwiliodemo;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StartupPipelineTest {
+
+    private final List<StartupPipeline.Stage> started = new ArrayList<StartupPipeline.Stage>();
+
+    private StartupPipeline.StageAction recordStart(final StartupPipeline.Stage stage) {
+
+        return new StartupPipeline.StageAction() {
+
+            @Override
+            public void run(StartupPipeline pipeline) {
+                started.add(stage);
+            }
+        };
+    }
+
+    @Test
+    public void start_runsIndependentStagesAndWaitsOnDependencies() throws Exception {
+
+        final long[] now = { 100 };
+        StartupPipeline pipeline = new StartupPipeline() {
+
+            @Override
+            protected long now() {
+                return now[0];
+            }
+        };
+
+        pipeline.addStage(StartupPipeline.Stage.HYPE_PERMISSION, null)
+                .addStage(StartupPipeline.Stage.HYPE_START, recordStart(StartupPipeline.Stage.HYPE_START), StartupPipeline.Stage.HYPE_PERMISSION)
+                .addStage(StartupPipeline.Stage.TOKEN_FETCH, recordStart(StartupPipeline.Stage.TOKEN_FETCH))
+                .addStage(StartupPipeline.Stage.CLIENT_CREATION, null, StartupPipeline.Stage.TOKEN_FETCH);
+
+        pipeline.start();
+
+        assertEquals(1, started.size());
+        assertEquals(StartupPipeline.Stage.TOKEN_FETCH, started.get(0));
+        assertEquals(StartupPipeline.NOT_RECORDED, pipeline.getStartedAt(StartupPipeline.Stage.CLIENT_CREATION));
+
+        now[0] += 40;
+        pipeline.complete(StartupPipeline.Stage.TOKEN_FETCH);
+        now[0] += 10;
+        pipeline.complete(StartupPipeline.Stage.HYPE_PERMISSION);
+
+        assertEquals(StartupPipeline.Stage.HYPE_START, started.get(1));
+        assertEquals(40, pipeline.getCompletedAt(StartupPipeline.Stage.TOKEN_FETCH));
+        assertEquals(40, pipeline.getStartedAt(StartupPipeline.Stage.CLIENT_CREATION));
+        assertEquals(50, pipeline.getStartedAt(StartupPipeline.Stage.HYPE_START));
+    }
+
+    @Test
+    public void fail_recordsFailureAndHoldsDependentStages() throws Exception {
+
+        final long[] now = { 100 };
+        final List<String> failures = new ArrayList<String>();
+        StartupPipeline pipeline = new StartupPipeline() {
+
+            @Override
+            protected long now() {
+                return now[0];
+            }
+        };
+
+        pipeline.addStage(StartupPipeline.Stage.TOKEN_FETCH, recordStart(StartupPipeline.Stage.TOKEN_FETCH))
+                .addStage(StartupPipeline.Stage.CLIENT_CREATION, null, StartupPipeline.Stage.TOKEN_FETCH);
+        pipeline.setListener(new StartupPipeline.Listener() {
+
+            @Override
+            public void onStageCompleted(StartupPipeline.Stage stage, StartupPipeline pipeline) {
+            }
+
+            @Override
+            public void onStageFailed(StartupPipeline.Stage stage, String reason, StartupPipeline pipeline) {
+                failures.add(stage + ":" + reason);
+            }
+        });
+
+        pipeline.fail(StartupPipeline.Stage.TOKEN_FETCH, "not started");
+
+        assertTrue(failures.isEmpty());
+
+        pipeline.start();
+        now[0] += 30;
+        pipeline.fail(StartupPipeline.Stage.TOKEN_FETCH, "timeout");
+
+        assertEquals(1, failures.size());
+        assertEquals("TOKEN_FETCH:timeout", failures.get(0));
+        assertTrue(pipeline.isFailed(StartupPipeline.Stage.TOKEN_FETCH));
+        assertEquals(0, pipeline.getStartedAt(StartupPipeline.Stage.TOKEN_FETCH));
+        assertEquals(30, pipeline.getFailedAt(StartupPipeline.Stage.TOKEN_FETCH));
+        assertEquals(StartupPipeline.NOT_RECORDED, pipeline.getStartedAt(StartupPipeline.Stage.CLIENT_CREATION));
+        assertTrue(pipeline.describe().contains("failed     30 ms: timeout"));
+
+        now[0] += 20;
+        pipeline.complete(StartupPipeline.Stage.TOKEN_FETCH);
+
+        assertFalse(pipeline.isFailed(StartupPipeline.Stage.TOKEN_FETCH));
+        assertEquals(StartupPipeline.NOT_RECORDED, pipeline.getFailedAt(StartupPipeline.Stage.TOKEN_FETCH));
+        assertEquals(50, pipeline.getStartedAt(StartupPipeline.Stage.CLIENT_CREATION));
+
+        pipeline.fail(StartupPipeline.Stage.TOKEN_FETCH, "late");
+
+        assertEquals(1, failures.size());
+    }
+}
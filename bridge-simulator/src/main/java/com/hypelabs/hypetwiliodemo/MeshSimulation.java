@@ -0,0 +1,525 @@
+//
+// MIT License
+//
+// Copyright (C) 2018 HypeLabs Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+
+package com.hypelabs.hypetwiliodemo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * This class runs a discrete event simulation of a Hype mesh bridged to
+ * twilio. Virtual devices are scattered over a square and linked to the
+ * devices in radio range, links have a latency, a jitter and a loss rate,
+ * and each radio has a bandwidth. Devices run the bridge core logic:
+ * route advertisements, sends and joins relayed to the nearest gateway,
+ * and twilio messages routed back to the devices that joined. Everything runs on the calling thread
+ * in simulated time, so thousands of devices fit in a single JVM and runs
+ * with the same seed are identical.
+ */
+public class MeshSimulation {
+
+    public static final String UPSTREAM_SENT = "sim.upstream_sent";
+    public static final String UPSTREAM_DELIVERED = "sim.upstream_delivered";
+    public static final String UPSTREAM_DROPPED = "sim.upstream_dropped";
+    public static final String UPSTREAM_LATENCY = "sim.upstream_latency_ms";
+    public static final String DOWNSTREAM_SENT = "sim.downstream_sent";
+    public static final String DOWNSTREAM_DELIVERED = "sim.downstream_delivered";
+    public static final String DOWNSTREAM_LATENCY = "sim.downstream_latency_ms";
+    public static final String FRAMES_SENT = "sim.frames_sent";
+    public static final String FRAMES_LOST = "sim.frames_lost";
+    public static final String BYTES_SENT = "sim.bytes_sent";
+
+    private static final long MICROS_PER_SECOND = 1000000L;
+    private static final long MICROS_PER_MILLI = 1000L;
+
+    /**
+     * One direction of a radio link between two devices.
+     */
+    static final class Link {
+
+        final SimulatedPeer from;
+        final SimulatedPeer to;
+        long lastArrival;
+
+        Link(SimulatedPeer from, SimulatedPeer to) {
+
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    private static final class Event implements Comparable<Event> {
+
+        final long time;
+        final long sequence;
+        final Runnable action;
+
+        Event(long time, long sequence, Runnable action) {
+
+            this.time = time;
+            this.sequence = sequence;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+
+            if (time != other.time) {
+                return time < other.time ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    private int peerCount = 1000;
+    private int gatewayCount = 20;
+    private double averageDegree = 6;
+    private long linkLatencyMicros = 20 * MICROS_PER_MILLI;
+    private long linkJitterMicros = 10 * MICROS_PER_MILLI;
+    private double lossRate = 0.01;
+    private long bandwidthBytesPerSecond = 100000;
+    private long twilioLatencyMicros = 150 * MICROS_PER_MILLI;
+    private long routeIntervalMicros = 5 * MICROS_PER_SECOND;
+    private long warmUpMicros = 10 * MICROS_PER_SECOND;
+    private int upstreamMessageCount = 1000;
+    private int downstreamMessageCount = 100;
+    private double messageRatePerSecond = 50;
+    private long seed = 42;
+
+    private final PriorityQueue<Event> events = new PriorityQueue<Event>();
+    private final BridgeMetrics metrics = new BridgeMetrics();
+    private final Map<String, Long> sentAt = new HashMap<String, Long>();
+    private final List<SimulatedPeer> peers = new ArrayList<SimulatedPeer>();
+    private final List<SimulatedPeer> gateways = new ArrayList<SimulatedPeer>();
+    private Random random;
+    private long now;
+    private long sequence;
+    private long trafficEnd;
+    private long linkCount;
+    private long eventCount;
+    private long wallTimeNanos;
+
+    public void setPeerCount(int peerCount) {
+
+        this.peerCount = peerCount;
+    }
+
+    public void setGatewayCount(int gatewayCount) {
+
+        this.gatewayCount = gatewayCount;
+    }
+
+    /**
+     * @param averageDegree Average number of devices in radio range of a device.
+     */
+    public void setAverageDegree(double averageDegree) {
+
+        this.averageDegree = averageDegree;
+    }
+
+    public void setLinkLatencyMillis(long linkLatencyMillis) {
+
+        this.linkLatencyMicros = linkLatencyMillis * MICROS_PER_MILLI;
+    }
+
+    public void setLinkJitterMillis(long linkJitterMillis) {
+
+        this.linkJitterMicros = linkJitterMillis * MICROS_PER_MILLI;
+    }
+
+    /**
+     * @param lossRate Probability that a frame is lost on a link, from 0 to 1.
+     */
+    public void setLossRate(double lossRate) {
+
+        this.lossRate = lossRate;
+    }
+
+    /**
+     * @param bandwidthBytesPerSecond Bandwidth of the radio of each device.
+     */
+    public void setBandwidthBytesPerSecond(long bandwidthBytesPerSecond) {
+
+        this.bandwidthBytesPerSecond = bandwidthBytesPerSecond;
+    }
+
+    /**
+     * @param twilioLatencyMillis Time twilio takes to deliver a message to the gateways.
+     */
+    public void setTwilioLatencyMillis(long twilioLatencyMillis) {
+
+        this.twilioLatencyMicros = twilioLatencyMillis * MICROS_PER_MILLI;
+    }
+
+    public void setUpstreamMessageCount(int upstreamMessageCount) {
+
+        this.upstreamMessageCount = upstreamMessageCount;
+    }
+
+    public void setDownstreamMessageCount(int downstreamMessageCount) {
+
+        this.downstreamMessageCount = downstreamMessageCount;
+    }
+
+    /**
+     * @param messageRatePerSecond Average rate at which upstream and downstream messages are sent.
+     */
+    public void setMessageRatePerSecond(double messageRatePerSecond) {
+
+        this.messageRatePerSecond = messageRatePerSecond;
+    }
+
+    public void setSeed(long seed) {
+
+        this.seed = seed;
+    }
+
+    /**
+     * @return Counters and latency histograms of the last run.
+     */
+    public BridgeMetrics getMetrics() {
+
+        return metrics;
+    }
+
+    /**
+     * @return Share of the upstream messages that reached a gateway.
+     */
+    public double getUpstreamDeliveryRatio() {
+
+        long sent = metrics.getCounter(UPSTREAM_SENT);
+        return sent > 0 ? (double) metrics.getCounter(UPSTREAM_DELIVERED) / sent : 0;
+    }
+
+    /**
+     * @return Share of the devices, other than gateways, that got each downstream message.
+     */
+    public double getDownstreamDeliveryRatio() {
+
+        long expected = metrics.getCounter(DOWNSTREAM_SENT) * (peers.size() - gateways.size());
+        return expected > 0 ? (double) metrics.getCounter(DOWNSTREAM_DELIVERED) / expected : 0;
+    }
+
+    /**
+     * Builds the mesh, lets the routes converge, sends the messages and
+     * runs until every frame was delivered or lost.
+     */
+    public void run() {
+
+        if (gatewayCount < 1 || gatewayCount > peerCount) {
+            throw new IllegalArgumentException("Gateway count must be between 1 and the peer count");
+        }
+
+        long wallStart = System.nanoTime();
+
+        random = new Random(seed);
+        buildTopology();
+        scheduleTraffic();
+        scheduleRouteAdvertisements();
+
+        while (!events.isEmpty()) {
+
+            Event event = events.poll();
+            now = event.time;
+            event.action.run();
+            eventCount++;
+        }
+
+        wallTimeNanos = System.nanoTime() - wallStart;
+    }
+
+    /**
+     * Sends a frame over a link. The frame waits for the radio of the
+     * sender to be free, is lost with the configured probability, and
+     * frames on the same link arrive in order.
+     * @param link Link to send the frame over.
+     * @param data Encoded frame.
+     */
+    void transmit(final Link link, final byte[] data) {
+
+        metrics.increment(FRAMES_SENT);
+        metrics.add(BYTES_SENT, data.length);
+
+        long start = Math.max(now, link.from.getRadioBusyUntil());
+        long finish = start + data.length * MICROS_PER_SECOND / bandwidthBytesPerSecond;
+        link.from.setRadioBusyUntil(finish);
+
+        if (random.nextDouble() < lossRate) {
+            metrics.increment(FRAMES_LOST);
+            return;
+        }
+
+        long arrival = Math.max(finish + linkLatencyMicros + jitter(linkJitterMicros), link.lastArrival);
+        link.lastArrival = arrival;
+
+        schedule(arrival, new Runnable() {
+
+            @Override
+            public void run() {
+                link.to.receive(data, link.from);
+            }
+        });
+    }
+
+    void onUpstreamDelivered(String frameId) {
+
+        Long sent = sentAt.remove(frameId);
+
+        if (sent != null) {
+            metrics.increment(UPSTREAM_DELIVERED);
+            metrics.recordLatency(UPSTREAM_LATENCY, (now - sent) / MICROS_PER_MILLI);
+        }
+    }
+
+    void onUpstreamDropped() {
+
+        metrics.increment(UPSTREAM_DROPPED);
+    }
+
+    void onDownstreamDelivered(String sid) {
+
+        Long sent = sentAt.get(sid);
+
+        if (sent != null) {
+            metrics.increment(DOWNSTREAM_DELIVERED);
+            metrics.recordLatency(DOWNSTREAM_LATENCY, (now - sent) / MICROS_PER_MILLI);
+        }
+    }
+
+    private void buildTopology() {
+
+        peers.clear();
+        gateways.clear();
+        linkCount = 0;
+
+        double[] x = new double[peerCount];
+        double[] y = new double[peerCount];
+
+        for (int i = 0; i < peerCount; i++) {
+            peers.add(new SimulatedPeer(this, i));
+            x[i] = random.nextDouble();
+            y[i] = random.nextDouble();
+        }
+
+        // Devices are linked to every device within the radio range that
+        // gives the requested average degree, found through a grid of cells
+        // as wide as the range.
+        double range = Math.sqrt(averageDegree / (Math.PI * peerCount));
+        int cells = Math.max(1, (int) Math.floor(1 / range));
+        List<List<Integer>> grid = new ArrayList<List<Integer>>(cells * cells);
+
+        for (int i = 0; i < cells * cells; i++) {
+            grid.add(new ArrayList<Integer>());
+        }
+
+        for (int i = 0; i < peerCount; i++) {
+            grid.get(cell(x[i], cells) * cells + cell(y[i], cells)).add(i);
+        }
+
+        for (int i = 0; i < peerCount; i++) {
+
+            int cx = cell(x[i], cells);
+            int cy = cell(y[i], cells);
+
+            for (int nx = Math.max(0, cx - 1); nx <= Math.min(cells - 1, cx + 1); nx++) {
+                for (int ny = Math.max(0, cy - 1); ny <= Math.min(cells - 1, cy + 1); ny++) {
+                    for (int j : grid.get(nx * cells + ny)) {
+
+                        double dx = x[i] - x[j];
+                        double dy = y[i] - y[j];
+
+                        if (j > i && dx * dx + dy * dy <= range * range) {
+                            peers.get(i).addLink(new Link(peers.get(i), peers.get(j)));
+                            peers.get(j).addLink(new Link(peers.get(j), peers.get(i)));
+                            linkCount++;
+                        }
+                    }
+                }
+            }
+        }
+
+        List<SimulatedPeer> shuffled = new ArrayList<SimulatedPeer>(peers);
+        Collections.shuffle(shuffled, random);
+
+        for (SimulatedPeer gateway : shuffled.subList(0, gatewayCount)) {
+            gateway.getRoutingTable().setGateway(true);
+            gateways.add(gateway);
+        }
+    }
+
+    private static int cell(double coordinate, int cells) {
+
+        return Math.min(cells - 1, (int) (coordinate * cells));
+    }
+
+    private void scheduleTraffic() {
+
+        List<Boolean> upstream = new ArrayList<Boolean>();
+
+        for (int i = 0; i < upstreamMessageCount; i++) {
+            upstream.add(Boolean.TRUE);
+        }
+
+        for (int i = 0; i < downstreamMessageCount; i++) {
+            upstream.add(Boolean.FALSE);
+        }
+
+        Collections.shuffle(upstream, random);
+
+        List<SimulatedPeer> origins = new ArrayList<SimulatedPeer>(peers);
+        origins.removeAll(gateways);
+
+        long time = warmUpMicros;
+
+        for (int i = 0; i < upstream.size(); i++) {
+
+            time += (long) (-Math.log(1 - random.nextDouble()) / messageRatePerSecond * MICROS_PER_SECOND);
+
+            if (upstream.get(i) && !origins.isEmpty()) {
+                scheduleUpstreamMessage(time, origins.get(random.nextInt(origins.size())), i);
+            } else if (!upstream.get(i)) {
+                scheduleDownstreamMessage(time, i);
+            }
+        }
+
+        trafficEnd = time;
+    }
+
+    private void scheduleUpstreamMessage(final long time, final SimulatedPeer origin, final int number) {
+
+        schedule(time, new Runnable() {
+
+            @Override
+            public void run() {
+
+                String frameId = origin.getIdentifierForVendor() + ":" + number;
+                metrics.increment(UPSTREAM_SENT);
+                sentAt.put(frameId, now);
+
+                if (!origin.sendToTwilio(frameId, "message " + number)) {
+                    onUpstreamDropped();
+                }
+            }
+        });
+    }
+
+    private void scheduleDownstreamMessage(final long time, final int number) {
+
+        final String sid = String.format("IM%032x", number);
+
+        schedule(time, new Runnable() {
+
+            @Override
+            public void run() {
+
+                metrics.increment(DOWNSTREAM_SENT);
+                sentAt.put(sid, now);
+            }
+        });
+
+        // Every gateway has its own twilio client listening on the channel.
+        for (final SimulatedPeer gateway : gateways) {
+
+            schedule(time + twilioLatencyMicros + jitter(twilioLatencyMicros / 2), new Runnable() {
+
+                @Override
+                public void run() {
+                    gateway.receiveFromTwilio(sid, "message " + number);
+                }
+            });
+        }
+    }
+
+    private void scheduleRouteAdvertisements() {
+
+        for (final SimulatedPeer peer : peers) {
+
+            schedule((long) (random.nextDouble() * routeIntervalMicros), new Runnable() {
+
+                @Override
+                public void run() {
+
+                    peer.advertiseRoute();
+
+                    if (now + routeIntervalMicros <= trafficEnd) {
+                        schedule(now + routeIntervalMicros, this);
+                    }
+                }
+            });
+        }
+    }
+
+    private void schedule(long time, Runnable action) {
+
+        events.add(new Event(time, sequence++, action));
+    }
+
+    private long jitter(long maximum) {
+
+        return maximum > 0 ? (long) (random.nextDouble() * maximum) : 0;
+    }
+
+    /**
+     * @return Human readable report of the last run.
+     */
+    public String describe() {
+
+        LatencyHistogram upstreamLatency = metrics.getHistogram(UPSTREAM_LATENCY);
+        LatencyHistogram downstreamLatency = metrics.getHistogram(DOWNSTREAM_LATENCY);
+        double trafficSeconds = Math.max(1, trafficEnd - warmUpMicros) / (double) MICROS_PER_SECOND;
+        double wallSeconds = Math.max(1, wallTimeNanos) / 1e9;
+
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format(Locale.US, "mesh: %d peers, %d gateways, %d links (average degree %.1f)%n",
+                peers.size(), gateways.size(), linkCount, peers.isEmpty() ? 0 : 2.0 * linkCount / peers.size()));
+        builder.append(String.format(Locale.US, "upstream: %d sent, %d delivered (%.1f%%), %d dropped, throughput %.1f msg/s%n",
+                metrics.getCounter(UPSTREAM_SENT), metrics.getCounter(UPSTREAM_DELIVERED),
+                getUpstreamDeliveryRatio() * 100, metrics.getCounter(UPSTREAM_DROPPED),
+                metrics.getCounter(UPSTREAM_DELIVERED) / trafficSeconds));
+        builder.append(describeLatency(upstreamLatency));
+        builder.append(String.format(Locale.US, "downstream: %d sent, %d deliveries (%.1f%%), throughput %.1f deliveries/s%n",
+                metrics.getCounter(DOWNSTREAM_SENT), metrics.getCounter(DOWNSTREAM_DELIVERED),
+                getDownstreamDeliveryRatio() * 100, metrics.getCounter(DOWNSTREAM_DELIVERED) / trafficSeconds));
+        builder.append(describeLatency(downstreamLatency));
+        builder.append(String.format(Locale.US, "frames: %d sent, %d lost, %d bytes%n",
+                metrics.getCounter(FRAMES_SENT), metrics.getCounter(FRAMES_LOST), metrics.getCounter(BYTES_SENT)));
+        builder.append(String.format(Locale.US, "simulator: %d events in %.2f s (%.0f events/s)%n",
+                eventCount, wallSeconds, eventCount / wallSeconds));
+        return builder.toString();
+    }
+
+    private static String describeLatency(LatencyHistogram histogram) {
+
+        return String.format(Locale.US, "  latency ms: p50 %d, p90 %d, p99 %d, p99.9 %d, max %d%n",
+                histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(90),
+                histogram.getValueAtPercentile(99), histogram.getValueAtPercentile(99.9), histogram.getMax());
+    }
+}
@@ -0,0 +1,86 @@
+//
+// MIT License
+//
+// Copyright (C) 2018 HypeLabs Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+
+package com.hypelabs.hypetwiliodemo;
+
+/**
+ * Command line entry point of the mesh simulator. Options are given as
+ * --name=value, for instance:
+ *
+ *     --peers=5000 --gateways=50 --degree=8 --loss=0.05 --rate=200
+ */
+public final class MeshSimulator {
+
+    private MeshSimulator() {
+    }
+
+    public static void main(String[] args) {
+
+        MeshSimulation simulation = new MeshSimulation();
+
+        for (String arg : args) {
+
+            int separator = arg.indexOf('=');
+
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+
+            String name = arg.substring(2, separator);
+            String value = arg.substring(separator + 1);
+
+            if (name.equals("peers")) {
+                simulation.setPeerCount(Integer.parseInt(value));
+            } else if (name.equals("gateways")) {
+                simulation.setGatewayCount(Integer.parseInt(value));
+            } else if (name.equals("degree")) {
+                simulation.setAverageDegree(Double.parseDouble(value));
+            } else if (name.equals("latency-ms")) {
+                simulation.setLinkLatencyMillis(Long.parseLong(value));
+            } else if (name.equals("jitter-ms")) {
+                simulation.setLinkJitterMillis(Long.parseLong(value));
+            } else if (name.equals("loss")) {
+                simulation.setLossRate(Double.parseDouble(value));
+            } else if (name.equals("bandwidth")) {
+                simulation.setBandwidthBytesPerSecond(Long.parseLong(value));
+            } else if (name.equals("twilio-latency-ms")) {
+                simulation.setTwilioLatencyMillis(Long.parseLong(value));
+            } else if (name.equals("upstream")) {
+                simulation.setUpstreamMessageCount(Integer.parseInt(value));
+            } else if (name.equals("downstream")) {
+                simulation.setDownstreamMessageCount(Integer.parseInt(value));
+            } else if (name.equals("rate")) {
+                simulation.setMessageRatePerSecond(Double.parseDouble(value));
+            } else if (name.equals("seed")) {
+                simulation.setSeed(Long.parseLong(value));
+            } else {
+                throw new IllegalArgumentException("Unknown option " + name);
+            }
+        }
+
+        simulation.run();
+        System.out.print(simulation.describe());
+    }
+}
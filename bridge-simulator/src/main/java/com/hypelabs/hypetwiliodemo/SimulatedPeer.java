@@ -0,0 +1,352 @@
+//
+// MIT License
+//
+// Copyright (C) 2018 HypeLabs Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+
+package com.hypelabs.hypetwiliodemo;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class is a virtual device of the simulated mesh. It runs the same
+ * routing table, frame dispatcher, codec, fan out and router as
+ * HypeController, with the Hype SDK replaced by the links of the simulation.
+ */
+public class SimulatedPeer implements FrameDispatcher.FrameHandler<SimulatedPeer> {
+
+    static final String TYPE_KEY = "type";
+    static final String TTL_KEY = "ttl";
+    static final String HOPS_KEY = "hops";
+    static final String FRAME_ID_KEY = "frameId";
+
+    private final MeshSimulation simulation;
+    private final int index;
+    private final String identifierForVendor;
+    private final RoutingTable<SimulatedPeer> routingTable = new RoutingTable<SimulatedPeer>();
+    private final Map<SimulatedPeer, MeshSimulation.Link> links = new LinkedHashMap<SimulatedPeer, MeshSimulation.Link>();
+    private final FrameDispatcher<SimulatedPeer> dispatcher = new FrameDispatcher<SimulatedPeer>(this);
+    private final FrameFanOut<SimulatedPeer> fanOut;
+    private final MeshRouter<SimulatedPeer> router;
+    private final Set<String> subscribers = new LinkedHashSet<String>();
+    private long radioBusyUntil;
+    private int joinCount;
+
+    SimulatedPeer(MeshSimulation simulation, int index) {
+
+        this.simulation = simulation;
+        this.index = index;
+        this.identifierForVendor = String.format("%016x", index);
+        this.fanOut = new FrameFanOut<SimulatedPeer>(new MeshTransport<SimulatedPeer>() {
+
+            @Override
+            public boolean supportsBinaryFrames(SimulatedPeer peer) {
+                return true;
+            }
+
+            @Override
+            public byte[] encodeLegacyFrame(Map<String, String> frame) {
+                return null;
+            }
+
+            @Override
+            public void send(byte[] data, SimulatedPeer peer) {
+                SimulatedPeer.this.simulation.transmit(links.get(peer), data);
+            }
+        }, routingTable);
+        this.fanOut.setCompressionThreshold(FrameCodec.DEFAULT_COMPRESSION_THRESHOLD);
+        this.router = new MeshRouter<SimulatedPeer>(identifierForVendor, routingTable, fanOut, new MeshRouter.Host<SimulatedPeer>() {
+
+            @Override
+            public void send(Map<String, String> frame, SimulatedPeer peer) {
+                transmit(frame, peer);
+            }
+
+            @Override
+            public SimulatedPeer selectNextHop() {
+                return routingTable.getNextHop();
+            }
+
+            @Override
+            public SimulatedPeer getNeighbour(String identifierForVendor) {
+                return SimulatedPeer.this.getNeighbour(identifierForVendor);
+            }
+
+            @Override
+            public void onRouteChanged() {
+                advertiseRoute();
+            }
+
+            @Override
+            public void onJoin(String identifierForVendor) {
+                subscribers.add(identifierForVendor);
+            }
+
+            @Override
+            public void onSend(String message, String identifierForVendor, String frameId) {
+                SimulatedPeer.this.simulation.onUpstreamDelivered(frameId);
+            }
+
+            @Override
+            public void onReceive(Map<String, String> message) {
+
+                // Gateways take their messages from twilio, not from the mesh.
+                if (!routingTable.isGateway()) {
+                    SimulatedPeer.this.simulation.onDownstreamDelivered(message.get("sid"));
+                }
+            }
+
+            @Override
+            public void onDrop(Map<String, String> frame) {
+
+                if ("send".equals(frame.get(TYPE_KEY))) {
+                    SimulatedPeer.this.simulation.onUpstreamDropped();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return Identifier for vendor of the virtual device.
+     */
+    public String getIdentifierForVendor() {
+
+        return identifierForVendor;
+    }
+
+    /**
+     * @return Routing table of the virtual device.
+     */
+    public RoutingTable<SimulatedPeer> getRoutingTable() {
+
+        return routingTable;
+    }
+
+    /**
+     * @return Number of devices in radio range.
+     */
+    public int getLinkCount() {
+
+        return links.size();
+    }
+
+    void addLink(MeshSimulation.Link link) {
+
+        links.put(link.to, link);
+    }
+
+    long getRadioBusyUntil() {
+
+        return radioBusyUntil;
+    }
+
+    void setRadioBusyUntil(long radioBusyUntil) {
+
+        this.radioBusyUntil = radioBusyUntil;
+    }
+
+    void receive(byte[] data, SimulatedPeer peer) {
+
+        dispatcher.dispatch(data, peer);
+    }
+
+    /**
+     * Advertises the hop count to the nearest gateway to every device in
+     * range, like the route frames of HypeController, and joins the
+     * channel through the nearest gateway, so replies find their way back.
+     */
+    void advertiseRoute() {
+
+        for (Map.Entry<SimulatedPeer, MeshSimulation.Link> entry : links.entrySet()) {
+
+            Map<String, String> frame = new LinkedHashMap<String, String>();
+            frame.put(TYPE_KEY, "route");
+            frame.put(HOPS_KEY, String.valueOf(routingTable.getAdvertisedHopCount(entry.getKey())));
+            simulation.transmit(entry.getValue(), FrameCodec.encode(frame));
+        }
+
+        if (routingTable.getNextHop() == null) {
+            return;
+        }
+
+        String frameId = identifierForVendor + ":join:" + joinCount++;
+        routingTable.markFrameSeen(frameId);
+
+        Map<String, String> frame = new LinkedHashMap<String, String>();
+        frame.put(TYPE_KEY, "join");
+        frame.put("identifierForVendor", identifierForVendor);
+        frame.put(FRAME_ID_KEY, frameId);
+        frame.put(TTL_KEY, String.valueOf(RoutingTable.DEFAULT_TTL));
+
+        forwardToGateway(frame);
+    }
+
+    /**
+     * Sends a message typed on this device towards the nearest gateway.
+     * @param frameId Identifier of the frame.
+     * @param body Message text.
+     * @return false if there is no route to a gateway.
+     */
+    boolean sendToTwilio(String frameId, String body) {
+
+        routingTable.markFrameSeen(frameId);
+
+        Map<String, String> frame = new LinkedHashMap<String, String>();
+        frame.put(TYPE_KEY, "send");
+        frame.put("message", body);
+        frame.put("identifierForVendor", identifierForVendor);
+        frame.put(FRAME_ID_KEY, frameId);
+        frame.put(TTL_KEY, String.valueOf(RoutingTable.DEFAULT_TTL));
+
+        return forwardToGateway(frame);
+    }
+
+    /**
+     * Sends a message that the twilio client of this gateway received to
+     * the devices that joined through it, directly to those in range and
+     * along the path of their join to the others.
+     * @param sid Sid of the message.
+     * @param body Message text.
+     */
+    void receiveFromTwilio(String sid, String body) {
+
+        if (!routingTable.markFrameSeen(sid)) {
+            return;
+        }
+
+        Map<String, String> message = new LinkedHashMap<String, String>();
+        message.put("sid", sid);
+        message.put("author", "twilio");
+        message.put("body", body);
+
+        Map<String, SimulatedPeer> neighbours = new LinkedHashMap<String, SimulatedPeer>();
+        List<String> routed = new ArrayList<String>();
+
+        for (String subscriber : subscribers) {
+
+            SimulatedPeer neighbour = getNeighbour(subscriber);
+
+            if (neighbour != null) {
+                neighbours.put(subscriber, neighbour);
+            } else {
+                routed.add(subscriber);
+            }
+        }
+
+        fanOut.fanOut(message, neighbours);
+        fanOut.route(message, routed);
+    }
+
+    private boolean forwardToGateway(Map<String, String> frame) {
+
+        SimulatedPeer nextHop = routingTable.getNextHop();
+
+        if (nextHop == null) {
+            return false;
+        }
+
+        transmit(frame, nextHop);
+        return true;
+    }
+
+    private void transmit(Map<String, String> frame, SimulatedPeer peer) {
+
+        simulation.transmit(links.get(peer), FrameCodec.encode(frame, FrameCodec.DEFAULT_COMPRESSION_THRESHOLD));
+    }
+
+    private SimulatedPeer getNeighbour(String identifierForVendor) {
+
+        for (SimulatedPeer peer : links.keySet()) {
+            if (peer.identifierForVendor.equals(identifierForVendor)) {
+                return peer;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void onRouteFrame(byte[] frame, SimulatedPeer peer) {
+
+        router.onRouteFrame(frame, peer);
+    }
+
+    @Override
+    public void onSendFrame(byte[] frame, SimulatedPeer peer) {
+
+        router.onSendFrame(frame, peer);
+    }
+
+    @Override
+    public void onReceiveFrame(byte[] frame, SimulatedPeer peer) {
+
+        router.onReceiveFrame(frame, peer);
+    }
+
+    @Override
+    public void onAnnouncementFrame(byte[] frame, SimulatedPeer peer) {
+    }
+
+    @Override
+    public void onClientFrame(byte[] frame, SimulatedPeer peer) {
+    }
+
+    @Override
+    public void onJoinFrame(byte[] frame, SimulatedPeer peer) {
+
+        router.onJoinFrame(frame, peer);
+    }
+
+    @Override
+    public void onPingFrame(byte[] frame, SimulatedPeer peer) {
+    }
+
+    @Override
+    public void onPongFrame(byte[] frame, SimulatedPeer peer) {
+    }
+
+    @Override
+    public void onLeaveFrame(byte[] frame, SimulatedPeer peer) {
+    }
+
+    @Override
+    public void onUnknownFrame(byte[] frame, SimulatedPeer peer) {
+    }
+
+    // Routing tables key neighbours by peer, a stable hash keeps runs
+    // with the same seed identical.
+    @Override
+    public int hashCode() {
+
+        return index;
+    }
+
+    @Override
+    public String toString() {
+
+        return identifierForVendor;
+    }
+}
@@ -0,0 +1,63 @@
+package com.hypelabs.hypetwiliodemo;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MeshSimulationTest {
+
+    private static MeshSimulation denseMesh() {
+
+        MeshSimulation simulation = new MeshSimulation();
+        simulation.setPeerCount(60);
+        simulation.setGatewayCount(3);
+        simulation.setAverageDegree(20);
+        simulation.setUpstreamMessageCount(50);
+        simulation.setDownstreamMessageCount(10);
+        simulation.setLossRate(0);
+        return simulation;
+    }
+
+    @Test
+    public void run_deliversEverythingOnLosslessDenseMesh() throws Exception {
+
+        MeshSimulation simulation = denseMesh();
+        simulation.run();
+
+        assertEquals(50, simulation.getMetrics().getCounter(MeshSimulation.UPSTREAM_SENT));
+        assertEquals(1.0, simulation.getUpstreamDeliveryRatio(), 0);
+        assertEquals(1.0, simulation.getDownstreamDeliveryRatio(), 0);
+        assertEquals(0, simulation.getMetrics().getCounter(MeshSimulation.FRAMES_LOST));
+        assertTrue(simulation.getMetrics().getHistogram(MeshSimulation.UPSTREAM_LATENCY).getMax() > 0);
+    }
+
+    @Test
+    public void run_isReproducibleWithTheSameSeed() throws Exception {
+
+        MeshSimulation first = denseMesh();
+        first.setLossRate(0.1);
+        first.run();
+
+        MeshSimulation second = denseMesh();
+        second.setLossRate(0.1);
+        second.run();
+
+        assertEquals(first.getMetrics().getCounter(MeshSimulation.FRAMES_SENT),
+                second.getMetrics().getCounter(MeshSimulation.FRAMES_SENT));
+        assertEquals(first.getMetrics().getCounter(MeshSimulation.UPSTREAM_DELIVERED),
+                second.getMetrics().getCounter(MeshSimulation.UPSTREAM_DELIVERED));
+        assertEquals(first.getMetrics().getCounter(MeshSimulation.DOWNSTREAM_DELIVERED),
+                second.getMetrics().getCounter(MeshSimulation.DOWNSTREAM_DELIVERED));
+    }
+
+    @Test
+    public void run_deliversNothingWhenEveryFrameIsLost() throws Exception {
+
+        MeshSimulation simulation = denseMesh();
+        simulation.setLossRate(1);
+        simulation.run();
+
+        assertEquals(0, simulation.getMetrics().getCounter(MeshSimulation.UPSTREAM_DELIVERED));
+        assertEquals(0, simulation.getMetrics().getCounter(MeshSimulation.DOWNSTREAM_DELIVERED));
+    }
+}